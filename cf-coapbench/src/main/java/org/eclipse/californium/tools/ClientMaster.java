@@ -163,7 +163,7 @@ public class ClientMaster implements Runnable {
 				continue;
 			}
 			if (command.has("-s"))
-				timeout = ((250 + command.getInt("-s")) * 40 > 1000 ? (250 + command.getInt("-s")) * 40 : 1000);
+				timeout = Math.max((250 + command.getInt("-s")) * 40, ClientSlave.REGISTRATION_STALL + 10000);
 			if (!slave.observe_init(command, timeout)) {
 				if (slave.ping() < 0) {
 					System.err.println("Slave #" + slave.id + " is unreachable.");
@@ -340,6 +340,22 @@ public class ClientMaster implements Runnable {
 			+ "\nSend a signal to all clients each starting n servers for m seconds for an observe benchmark with the command"
 			+ "\n    observe -s n -t m coap://localhost:5683/announce"
 			+ "\n"
+			+ "\nAdd -threads k to an observe command to simulate the servers with an event-driven observe engine"
+			+ "\non k threads, -share r to let r observe relations share a socket, and -rate f to limit the"
+			+ "\nnotifications of each relation to f per second"
+			+ "\n    observe -s 50000 -t 60 -threads 4 -share 16 -rate 10 coap://localhost:5683/announce"
+			+ "\n"
+			+ "\nAdd -non for non-confirmable notifications. Their delivery is taken from the report of the observer"
+			+ "\n(see DeliveryTracker), which each slave fetches with a GET of the announce URI with ?run=RUN. An observer"
+			+ "\nthat reports the delivery is started with: java -jar coapbench.jar -observer -p 5683"
+			+ "\n"
+			+ "\nAdd -arrival DISTRIBUTION to a bench or observe command to draw the time between the requests or"
+			+ "\nnotifications of each device from const:MS, exp:MS, uniform:MIN,MAX or trace:FILE"
+			+ "\n    observe -s 1000 -t 60 -arrival exp:5000 coap://localhost:5683/announce"
+			+ "\n"
+			+ "\nAdd -vthreads to a bench or observe command to run the virtual devices on virtual threads (Java 21+)"
+			+ "\n    bench -c 10000 -t 60 -vthreads coap://localhost:5683/hello"
+			+ "\n"
 			+ "\nOther commands: "
 			+ "\n    status       Print the current status"
 			+ "\n    ping         Exchange a message with each slave"
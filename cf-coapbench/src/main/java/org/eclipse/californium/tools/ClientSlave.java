@@ -29,6 +29,9 @@ import java.util.NoSuchElementException;
 import java.util.Scanner;
 
 import org.eclipse.californium.tools.coapbench.Command;
+import org.eclipse.californium.tools.coapbench.InterArrival;
+import org.eclipse.californium.tools.coapbench.LatencyUnit;
+import org.eclipse.californium.tools.coapbench.ResultExporter;
 import org.eclipse.californium.tools.coapbench.VirtualDeviceManager;
 
 
@@ -48,6 +51,9 @@ public class ClientSlave {
 	public static final String CMD_OBSERVE_FAIL = "observe_fail";
 	public static final String CMD_APACHE_BENCH = "ab";
 	
+	/** The time without new registrations after which an observe benchmark fails */
+	public static final int REGISTRATION_STALL = 20 * 1000; // [ms]
+	
 	private InetAddress address;
 	private int port;
 	private Socket socket;
@@ -171,8 +177,20 @@ public class ClientSlave {
 			clients = command.getInt("-c");
 		if (command.has("-t"))
 			time = command.getInt("-t");
+		if (command.has("-precision"))
+			vdm.setPrecision(command.getInt("-precision"));
+		if (command.has("-unit"))
+			vdm.setUnit(LatencyUnit.parse(command.getString("-unit")));
 		if (command.has("-latency"))
 			vdm.setEnableLatency(true);
+		if (command.has("-vthreads"))
+			vdm.setVirtualThreads(true);
+		if (command.has("-interval"))
+			vdm.setInterval(command.getInt("-interval"));
+		if (command.has("-export"))
+			vdm.setExportFormats(ResultExporter.Format.parse(command.getString("-export")));
+		if (command.has("-arrival"))
+			vdm.setInterArrival(InterArrival.parse(command.getString("-arrival")));
 		
 		List<String> parameters = command.getParameters();
 		if (parameters.size() > 0) {
@@ -206,8 +224,24 @@ public class ClientSlave {
 			time = command.getInt("-t");
 		if (command.has("-non"))
 			vdm.setConfirmable(false);
+		if (command.has("-precision"))
+			vdm.setPrecision(command.getInt("-precision"));
+		if (command.has("-unit"))
+			vdm.setUnit(LatencyUnit.parse(command.getString("-unit")));
 		if (command.has("-latency"))
 			vdm.setEnableLatency(true);
+		if (command.has("-vthreads"))
+			vdm.setVirtualThreads(true);
+		if (command.has("-threads"))
+			vdm.setEngineThreads(command.getInt("-threads"));
+		if (command.has("-share"))
+			vdm.setRelationsPerSocket(command.getInt("-share"));
+		if (command.has("-rate")) {
+			float rate = Float.parseFloat(command.getString("-rate"));
+			vdm.setInterArrival(rate > 0 ? new InterArrival.Constant((long) (1000000000L / rate)) : null);
+		}
+		if (command.has("-arrival"))
+			vdm.setInterArrival(InterArrival.parse(command.getString("-arrival")));
 		
 		List<String> parameters = command.getParameters();
 		if (parameters.size() > 0) {
@@ -231,14 +265,19 @@ public class ClientSlave {
 			vdm.start(servers, time * 1000, false);
 			
 			// wait for all the servers to finish registering with the observer
-			int i = 0;
-			for (; i < 80; ++i) {
+			// as long as the number of registered servers keeps growing
+			int ready = 0;
+			long progress = System.currentTimeMillis();
+			while (vdm.getNumberOfDevicesAtBarrier() + vdm.getNumberOfFailedDevices() < servers
+					&& System.currentTimeMillis() - progress < REGISTRATION_STALL) {
 				Thread.sleep(250);
-				if (vdm.getNumberOfDevicesAtBarrier() == servers)
-					break;
+				if (vdm.getNumberOfDevicesAtBarrier() > ready) {
+					ready = vdm.getNumberOfDevicesAtBarrier();
+					progress = System.currentTimeMillis();
+				}
 			}
 			
-			if (i < 80) {
+			if (vdm.getNumberOfDevicesAtBarrier() == servers) {
 				send(CMD_OBSERVE_READY); 
 			}
 			else {
@@ -23,7 +23,21 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
+import org.eclipse.californium.tools.coapbench.Blockwise;
+import org.eclipse.californium.tools.coapbench.CapacityFinder;
+import org.eclipse.californium.tools.coapbench.DeliveryObserver;
+import org.eclipse.californium.tools.coapbench.DtlsIdentity;
+import org.eclipse.californium.tools.coapbench.InterArrival;
+import org.eclipse.californium.tools.coapbench.LatencyUnit;
+import org.eclipse.californium.tools.coapbench.ReceiveBufferPool;
+import org.eclipse.californium.tools.coapbench.ResultExporter;
+import org.eclipse.californium.tools.coapbench.Retransmission;
+import org.eclipse.californium.tools.coapbench.Scenario;
+import org.eclipse.californium.tools.coapbench.SocketShard;
+import org.eclipse.californium.tools.coapbench.Trace;
+import org.eclipse.californium.tools.coapbench.VirtualClient;
 import org.eclipse.californium.tools.coapbench.VirtualClientManager;
+import org.eclipse.californium.tools.coapbench.producer.MessageTemplate;
 
 
 public class CoapBench {
@@ -33,6 +47,7 @@ public class CoapBench {
 	// Modes: normal, master, slave
 	public static final String MASTER = "-master";
 	public static final String SLAVE = "-slave";
+	public static final String OBSERVER = "-observer";
 
 	// Defaults
 	public static final int DEFAULT_CLIENTS = 1;
@@ -53,6 +68,8 @@ public class CoapBench {
 					mainMaster(args);
 				} else if (args[0].equals(SLAVE)) {
 					mainSlave(args);
+				} else if (args[0].equals(OBSERVER)) {
+					mainObserver(args);
 				} else {
 					mainBench(args);
 				}
@@ -77,8 +94,32 @@ public class CoapBench {
 		int time = DEFAULT_TIME;
 		int index = 0;
 		boolean withLatency = false;
+		boolean nio = false;
+		boolean vthreads = false;
 		String register = null;
 		int timeout = 0;
+		int window = 1;
+		int share = 0;
+		int buffer = 0;
+		String block = null;
+		String dtls = null;
+		int resume = 0;
+		boolean reusePort = false;
+		String retransmit = null;
+		String scenarioFile = null;
+		String replay = null;
+		double speed = 1;
+		double errorBudget = 0;
+		double rate = 0;
+		String arrival = null;
+		int precision = 0;
+		String unit = null;
+		int interval = 0;
+		String export = null;
+		int warmup = 0;
+		double steady = 0;
+		boolean capacity = false;
+		double slo = 0;
 		while (index < args.length) {
 			String arg = args[index];
 			
@@ -96,10 +137,58 @@ public class CoapBench {
 				register = args[index+1];
 			} else if ("-lt".equals(arg)) {
 				timeout = Integer.parseInt(args[index+1]);
+			} else if ("-window".equals(arg)) {
+				window = Integer.parseInt(args[index+1]);
+			} else if ("-buffer".equals(arg)) {
+				buffer = Integer.parseInt(args[index+1]);
+			} else if ("-block".equals(arg)) {
+				block = args[index+1];
+			} else if ("-dtls".equals(arg)) {
+				dtls = args[index+1];
+			} else if ("-resume".equals(arg)) {
+				resume = Integer.parseInt(args[index+1]);
+			} else if ("-share".equals(arg)) {
+				share = "cores".equals(args[index+1]) ? VirtualClientManager.SHARE_PER_CORE : Integer.parseInt(args[index+1]);
+			} else if ("-reuseport".equals(arg)) {
+				reusePort = true; index++; continue;
+			} else if ("-retransmit".equals(arg)) {
+				retransmit = args[index+1];
+			} else if ("-scenario".equals(arg)) {
+				scenarioFile = args[index+1];
+			} else if ("-replay".equals(arg)) {
+				replay = args[index+1];
+			} else if ("-speed".equals(arg)) {
+				speed = Double.parseDouble(args[index+1]);
+			} else if ("-errors".equals(arg)) {
+				errorBudget = convertRatio(args[index+1]);
+			} else if ("-rate".equals(arg)) {
+				rate = convertRate(args[index+1]);
+			} else if ("-arrival".equals(arg)) {
+				arrival = args[index+1];
+			} else if ("-precision".equals(arg)) {
+				precision = Integer.parseInt(args[index+1]);
+			} else if ("-unit".equals(arg)) {
+				unit = args[index+1];
+			} else if ("-interval".equals(arg)) {
+				interval = Integer.parseInt(args[index+1]);
+			} else if ("-export".equals(arg)) {
+				export = args[index+1];
+			} else if ("-warmup".equals(arg)) {
+				warmup = Integer.parseInt(args[index+1]);
+			} else if ("-steady".equals(arg)) {
+				steady = Double.parseDouble(args[index+1]);
+			} else if ("-slo".equals(arg)) {
+				slo = Double.parseDouble(args[index+1]);
 			} else if ("-y".equals(arg)) {
 				payload = readPayload(args[index+1]);
 			} else if ("-latency".equals(arg)) {
 				withLatency = true; index++; continue;
+			} else if ("-nio".equals(arg)) {
+				nio = true; index++; continue;
+			} else if ("-vthreads".equals(arg)) {
+				vthreads = true; index++; continue;
+			} else if ("-capacity".equals(arg)) {
+				capacity = true; index++; continue;
 			} else if ("-h".equals(arg)) {
 				printUsage();
 				return;
@@ -113,12 +202,80 @@ public class CoapBench {
 			}
 			index += 2;
 		}
+		Scenario scenario = null;
+		if (scenarioFile != null) {
+			if (register != null) {
+				System.err.println("Error: -scenario cannot be combined with -R");
+				printUsage();
+				return;
+			}
+			scenario = Scenario.load(scenarioFile);
+			if (target != null)
+				System.err.println("Ignore target "+target+", the scenario defines the targets");
+			// the clients send to the host and port of the scenario
+			target = scenario.get(0).getURI().toString();
+			if (scenario.hasThinkTimes() && (window > 1 || rate > 0))
+				System.err.println("Note that think times only apply to closed-loop clients with a window of 1");
+		}
 		if (target == null){
 			System.err.println("Error: No target specified");
 			printUsage();
 			return;
 		}
 
+		if (replay != null && (rate > 0 || scenarioFile != null || register != null || retransmit != null || capacity)) {
+			System.err.println("Error: -replay cannot be combined with -rate, -scenario, -R, -retransmit or -capacity");
+			printUsage();
+			return;
+		}
+
+		if (arrival != null && (rate > 0 || replay != null)) {
+			System.err.println("Error: -arrival cannot be combined with -rate or -replay");
+			printUsage();
+			return;
+		}
+
+		if (share != 0 && !nio) {
+			System.err.println("Error: -share requires -nio");
+			printUsage();
+			return;
+		}
+
+		if (block != null && (window > 1 || rate > 0 || arrival != null || scenarioFile != null || replay != null || register != null)) {
+			System.err.println("Error: -block cannot be combined with -window, -rate, -arrival, -scenario, -replay or -R");
+			printUsage();
+			return;
+		}
+
+		// a coaps URI uses DTLS with the default identities
+		if (dtls == null && target.startsWith("coaps://"))
+			dtls = "psk";
+		if (dtls != null && !target.startsWith("coaps://")) {
+			System.err.println("Error: -dtls requires a coaps URI");
+			printUsage();
+			return;
+		}
+
+		if (dtls != null && (nio || share != 0 || window > 1 || rate > 0 || arrival != null || replay != null)) {
+			System.err.println("Error: DTLS cannot be combined with -nio, -share, -window, -rate, -arrival or -replay");
+			printUsage();
+			return;
+		}
+
+		if (resume > 0 && dtls == null) {
+			System.err.println("Error: -resume requires a coaps URI");
+			printUsage();
+			return;
+		}
+
+		if (reusePort && share == 0) {
+			System.err.println("Error: -reuseport requires -share");
+			printUsage();
+			return;
+		}
+
+		// the placeholder of the message templates is not a valid URI character
+		target = target.replace(MessageTemplate.PLACEHOLDER, "%7B%7D");
 		scheme = target;
 
 		/* We have to create a registration URI as follow: POST coap://address:port/?lt=time&ep=name*/
@@ -169,10 +326,45 @@ public class CoapBench {
 
 		int[] series = convertSeries(clients);
 		VirtualClientManager manager = new VirtualClientManager(target, bindSAddr, method, payload, multipleAddr);
+		manager.setNio(nio);
+		if (vthreads) manager.setVirtualThreads(true);
+		if (window > 1) manager.setWindow(window);
+		if (buffer > 0) manager.setReceiveSize(buffer);
+		if (block != null) manager.setBlockwise(Blockwise.parseSzx(block));
+		if (dtls != null) manager.setDtls(DtlsIdentity.parse(dtls));
+		if (resume > 0) manager.setResume(resume);
+		if (share != 0) manager.setShare(share);
+		if (reusePort) manager.setReusePort(true);
+		if (errorBudget > 0) manager.setErrorBudget(errorBudget);
+		if (retransmit != null) manager.setRetransmission(Retransmission.parse(retransmit));
+		if (scenario != null) manager.setScenario(scenario);
+		if (replay != null) manager.setReplay(Trace.load(replay, VirtualClient.TOKEN_LENGTH), speed);
+		if (rate > 0) manager.setRate(rate);
+		if (arrival != null) manager.setInterArrival(InterArrival.parse(arrival));
 		manager.setRegistration(register!=null);
         manager.setScheme(scheme);
-		if (withLatency) manager.setEnableLatency(true);
-		manager.runConcurrencySeries(series, time*1000);
+		if (precision > 0) manager.setPrecision(precision);
+		if (unit != null) manager.setUnit(LatencyUnit.parse(unit));
+		if (withLatency || slo > 0) manager.setEnableLatency(true);
+		if (interval > 0) manager.setInterval(interval);
+		if (export != null) manager.setExportFormats(ResultExporter.Format.parse(export));
+		if (warmup > 0) manager.setWarmup(warmup*1000);
+		if (steady > 0) manager.setSteadyState(steady);
+		try {
+			for (int c:series)
+				manager.checkShare(c);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: "+e.getMessage());
+			printUsage();
+			return;
+		}
+		if (capacity) {
+			// ramp the rate with the first number of clients or the clients
+			CapacityFinder finder = new CapacityFinder(manager, rate > 0, series[0], (long) (slo * 1000));
+			finder.find(rate > 0 ? rate : series[0], time*1000);
+		} else {
+			manager.runConcurrencySeries(series, time*1000);
+		}
 		
 //		Thread.sleep(time*1000 + 1000);
 		System.exit(0); // stop all threads from virtual client manager
@@ -195,6 +387,26 @@ public class CoapBench {
 		new ClientMaster(port).start();
 	}
 	
+	public static void mainObserver(String[] args) throws Exception {
+		int port = DeliveryObserver.DEFAULT_PORT;
+		String name = DeliveryObserver.DEFAULT_NAME;
+		int index = 1;
+		while (index < args.length) {
+			String arg = args[index];
+			if ("-p".equals(arg)) {
+				port = Integer.parseInt(args[index+1]);
+			} else if ("-r".equals(arg)) {
+				name = args[index+1];
+			} else {
+				System.err.println("Unknwon arg "+arg);
+				printUsage();
+				return;
+			}
+			index += 2;
+		}
+		DeliveryObserver.start(port, name);
+	}
+	
 	public static void mainSlave(String[] args) throws Exception {
 		String address = DEFAULT_MASTER_ADDRESS;
 		int port = DEFAULT_MASTER_PORT;
@@ -256,6 +468,20 @@ public class CoapBench {
 		return series;
 	}
 	
+	private static double convertRatio(String ratio) {
+		// ratio is in format <fraction> or <percent>%
+		if (ratio.endsWith("%"))
+			return Double.parseDouble(ratio.substring(0, ratio.length() - 1)) / 100;
+		return Double.parseDouble(ratio);
+	}
+	
+	private static double convertRate(String rate) {
+		// rate is in format <number> or <number>/s
+		if (rate.endsWith("/s"))
+			rate = rate.substring(0, rate.length() - 2);
+		return Double.parseDouble(rate);
+	}
+	
 	private static String readPayload(String file) {
 		String payload = null;
 		try(BufferedReader br = new BufferedReader(new FileReader(file))) {
@@ -281,9 +507,11 @@ public class CoapBench {
 	public static void printUsage() {
 		System.out.println(
 				"SYNOPSIS"
-				+ "\n    CoAPBench [[OPTIONS] URI | -master OPTIONS | -slave OPTIONS] [-v]" 
+				+ "\n    CoAPBench [[OPTIONS] URI | -master OPTIONS | -slave OPTIONS | -observer OPTIONS] [-v]" 
 				+ "\n"
 				+ "\nURI: The target URI to benchmark"
+				+ "\n     A {} in the path, e.g., coap://localhost/node{}/temp, is replaced with the index of each client."
+				+ "\n     A {} in the payload file is replaced the same way."
 				+ "\n"
 				+ "\nOPTIONS are:"
 				+ "\n    -c CONCURRENCY"
@@ -295,10 +523,80 @@ public class CoapBench {
 				+ "\n            Defines the method of the operation. The values can be GET, POST, PUT and DELETE (default is " + DEFAULT_METHOD + ")."
 				+ "\n    -y File"
 				+ "\n            This option expects a filename and specifies the payload of the operation. The file has to be a text file."
+				+ "\n    -scenario FILE"
+				+ "\n            Send a weighted mix of request classes instead of -m and -y to the URI, which can then be omitted."
+				+ "\n            Each line of the file is NAME WEIGHT METHOD URI [payload=FILE] [think=MS], where METHOD can also be OBSERVE."
+				+ "\n            Each client picks the class of every request by weight; the log shows the results per class."
+				+ "\n            Think times only apply to closed-loop clients with a window of 1."
+				+ "\n    -replay FILE"
+				+ "\n            Replay the requests of a pcap capture or of a text trace with lines TIME SOURCE HEX (seconds, device, CoAP message)"
+				+ "\n            at their original time to the URI. The sources are distributed over the clients and the trace loops until TIME."
+				+ "\n    -speed FACTOR"
+				+ "\n            With -replay, replay the trace FACTOR times faster (default is 1)."
 				+ "\n    -b ADDRESS"
 				+ "\n            Bind the clients to the specified local address (by default the system chooses)."
 				+ "\n    -d ADDRESS"
 				+ "\n            Bind every client to a different IP address starting from the specified ADDRESS. Remember to add first the address to your local interface."
+				+ "\n    -warmup TIME"
+				+ "\n            Run each step TIME seconds before the measurement starts and discard the results of the warm-up."
+				+ "\n    -steady CV"
+				+ "\n            Extend the warm-up until the coefficient of variation of the throughput of the last 5 seconds is below CV (e.g., 0.05), at most 60 s."
+				+ "\n    -latency"
+				+ "\n            Measure the latency of each request and log its distribution."
+				+ "\n    -precision DIGITS"
+				+ "\n            Number of significant decimal digits of the latency histograms, from 1 to 5 (default is 2)."
+				+ "\n    -unit UNIT"
+				+ "\n            Unit of the latencies in the log, ms or us (default is ms). Latencies are measured in microseconds."
+				+ "\n    -interval MS"
+				+ "\n            Log the throughput, timeouts and latencies of the last MS milliseconds while the clients are running."
+				+ "\n    -export FORMATS"
+				+ "\n            Also export the results as comma separated list of json (JSON lines), csv and hlog (HdrHistogram log), e.g., json,hlog."
+				+ "\n    -nio"
+				+ "\n            Drive all clients from one selector thread per core instead of one thread per client."
+				+ "\n    -window N"
+				+ "\n            Keep up to N requests in flight per client instead of waiting for each response (default is 1)."
+				+ "\n    -buffer BYTES"
+				+ "\n            Size of the receive buffers (default is "+ReceiveBufferPool.DEFAULT_SIZE+"). Larger responses are counted as truncated instead of"
+				+ "\n            completed. The log shows the goodput, i.e., the payload bytes per second of the completed requests."
+				+ "\n    -block SZX|BYTES"
+				+ "\n            Transfer block-wise (RFC 7959) with blocks of 2^(SZX+4) bytes, e.g., 6 or 1024: GET downloads the URI with Block2,"
+				+ "\n            PUT and POST upload the payload with Block1. Only complete transfers are counted; with -latency, the log"
+				+ "\n            additionally shows the latency per block. Requires a window of 1."
+				+ "\n    -dtls psk[,IDENTITY[,SECRET]]|rpk"
+				+ "\n            Identities of the clients for a coaps URI (default is psk,"+DtlsIdentity.DEFAULT_PSK_IDENTITY+","+DtlsIdentity.DEFAULT_PSK_SECRET+"). A {} in the PSK identity"
+				+ "\n            is replaced with the index of each client; rpk generates an EC key pair per client. Every run starts with a"
+				+ "\n            full handshake of all clients; the log shows the handshakes, resumptions and requests over established"
+				+ "\n            sessions separately, each with its own latencies."
+				+ "\n    -resume N"
+				+ "\n            With a coaps URI, resume the DTLS session of each client with an abbreviated handshake every N requests."
+				+ "\n    -share N|cores"
+				+ "\n            With -nio, let N clients share each socket, or with cores spread the clients over a pool of one socket per"
+				+ "\n            core; the clients are told apart by token. The log shows the datagrams the kernel dropped on the client"
+				+ "\n            sockets because of full receive buffers (Linux only). All clients of a socket share its 2^16 MIDs, so a"
+				+ "\n            socket must not send more than "+(int) SocketShard.MAX_MID_RATE+" requests/s, as the server deduplicates by MID for "+SocketShard.EXCHANGE_LIFETIME/1000+" s."
+				+ "\n    -reuseport"
+				+ "\n            With -share, bind the sockets of the clients of each selector thread to one port with SO_REUSEPORT."
+				+ "\n    -retransmit ACK_TIMEOUT[,ACK_RANDOM_FACTOR[,MAX_RETRANSMIT]]"
+				+ "\n            Retransmit unanswered requests with exponential backoff as in RFC 7252 (e.g., 2000,1.5,4) instead of"
+				+ "\n            giving up after 10 s. The log additionally shows the retransmissions and the latency on the first try."
+				+ "\n    -errors BUDGET"
+				+ "\n            Abort a run when more than BUDGET of the responses are errors (4.xx, 5.xx or RST), e.g., 1% or 0.01."
+				+ "\n            Without a budget, errors are counted and logged but never abort the run."
+				+ "\n    -rate RATE"
+				+ "\n            Run open-loop: all clients together send RATE requests per second (e.g., 50000/s) regardless of the responses."
+				+ "\n            Latencies are measured from the scheduled send time, so server stalls are not hidden."
+				+ "\n    -arrival DISTRIBUTION"
+				+ "\n            Run open-loop: each client draws the time to its next request from const:MS, exp:MS (Poisson), uniform:MIN,MAX"
+				+ "\n            or trace:FILE (one time in ms per line), e.g., exp:5000 for sensors that wake up every 5 s on average."
+				+ "\n            Use -nio to simulate many mostly idle clients without a thread per client."
+				+ "\n    -vthreads"
+				+ "\n            Run every client on a virtual thread instead of a platform thread (requires Java 21 or newer)."
+				+ "\n            The log additionally shows the scheduling overhead of both thread types."
+				+ "\n    -capacity"
+				+ "\n            Search the saturation point: double the clients (or with -rate the request rate) each step of TIME seconds"
+				+ "\n            until the throughput stops increasing, then narrow down the knee and log the maximum sustainable throughput."
+				+ "\n    -slo MS"
+				+ "\n            With -capacity, a step is only sustainable if the 99th percentile latency is at most MS milliseconds."
 				+ "\nLWM2M operations:"
 				+ "\n    -R name [-lt integer]"
 				+ "\n            Register the clients to the specified local address. Every client is identified by an integer from 1 to the maximum"
@@ -320,16 +618,32 @@ public class CoapBench {
 				+ "\n    -s"
 				+ "\n            Specifies whether the resource should be observed (applies if the request type is set to GET)."
 				+ "\n"
+				+ "\nOPTIONS for the observer are:"
+				+ "\n    -p PORT"
+				+ "\n            The port of the announce resource (default is "+DeliveryObserver.DEFAULT_PORT+")."
+				+ "\n    -r NAME"
+				+ "\n            The name of the announce resource (default is "+DeliveryObserver.DEFAULT_NAME+"). The observer observes the"
+				+ "\n            resources the devices of an observe benchmark announce and reports the delivery of their notifications."
+				+ "\n"
 				+ "\nExamples:"
 				+ "\nStart 50 clients that concurrently send GET requests for 60 seconds"
 				+ "\n    java -jar coapbench.jar -c 50 -t 60 coap://localhost:5683/benchmark"
 				+ "\n"
+				+ "\nFind the maximum throughput starting with 10 clients and a p99 latency of at most 20 ms"
+				+ "\n    java -jar coapbench.jar -capacity -slo 20 -c 10 -t 30 coap://localhost:5683/benchmark"
+				+ "\n"
+				+ "\nStart 100 clients that send the mix of requests defined in mix.txt and log the latencies per class"
+				+ "\n    java -jar coapbench.jar -c 100 -latency -scenario mix.txt"
+				+ "\n"
 				+ "\nStart a master listening on port 8888 for slaves"
 				+ "\n    java -jar coapbench.jar -master -p 8888"
 				+ "\n"
 				+ "\nStart a slave which connects with the specified master"
 				+ "\n    java -jar coapbench.jar -slave -a 192.168.1.33 -p 8888"
 				+ "\n"
+				+ "\nStart an observer that accounts for the notifications of the devices announced at coap://HOST:5683/announce"
+				+ "\n    java -jar coapbench.jar -observer -p 5683"
+				+ "\n"
 				+ "\nLWM2M examples:"
 				+ "\n"
 				+ "\nRegister 50 clients with endpoints names ranging from \"node1\" to \"node50\" for 60 seconds. After that, the clients"
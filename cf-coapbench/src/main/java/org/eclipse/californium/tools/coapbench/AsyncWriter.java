@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes text to a file from a background thread. The caller only enqueues
+ * the text, so that writing the results never blocks the thread that
+ * measures. The writer flushes whenever the queue runs empty and when the
+ * JVM shuts down.
+ */
+public class AsyncWriter {
+
+	private static final String EOF = new String("EOF");
+
+	private final File file;
+	private final BufferedWriter out;
+	private final LinkedBlockingQueue<String> queue;
+	private final Thread thread;
+	private final Thread hook;
+	private volatile boolean closed;
+
+	public AsyncWriter(File file) throws IOException {
+		this.file = file;
+		this.out = new BufferedWriter(new FileWriter(file));
+		this.queue = new LinkedBlockingQueue<String>();
+		this.thread = new Thread("AsyncWriter-"+file.getName()) {
+			public void run() {
+				drain();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		this.hook = new Thread() {
+			public void run() {
+				AsyncWriter.this.close();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(hook);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void write(String text) {
+		if (!closed)
+			queue.add(text);
+	}
+
+	/**
+	 * Writes all enqueued text, closes the file and removes the shutdown
+	 * hook.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			Runtime.getRuntime().removeShutdownHook(hook);
+		} catch (IllegalStateException e) {
+			// the JVM shuts down and runs the hook
+		}
+		queue.add(EOF);
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void drain() {
+		try {
+			while (true) {
+				String text = queue.take();
+				if (text == EOF)
+					break;
+				out.write(text);
+				if (queue.isEmpty())
+					out.flush();
+			}
+		} catch (InterruptedException e) {
+			// close
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,441 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.util.Map;
+
+/**
+ * The result of one benchmark run, i.e., of one concurrency level.
+ */
+public class BenchmarkResult {
+
+	private final long timestamp;
+	private final String uri;
+	private final int concurrency;
+	private final float time; // [ms]
+	private final long completed;
+	private final long timeouts;
+	private final LatencyHistogram latencies;
+	private long retransmissions;
+	private LatencyHistogram firstTry;
+	private long blocks;
+	private LatencyHistogram blockLatencies;
+	private long handshakes;
+	private long resumptions;
+	private LatencyHistogram handshakeLatencies;
+	private LatencyHistogram resumptionLatencies;
+	private int registrations;
+	private int registrationFailures;
+	private float registrationTime; // [ms]
+	private LatencyHistogram registrationLatencies;
+	private long sent;
+	private long delivered;
+	private long reordered;
+	private long duplicates;
+	private int notifyingRelations;
+	private int deliveringRelations;
+	private LatencyHistogram oneWayLatencies;
+	private ResponseCodes codes;
+	private boolean aborted;
+	private Map<String, BenchmarkResult> classes;
+	private long kernelDrops;
+	private int failedClients;
+	private long bytes;
+	private long payloadBytes;
+	private long truncated;
+
+	/**
+	 * Creates a result.
+	 *
+	 * @param uri the target of the benchmark
+	 * @param concurrency the number of virtual devices
+	 * @param time the duration of the run in milliseconds
+	 * @param completed the number of completed requests
+	 * @param timeouts the number of timeouts
+	 * @param latencies the latencies or null if they were not measured
+	 */
+	public BenchmarkResult(String uri, int concurrency, float time, long completed, long timeouts, LatencyHistogram latencies) {
+		this.timestamp = System.currentTimeMillis();
+		this.uri = uri;
+		this.concurrency = concurrency;
+		this.time = time;
+		this.completed = completed;
+		this.timeouts = timeouts;
+		this.latencies = latencies;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getURI() {
+		return uri;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public float getTime() {
+		return time;
+	}
+
+	public long getCompleted() {
+		return completed;
+	}
+
+	public long getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * Returns the completed requests per second.
+	 */
+	public float getThroughput() {
+		return completed * 1000L / time;
+	}
+
+	/**
+	 * Sets the number of retransmissions and the latencies of the requests
+	 * answered on the first try.
+	 */
+	public void setRetransmissions(long retransmissions, LatencyHistogram firstTry) {
+		this.retransmissions = retransmissions;
+		this.firstTry = firstTry;
+	}
+
+	public long getRetransmissions() {
+		return retransmissions;
+	}
+
+	/**
+	 * Returns the latencies of the requests answered without retransmission
+	 * or null if the clients did not retransmit.
+	 */
+	public LatencyHistogram getFirstTryLatencies() {
+		return firstTry;
+	}
+
+	/**
+	 * Sets the number of answered blocks and their latencies of block-wise
+	 * transfers.
+	 */
+	public void setBlocks(long blocks, LatencyHistogram blockLatencies) {
+		this.blocks = blocks;
+		this.blockLatencies = blockLatencies;
+	}
+
+	public long getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Returns the latencies of the single blocks or null if the clients did
+	 * not transfer block-wise.
+	 */
+	public LatencyHistogram getBlockLatencies() {
+		return blockLatencies;
+	}
+
+	/**
+	 * Returns the average number of blocks per completed transfer.
+	 */
+	public float getBlocksPerTransfer() {
+		return completed > 0 ? (float) blocks / completed : 0;
+	}
+
+	/**
+	 * Sets the numbers and latencies of the full and abbreviated DTLS
+	 * handshakes.
+	 */
+	public void setHandshakes(long handshakes, LatencyHistogram handshakeLatencies, long resumptions, LatencyHistogram resumptionLatencies) {
+		this.handshakes = handshakes;
+		this.handshakeLatencies = handshakeLatencies;
+		this.resumptions = resumptions;
+		this.resumptionLatencies = resumptionLatencies;
+	}
+
+	public long getHandshakes() {
+		return handshakes;
+	}
+
+	/**
+	 * Returns the latencies of the full handshakes or null if the clients did
+	 * not use DTLS.
+	 */
+	public LatencyHistogram getHandshakeLatencies() {
+		return handshakeLatencies;
+	}
+
+	public long getResumptions() {
+		return resumptions;
+	}
+
+	/**
+	 * Returns the latencies of the abbreviated handshakes or null if the
+	 * clients did not use DTLS.
+	 */
+	public LatencyHistogram getResumptionLatencies() {
+		return resumptionLatencies;
+	}
+
+	/**
+	 * Returns the full handshakes per second.
+	 */
+	public float getHandshakeRate() {
+		return handshakes * 1000f / time;
+	}
+
+	/**
+	 * Returns the abbreviated handshakes per second.
+	 */
+	public float getResumptionRate() {
+		return resumptions * 1000f / time;
+	}
+
+	/**
+	 * Returns the number of completed requests that did not complete a
+	 * handshake, i.e., that only cost the record layer.
+	 */
+	public long getRecords() {
+		return Math.max(0, completed - handshakes - resumptions);
+	}
+
+	/**
+	 * Returns the completed requests per second over established sessions.
+	 */
+	public float getRecordThroughput() {
+		return getRecords() * 1000f / time;
+	}
+
+	/**
+	 * Sets the number of successful and failed observe registrations, the
+	 * time until the last one completed and their latencies.
+	 */
+	public void setRegistrations(int registrations, int registrationFailures, float registrationTime, LatencyHistogram registrationLatencies) {
+		this.registrations = registrations;
+		this.registrationFailures = registrationFailures;
+		this.registrationTime = registrationTime;
+		this.registrationLatencies = registrationLatencies;
+	}
+
+	public int getRegistrations() {
+		return registrations;
+	}
+
+	public int getRegistrationFailures() {
+		return registrationFailures;
+	}
+
+	public float getRegistrationTime() {
+		return registrationTime;
+	}
+
+	/**
+	 * Returns the registrations per second until the last one completed.
+	 */
+	public float getRegistrationRate() {
+		return registrationTime > 0 ? registrations * 1000f / registrationTime : 0;
+	}
+
+	/**
+	 * Returns the latencies of the observe registrations or null if the run
+	 * was no observe benchmark of the observe engine.
+	 */
+	public LatencyHistogram getRegistrationLatencies() {
+		return registrationLatencies;
+	}
+
+	/**
+	 * Sets the delivery of the notifications as reported by the observer.
+	 *
+	 * @param sent the number of notifications sent by the devices
+	 * @param delivered the number of distinct notifications the observer
+	 *            received
+	 * @param reordered the number of notifications received out of order
+	 * @param duplicates the number of notifications received again
+	 * @param oneWayLatencies the one-way latencies
+	 */
+	public void setDelivery(long sent, long delivered, long reordered, long duplicates, LatencyHistogram oneWayLatencies) {
+		this.sent = sent;
+		this.delivered = delivered;
+		this.reordered = reordered;
+		this.duplicates = duplicates;
+		this.oneWayLatencies = oneWayLatencies;
+	}
+
+	/**
+	 * Sets the number of relations that sent notifications and the number of
+	 * those the observer received notifications from.
+	 */
+	public void setDeliveryRelations(int notifying, int delivering) {
+		this.notifyingRelations = notifying;
+		this.deliveringRelations = delivering;
+	}
+
+	public long getSent() {
+		return sent;
+	}
+
+	public long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * Returns the number of sent notifications the observer did not receive.
+	 */
+	public long getUndelivered() {
+		return Math.max(0, sent - delivered);
+	}
+
+	public long getReordered() {
+		return reordered;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	public int getNotifyingRelations() {
+		return notifyingRelations;
+	}
+
+	public int getDeliveringRelations() {
+		return deliveringRelations;
+	}
+
+	/**
+	 * Returns the number of relations that sent notifications of which the
+	 * observer received none.
+	 */
+	public int getSilentRelations() {
+		return Math.max(0, notifyingRelations - deliveringRelations);
+	}
+
+	/**
+	 * Returns the one-way latencies of the notifications or null if the
+	 * observer did not report the delivery.
+	 */
+	public LatencyHistogram getOneWayLatencies() {
+		return oneWayLatencies;
+	}
+
+	/**
+	 * Sets the counters of the response codes and whether the run was aborted
+	 * because of too many errors.
+	 */
+	public void setResponseCodes(ResponseCodes codes, boolean aborted) {
+		this.codes = codes;
+		this.aborted = aborted;
+	}
+
+	/**
+	 * Returns the counters of the response codes or null if they were not
+	 * counted.
+	 */
+	public ResponseCodes getResponseCodes() {
+		return codes;
+	}
+
+	/**
+	 * Returns the number of responses that were not a success, including
+	 * resets.
+	 */
+	public long getErrors() {
+		return codes != null ? codes.getErrors() : 0;
+	}
+
+	public boolean isAborted() {
+		return aborted;
+	}
+
+	/**
+	 * Sets the results per request class of a scenario.
+	 */
+	public void setClasses(Map<String, BenchmarkResult> classes) {
+		this.classes = classes;
+	}
+
+	/**
+	 * Returns the results per request class by name or null if the run had
+	 * no scenario.
+	 */
+	public Map<String, BenchmarkResult> getClasses() {
+		return classes;
+	}
+
+	/**
+	 * Sets the bytes of all received datagrams, the payload bytes of the
+	 * completed requests and the number of truncated responses.
+	 */
+	public void setBytes(long bytes, long payloadBytes, long truncated) {
+		this.bytes = bytes;
+		this.payloadBytes = payloadBytes;
+		this.truncated = truncated;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getPayloadBytes() {
+		return payloadBytes;
+	}
+
+	public long getTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Returns the payload bytes per second.
+	 */
+	public float getGoodput() {
+		return time > 0 ? payloadBytes * 1000f / time : 0;
+	}
+
+	/**
+	 * Sets the number of datagrams that the kernel dropped on the client
+	 * sockets because their receive buffers were full.
+	 */
+	public void setKernelDrops(long kernelDrops) {
+		this.kernelDrops = kernelDrops;
+	}
+
+	public long getKernelDrops() {
+		return kernelDrops;
+	}
+
+	/**
+	 * Sets the number of clients that the engine stopped because their
+	 * receive, send or timer failed.
+	 */
+	public void setFailedClients(int failedClients) {
+		this.failedClients = failedClients;
+	}
+
+	public int getFailedClients() {
+		return failedClients;
+	}
+
+	public boolean hasLatencies() {
+		return latencies != null && !latencies.isEmpty();
+	}
+
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+/**
+ * The parameters of block-wise transfers as defined in RFC 7959. A client in
+ * block-wise mode downloads the resource with Block2 or uploads the body with
+ * Block1, one block per request, and only counts the transfer when the last
+ * block has been answered. The latency of a transfer is measured from its
+ * first request to the response to its last block; the latency of each block
+ * is recorded separately.
+ * <p>
+ * The block size is 2^(SZX+4) bytes, from 16 bytes (SZX 0) to 1024 bytes
+ * (SZX 6). The body of uploads is shared by all clients.
+ */
+public class Blockwise {
+
+	public static final int DEFAULT_SZX = 6; // 1024 bytes
+	public static final int MAX_SZX = 6;
+
+	private final int szx;
+	private final byte[] body;
+
+	/**
+	 * Creates the parameters of block-wise transfers.
+	 *
+	 * @param szx the block size exponent
+	 * @param body the body to upload or null to download
+	 */
+	public Blockwise(int szx, byte[] body) {
+		if (szx < 0 || szx > MAX_SZX)
+			throw new IllegalArgumentException("SZX must be between 0 and "+MAX_SZX);
+		this.szx = szx;
+		this.body = body;
+	}
+
+	/**
+	 * Parses the block size either as SZX from 0 to 6 or as size in bytes,
+	 * which must be a power of two from 16 to 1024.
+	 */
+	public static int parseSzx(String value) {
+		int number = Integer.parseInt(value);
+		if (number >= 0 && number <= MAX_SZX)
+			return number;
+		for (int szx=0;szx<=MAX_SZX;szx++)
+			if (number == 1 << (szx + 4))
+				return szx;
+		throw new IllegalArgumentException("Block size must be an SZX from 0 to "+MAX_SZX+" or a power of two from 16 to 1024 bytes: "+value);
+	}
+
+	public int getSzx() {
+		return szx;
+	}
+
+	/**
+	 * Returns the block size in bytes.
+	 */
+	public int getSize() {
+		return 1 << (szx + 4);
+	}
+
+	/**
+	 * Returns the body to upload or null for downloads.
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+
+	public boolean isUpload() {
+		return body != null;
+	}
+
+	/**
+	 * Returns the number of blocks of an upload or 0 for downloads, whose
+	 * length is only known from the responses.
+	 */
+	public int getBlockCount() {
+		if (body == null)
+			return 0;
+		return Math.max(1, (body.length + getSize() - 1) / getSize());
+	}
+
+	@Override
+	public String toString() {
+		return (body != null ? "Block1 upload of "+body.length+" bytes" : "Block2 download")+" in blocks of "+getSize()+" bytes";
+	}
+}
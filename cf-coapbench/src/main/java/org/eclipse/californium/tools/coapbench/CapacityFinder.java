@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+/**
+ * The capacity finder searches the saturation point of a server. It ramps the
+ * load exponentially until a step is no longer sustainable and then narrows
+ * the knee down with a binary search between the last sustainable and the
+ * first unsustainable step. The load is either the number of clients
+ * (closed-loop) or the total request rate (open-loop) of a fixed number of
+ * clients.
+ * <p>
+ * A step is sustainable if
+ * <ul>
+ * <li>at most {@link #MAX_TIMEOUT_RATIO} of the requests timed out or failed
+ * and the run was not aborted by the error budget,</li>
+ * <li>the 99th percentile latency is within the SLO (if any),</li>
+ * <li>open-loop: the throughput reaches {@link #MIN_DELIVERY} of the offered
+ * rate,</li>
+ * <li>closed-loop: the throughput still increases compared to the last
+ * sustainable step, by at least {@link #MIN_GAIN} for twice the clients.</li>
+ * </ul>
+ * Each step is logged as part of the curve and the search ends with the
+ * maximum sustainable throughput.
+ */
+public class CapacityFinder {
+
+	/** The minimum throughput gain for doubling the number of clients */
+	public static final double MIN_GAIN = 0.05;
+
+	/** The minimum ratio of the offered rate that must be completed */
+	public static final double MIN_DELIVERY = 0.95;
+
+	/** The maximum ratio of timeouts and errors to completed requests */
+	public static final double MAX_TIMEOUT_RATIO = 0.01;
+
+	/** The search stops when the knee is known within this relative range */
+	public static final double RESOLUTION = 0.05;
+
+	/** The maximum number of steps of the search */
+	public static final int MAX_STEPS = 20;
+
+	/** The pause between two steps */
+	public static final int PAUSE = 5 * 1000; // [ms]
+
+	private final VirtualClientManager manager;
+	private final boolean openLoop;
+	private final int clients;
+	private final long slo; // [us]
+
+	private int steps;
+	private BenchmarkResult best;
+	private double bestLevel;
+
+	/**
+	 * Creates a capacity finder.
+	 *
+	 * @param manager the manager of the clients
+	 * @param openLoop whether to ramp the request rate instead of the number
+	 *            of clients
+	 * @param clients the number of clients for the open-loop search
+	 * @param slo the maximum 99th percentile latency in microseconds or 0
+	 */
+	public CapacityFinder(VirtualClientManager manager, boolean openLoop, int clients, long slo) {
+		this.manager = manager;
+		this.openLoop = openLoop;
+		this.clients = clients;
+		this.slo = slo;
+	}
+
+	/**
+	 * Searches the saturation point.
+	 *
+	 * @param start the number of clients or the rate of the first step
+	 * @param time the duration of each step in milliseconds
+	 * @return the result of the step with the maximum sustainable throughput
+	 *         or null if not even the first step was sustainable
+	 */
+	public BenchmarkResult find(double start, int time) throws Exception {
+		LatencyUnit unit = manager.getUnit();
+		manager.log("Capacity search: "+(openLoop ? "open-loop rate with "+clients+" clients" : "closed-loop clients")
+				+ ", start at "+start+(slo > 0 ? ", SLO p99 "+unit.format(slo)+" "+unit.getSymbol() : ""));
+		manager.log("Capacity: Step, "+(openLoop ? "Rate" : "Clients")+", Throughput, Timeouts, p99("+unit.getSymbol()+"), Sustainable");
+
+		// exponential ramp
+		double lower = 0;
+		BenchmarkResult reference = null;
+		double level = start;
+		double upper = 0;
+		while (steps < MAX_STEPS) {
+			BenchmarkResult result = step(level, time);
+			if (!isSustainable(result, level, reference, lower)) {
+				upper = level;
+				break;
+			}
+			lower = level;
+			reference = result;
+			level *= 2;
+		}
+
+		// binary search for the knee
+		while (upper > 0 && reference != null && steps < MAX_STEPS && !isResolved(lower, upper)) {
+			double middle = openLoop ? (lower + upper) / 2 : Math.round((lower + upper) / 2);
+			BenchmarkResult result = step(middle, time);
+			if (isSustainable(result, middle, reference, lower)) {
+				lower = middle;
+				reference = result;
+			} else {
+				upper = middle;
+			}
+		}
+
+		if (best == null) {
+			manager.log("Capacity: no sustainable step");
+		} else {
+			manager.log(String.format("Capacity: maximum sustainable throughput %.2f /s at %s %s (knee between %s and %s)",
+					best.getThroughput(), level(bestLevel), openLoop ? "requests/s" : "clients",
+					level(lower), upper > 0 ? level(upper) : "unknown"));
+		}
+		return best;
+	}
+
+	private BenchmarkResult step(double level, int time) throws Exception {
+		if (steps > 0)
+			Thread.sleep(PAUSE);
+		steps++;
+		BenchmarkResult result;
+		if (openLoop) {
+			manager.setRate(level);
+			result = manager.run(clients, time);
+		} else {
+			result = manager.run((int) level, time);
+		}
+		return result;
+	}
+
+	private boolean isSustainable(BenchmarkResult result, double level, BenchmarkResult reference, double referenceLevel) throws Exception {
+		boolean sustainable = !result.isAborted()
+				&& result.getTimeouts() + result.getErrors() <= MAX_TIMEOUT_RATIO * Math.max(1, result.getCompleted());
+		long p99 = result.hasLatencies() ? result.getLatencies().getValueAtPercentile(99) : 0;
+		if (slo > 0 && p99 > slo)
+			sustainable = false;
+		if (openLoop) {
+			if (result.getThroughput() < MIN_DELIVERY * level)
+				sustainable = false;
+		} else if (reference != null) {
+			double gain = MIN_GAIN * (level - referenceLevel) / referenceLevel;
+			if (result.getThroughput() < reference.getThroughput() * (1 + gain))
+				sustainable = false;
+		}
+		if (sustainable && (best == null || result.getThroughput() > best.getThroughput())) {
+			best = result;
+			bestLevel = level;
+		}
+		LatencyUnit unit = manager.getUnit();
+		manager.log(String.format("Capacity: %d, %s, %.2f, %d, %s, %s", steps, level(level), result.getThroughput(),
+				result.getTimeouts(), result.hasLatencies() ? unit.format(p99) : "-", sustainable ? "yes" : "no"));
+		return sustainable;
+	}
+
+	private boolean isResolved(double lower, double upper) {
+		if (openLoop)
+			return upper - lower <= lower * RESOLUTION;
+		else
+			return upper - lower <= Math.max(1, lower * RESOLUTION);
+	}
+
+	private String level(double level) {
+		return openLoop ? String.format("%.1f", level) : Integer.toString((int) level);
+	}
+}
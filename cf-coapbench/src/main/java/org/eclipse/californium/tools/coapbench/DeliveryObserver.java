@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+/**
+ * The delivery observer is the announce resource of an observe benchmark
+ * with a {@link DeliveryTracker}. A virtual device POSTs the URI of its
+ * resource, which the observer then observes. The observer passes the
+ * payload of every notification to the tracker and answers the GET of a
+ * slave with the query <code>run=RUN</code> with the report of that run.
+ * <p>
+ * The observer uses the client of Californium, which drops notifications
+ * that arrive after a newer one of the same relation. Reordered
+ * notifications are therefore counted as lost.
+ */
+public class DeliveryObserver extends CoapResource {
+
+	public static final String DEFAULT_NAME = "announce";
+	public static final int DEFAULT_PORT = 5683;
+
+	private final DeliveryTracker tracker;
+	private final ConcurrentMap<String, CoapObserveRelation> relations = new ConcurrentHashMap<String, CoapObserveRelation>();
+	private final AtomicLong invalid = new AtomicLong();
+
+	public DeliveryObserver() {
+		this(DEFAULT_NAME, new DeliveryTracker());
+	}
+
+	/**
+	 * Creates an observer.
+	 *
+	 * @param name the name of the announce resource
+	 * @param tracker the tracker that accounts for the notifications
+	 */
+	public DeliveryObserver(String name, DeliveryTracker tracker) {
+		super(name);
+		this.tracker = tracker;
+	}
+
+	/**
+	 * Starts a server with an observer at the specified port.
+	 */
+	public static CoapServer start(int port, String name) {
+		CoapServer server = new CoapServer(port);
+		server.add(new DeliveryObserver(name, new DeliveryTracker()));
+		server.start();
+		System.out.println("Delivery observer waits for announcements at coap://localhost:"+port+"/"+name);
+		return server;
+	}
+
+	/**
+	 * Observes the URI in the payload. A device that announces the same URI
+	 * again replaces its previous relation.
+	 */
+	@Override
+	public void handlePOST(CoapExchange exchange) {
+		String target = exchange.getRequestText();
+		try {
+			new URI(target);
+		} catch (URISyntaxException | NullPointerException e) {
+			exchange.respond(ResponseCode.BAD_REQUEST, "Payload is no URI");
+			return;
+		}
+		exchange.respond(ResponseCode.CHANGED);
+		CoapObserveRelation relation = new CoapClient(target).observe(new CoapHandler() {
+			public void onLoad(CoapResponse response) {
+				if (!tracker.record(response.getPayload()))
+					invalid.incrementAndGet();
+			}
+
+			public void onError() {
+				// the device has not answered, it announces itself again
+			}
+		});
+		CoapObserveRelation previous = relations.put(target, relation);
+		if (previous != null)
+			previous.reactiveCancel();
+	}
+
+	/**
+	 * Responds with the delivery report of the run in the query.
+	 */
+	@Override
+	public void handleGET(CoapExchange exchange) {
+		String run = exchange.getQueryParameter(DeliveryReport.QUERY);
+		if (run == null) {
+			exchange.respond(ResponseCode.BAD_REQUEST, "Query "+DeliveryReport.QUERY+"=RUN required");
+			return;
+		}
+		DeliveryReport report;
+		try {
+			report = tracker.remove(Long.parseLong(run));
+		} catch (NumberFormatException e) {
+			exchange.respond(ResponseCode.BAD_REQUEST, "Invalid run "+run);
+			return;
+		}
+		if (report == null)
+			exchange.respond(ResponseCode.NOT_FOUND, "No notification of run "+run);
+		else
+			exchange.respond(ResponseCode.CONTENT, report.toString());
+	}
+
+	public DeliveryTracker getTracker() {
+		return tracker;
+	}
+
+	/**
+	 * Returns the number of notifications whose payload was no delivery
+	 * stamp.
+	 */
+	public long getInvalid() {
+		return invalid.get();
+	}
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The delivery of the notifications of one run as accounted by the observer
+ * with a {@link DeliveryTracker}. The observer returns the report as text in
+ * the response to a GET of its announce URI with the query
+ * <code>run=RUN</code>, and the slave parses it with {@link #parse(String)}:
+ * <pre>
+ * run RUN
+ * relations RELATIONS
+ * received RECEIVED
+ * lost LOST
+ * reordered REORDERED
+ * duplicates DUPLICATES
+ * latency HISTOGRAM
+ * relation INDEX RECEIVED LOST REORDERED DUPLICATES MEAN MAX
+ * </pre>
+ * The received notifications are counted once per sequence number, and the
+ * lost notifications are the gaps in the sequence numbers up to the highest
+ * received one. The observer cannot know the notifications lost after it nor
+ * the relations that delivered nothing, so the slave compares the received
+ * notifications and relations with those it has sent. A notification is
+ * reordered if it arrives after one with a higher sequence number and a
+ * duplicate if its sequence number has already been received. The histogram
+ * of the one-way latencies is the hex encoded
+ * {@link LatencyHistogram#toCompressedByteArray()}. To keep the report small,
+ * there is only a relation line for the {@link #MAX_RELATIONS} relations with
+ * the most lost, reordered and duplicated notifications.
+ */
+public class DeliveryReport {
+
+	/** The name of the query parameter with the run */
+	public static final String QUERY = "run";
+
+	/** The maximum number of relation lines in a report */
+	public static final int MAX_RELATIONS = 32;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final long run;
+	private final int relations;
+	private final long received;
+	private final long lost;
+	private final long reordered;
+	private final long duplicates;
+	private final LatencyHistogram latencies;
+	private final List<Relation> worst = new ArrayList<Relation>();
+
+	/**
+	 * Creates a report.
+	 *
+	 * @param run the identifier of the run
+	 * @param relations the number of relations that delivered notifications
+	 * @param received the number of received sequence numbers
+	 * @param lost the number of missing sequence numbers
+	 * @param reordered the number of notifications received out of order
+	 * @param duplicates the number of notifications received again
+	 * @param latencies the one-way latencies
+	 */
+	public DeliveryReport(long run, int relations, long received, long lost, long reordered, long duplicates, LatencyHistogram latencies) {
+		this.run = run;
+		this.relations = relations;
+		this.received = received;
+		this.lost = lost;
+		this.reordered = reordered;
+		this.duplicates = duplicates;
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Adds the delivery of a single relation, which should be one of those
+	 * with the most lost, reordered and duplicated notifications.
+	 */
+	public void addRelation(Relation relation) {
+		if (worst.size() < MAX_RELATIONS)
+			worst.add(relation);
+	}
+
+	public long getRun() {
+		return run;
+	}
+
+	/**
+	 * Returns the number of relations that delivered at least one
+	 * notification.
+	 */
+	public int getRelations() {
+		return relations;
+	}
+
+	public long getReceived() {
+		return received;
+	}
+
+	public long getLost() {
+		return lost;
+	}
+
+	public long getReordered() {
+		return reordered;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	/**
+	 * Returns the relations with the most lost, reordered and duplicated
+	 * notifications.
+	 */
+	public List<Relation> getWorstRelations() {
+		return worst;
+	}
+
+	/**
+	 * Formats the report as text.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append("run ").append(run).append('\n');
+		text.append("relations ").append(relations).append('\n');
+		text.append("received ").append(received).append('\n');
+		text.append("lost ").append(lost).append('\n');
+		text.append("reordered ").append(reordered).append('\n');
+		text.append("duplicates ").append(duplicates).append('\n');
+		text.append("latency ");
+		for (byte b:latencies.toCompressedByteArray())
+			text.append(HEX[(b >> 4) & 0x0F]).append(HEX[b & 0x0F]);
+		text.append('\n');
+		for (Relation relation:worst)
+			text.append("relation ").append(relation).append('\n');
+		return text.toString();
+	}
+
+	/**
+	 * Parses a report from its text.
+	 *
+	 * @throws IllegalArgumentException if the text is no report
+	 */
+	public static DeliveryReport parse(String text) {
+		if (text == null)
+			throw new IllegalArgumentException("No report");
+		long run = -1;
+		int relations = 0;
+		long received = 0;
+		long lost = 0;
+		long reordered = 0;
+		long duplicates = 0;
+		LatencyHistogram latencies = null;
+		List<Relation> worst = new ArrayList<Relation>();
+		try {
+			for (String line:text.split("\n")) {
+				String[] parts = line.trim().split(" ");
+				if (parts[0].equals("run"))
+					run = Long.parseLong(parts[1]);
+				else if (parts[0].equals("relations"))
+					relations = Integer.parseInt(parts[1]);
+				else if (parts[0].equals("received"))
+					received = Long.parseLong(parts[1]);
+				else if (parts[0].equals("lost"))
+					lost = Long.parseLong(parts[1]);
+				else if (parts[0].equals("reordered"))
+					reordered = Long.parseLong(parts[1]);
+				else if (parts[0].equals("duplicates"))
+					duplicates = Long.parseLong(parts[1]);
+				else if (parts[0].equals("latency"))
+					latencies = LatencyHistogram.fromCompressedByteArray(hex(parts[1]));
+				else if (parts[0].equals("relation"))
+					worst.add(new Relation(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+							Long.parseLong(parts[4]), Long.parseLong(parts[5]), Long.parseLong(parts[6]), Long.parseLong(parts[7])));
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Malformed report: "+e.getMessage());
+		}
+		if (run < 0 || latencies == null)
+			throw new IllegalArgumentException("Incomplete report");
+		DeliveryReport report = new DeliveryReport(run, relations, received, lost, reordered, duplicates, latencies);
+		for (Relation relation:worst)
+			report.addRelation(relation);
+		return report;
+	}
+
+	private static byte[] hex(String text) {
+		if (text.length() % 2 != 0)
+			throw new IllegalArgumentException("Odd number of hex digits");
+		byte[] data = new byte[text.length() / 2];
+		for (int i=0;i<data.length;i++)
+			data[i] = (byte) Integer.parseInt(text.substring(2 * i, 2 * i + 2), 16);
+		return data;
+	}
+
+	/**
+	 * The delivery of the notifications of a single relation.
+	 */
+	public static class Relation {
+
+		private final int index;
+		private final long received;
+		private final long lost;
+		private final long reordered;
+		private final long duplicates;
+		private final long meanLatency; // [us]
+		private final long maxLatency; // [us]
+
+		public Relation(int index, long received, long lost, long reordered, long duplicates, long meanLatency, long maxLatency) {
+			this.index = index;
+			this.received = received;
+			this.lost = lost;
+			this.reordered = reordered;
+			this.duplicates = duplicates;
+			this.meanLatency = meanLatency;
+			this.maxLatency = maxLatency;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public long getReceived() {
+			return received;
+		}
+
+		public long getLost() {
+			return lost;
+		}
+
+		public long getReordered() {
+			return reordered;
+		}
+
+		public long getDuplicates() {
+			return duplicates;
+		}
+
+		public long getMeanLatency() {
+			return meanLatency;
+		}
+
+		public long getMaxLatency() {
+			return maxLatency;
+		}
+
+		@Override
+		public String toString() {
+			return index + " " + received + " " + lost + " " + reordered + " " + duplicates + " " + meanLatency + " " + maxLatency;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.eclipse.californium.tools.coapbench.producer.MessageTemplate;
+
+/**
+ * The delivery stamp in the payload of the notifications of an observe
+ * benchmark. It identifies the notification by the run, the relation and the
+ * sequence number and carries the time it was sent, so that the observer can
+ * account for the delivery of each relation with a {@link DeliveryTracker}.
+ * <p>
+ * The stamp is the text <code>RUN:RELATION:SEQUENCE:TIMESTAMP</code> with
+ * fields of {@link #DIGITS} decimal digits. The timestamp is in microseconds
+ * since the epoch, so that the one-way latency is only meaningful if the
+ * clocks of the devices and the observer are synchronized, e.g., with PTP.
+ */
+public final class DeliveryStamp {
+
+	/** The payload with the placeholders of the fields */
+	public static final String PAYLOAD = "{}:{}:{}:{}";
+
+	/** The number of digits of each field */
+	public static final int DIGITS = 16;
+
+	/** The length of a stamp in bytes */
+	public static final int LENGTH = 4 * DIGITS + 3;
+
+	public static final int RUN = 0;
+	public static final int RELATION = 1;
+	public static final int SEQUENCE = 2;
+	public static final int TIMESTAMP = 3;
+
+	private static final long EPOCH = System.currentTimeMillis() * 1000L; // [us]
+	private static final long NANO_EPOCH = System.nanoTime();
+
+	private DeliveryStamp() {
+	}
+
+	/**
+	 * Returns the current time in microseconds since the epoch with the
+	 * resolution of {@link System#nanoTime()}.
+	 */
+	public static long now() {
+		return EPOCH + (System.nanoTime() - NANO_EPOCH) / 1000L;
+	}
+
+	/**
+	 * Returns a random identifier of a run, so that the observer can tell the
+	 * notifications of different runs and slaves apart.
+	 */
+	public static long newRun() {
+		return ThreadLocalRandom.current().nextLong(1000000000L);
+	}
+
+	/**
+	 * Writes the stamp into a template that was compiled from a message with
+	 * the {@link #PAYLOAD} and {@link #DIGITS}.
+	 */
+	public static void stamp(MessageTemplate template, long run, long relation, long sequence) {
+		template.setPayloadField(RUN, run);
+		template.setPayloadField(RELATION, relation);
+		template.setPayloadField(SEQUENCE, sequence);
+		template.setPayloadField(TIMESTAMP, now());
+	}
+
+	/**
+	 * Parses a stamp into the array of its fields.
+	 *
+	 * @param payload the payload of a notification
+	 * @param fields the array of at least four fields
+	 * @return false if the payload is no stamp
+	 */
+	public static boolean parse(byte[] payload, long[] fields) {
+		if (payload == null || payload.length != LENGTH)
+			return false;
+		for (int field=0;field<4;field++) {
+			int offset = field * (DIGITS + 1);
+			if (field < 3 && payload[offset + DIGITS] != ':')
+				return false;
+			long value = 0;
+			for (int i=offset;i<offset+DIGITS;i++) {
+				int digit = payload[i] - '0';
+				if (digit < 0 || digit > 9)
+					return false;
+				value = value * 10 + digit;
+			}
+			fields[field] = value;
+		}
+		return true;
+	}
+}
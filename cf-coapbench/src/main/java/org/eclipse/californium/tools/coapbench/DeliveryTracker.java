@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The observer side of the delivery accounting of an observe benchmark. The
+ * observer passes the payload of every notification it receives to
+ * {@link #record(byte[])}, which reads the {@link DeliveryStamp} and accounts
+ * per run and relation for the received, lost, reordered and duplicated
+ * notifications and their one-way latency. The tracker only sees what
+ * arrives, so the notifications lost after the last received one of a
+ * relation and the relations that delivered nothing are left to the slave,
+ * which compares the report with what it has sent. When the slave asks for the report of its run
+ * with a GET of the announce URI with the query <code>run=RUN</code>, the
+ * observer responds with the text of {@link #remove(long)}:
+ * <pre>
+ * String run = exchange.getQueryParameter(DeliveryReport.QUERY);
+ * DeliveryReport report = run != null ? tracker.remove(Long.parseLong(run)) : null;
+ * if (report != null)
+ *     exchange.respond(ResponseCode.CONTENT, report.toString());
+ * </pre>
+ * {@link DeliveryObserver} is such an observer. The tracker is thread-safe. The counters of a run are locked per run, which
+ * only costs a few array updates per notification.
+ */
+public class DeliveryTracker {
+
+	/** The highest index of a relation that is accounted for */
+	public static final int MAX_RELATION = (1 << 24) - 1;
+
+	/*
+	 * The number of sequence numbers below the highest one whose reception
+	 * is remembered to tell duplicates from reordered notifications.
+	 */
+	private static final int WINDOW = 64;
+
+	private final ConcurrentMap<Long, Run> runs = new ConcurrentHashMap<Long, Run>();
+	private final int precision;
+
+	public DeliveryTracker() {
+		this(LatencyHistogram.DEFAULT_PRECISION);
+	}
+
+	/**
+	 * Creates a tracker.
+	 *
+	 * @param precision the precision of the latency histograms
+	 */
+	public DeliveryTracker(int precision) {
+		this.precision = precision;
+	}
+
+	/**
+	 * Accounts for a notification that has just been received.
+	 *
+	 * @param payload the payload of the notification
+	 * @return false if the payload is no delivery stamp
+	 */
+	public boolean record(byte[] payload) {
+		return record(payload, DeliveryStamp.now());
+	}
+
+	/**
+	 * Accounts for a notification.
+	 *
+	 * @param payload the payload of the notification
+	 * @param now the time of reception in microseconds since the epoch
+	 * @return false if the payload is no delivery stamp
+	 */
+	public boolean record(byte[] payload, long now) {
+		long[] fields = new long[4];
+		if (!DeliveryStamp.parse(payload, fields) || fields[DeliveryStamp.RELATION] > MAX_RELATION)
+			return false;
+		Long key = fields[DeliveryStamp.RUN];
+		Run run = runs.get(key);
+		if (run == null) {
+			Run created = new Run(key);
+			run = runs.putIfAbsent(key, created);
+			if (run == null)
+				run = created;
+		}
+		run.record((int) fields[DeliveryStamp.RELATION], fields[DeliveryStamp.SEQUENCE], now - fields[DeliveryStamp.TIMESTAMP]);
+		return true;
+	}
+
+	/**
+	 * Returns the report of the specified run or null if no notification of
+	 * the run has been received.
+	 */
+	public DeliveryReport getReport(long run) {
+		Run r = runs.get(run);
+		return r != null ? r.report() : null;
+	}
+
+	/**
+	 * Returns the report of the specified run and forgets the run, or
+	 * returns null if no notification of the run has been received.
+	 */
+	public DeliveryReport remove(long run) {
+		Run r = runs.remove(run);
+		return r != null ? r.report() : null;
+	}
+
+	/*
+	 * The counters of the relations of a run, indexed by relation.
+	 */
+	private final class Run {
+
+		private final long id;
+		private final LatencyHistogram latencies = new LatencyHistogram(precision);
+		private long[] received = new long[0];
+		private long[] highest = new long[0];
+		private long[] window = new long[0];
+		private long[] reordered = new long[0];
+		private long[] duplicates = new long[0];
+		private long[] latencySum = new long[0];
+		private long[] latencyMax = new long[0];
+
+		private Run(long id) {
+			this.id = id;
+		}
+
+		private synchronized void record(int relation, long sequence, long latency) {
+			if (relation >= received.length) {
+				int length = Math.max(relation + 1, 2 * received.length);
+				received = Arrays.copyOf(received, length);
+				highest = Arrays.copyOf(highest, length);
+				window = Arrays.copyOf(window, length);
+				reordered = Arrays.copyOf(reordered, length);
+				duplicates = Arrays.copyOf(duplicates, length);
+				latencySum = Arrays.copyOf(latencySum, length);
+				latencyMax = Arrays.copyOf(latencyMax, length);
+			}
+			// bit i of the window is set if highest - i has been received
+			long behind = highest[relation] - sequence;
+			if (behind < 0) {
+				window[relation] = -behind < WINDOW ? window[relation] << -behind | 1 : 1;
+				highest[relation] = sequence;
+			} else if (behind < WINDOW && (window[relation] & 1L << behind) != 0) {
+				duplicates[relation]++;
+				return;
+			} else {
+				// a notification older than the window is taken as reordered
+				if (behind < WINDOW)
+					window[relation] |= 1L << behind;
+				reordered[relation]++;
+			}
+			latency = Math.max(0, latency);
+			received[relation]++;
+			latencySum[relation] += latency;
+			if (latency > latencyMax[relation])
+				latencyMax[relation] = latency;
+			latencies.record(latency);
+		}
+
+		private synchronized DeliveryReport report() {
+			int relations = 0;
+			long sumReceived = 0;
+			long sumLost = 0;
+			long sumReordered = 0;
+			long sumDuplicates = 0;
+			List<DeliveryReport.Relation> all = new ArrayList<DeliveryReport.Relation>();
+			for (int i=0;i<received.length;i++) {
+				if (received[i] == 0)
+					continue;
+				// the sequence numbers of a relation start at 1
+				long lost = Math.max(0, highest[i] - received[i]);
+				relations++;
+				sumReceived += received[i];
+				sumLost += lost;
+				sumReordered += reordered[i];
+				sumDuplicates += duplicates[i];
+				if (lost > 0 || reordered[i] > 0 || duplicates[i] > 0)
+					all.add(new DeliveryReport.Relation(i, received[i], lost, reordered[i], duplicates[i], latencySum[i] / received[i], latencyMax[i]));
+			}
+			Collections.sort(all, new Comparator<DeliveryReport.Relation>() {
+				public int compare(DeliveryReport.Relation a, DeliveryReport.Relation b) {
+					return Long.compare(b.getLost() + b.getReordered() + b.getDuplicates(), a.getLost() + a.getReordered() + a.getDuplicates());
+				}
+			});
+			LatencyHistogram snapshot = new LatencyHistogram(precision);
+			snapshot.add(latencies);
+			DeliveryReport report = new DeliveryReport(id, relations, sumReceived, sumLost, sumReordered, sumDuplicates, snapshot);
+			for (DeliveryReport.Relation relation:all)
+				report.addRelation(relation);
+			return report;
+		}
+	}
+}
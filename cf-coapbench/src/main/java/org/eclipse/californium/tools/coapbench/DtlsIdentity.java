@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+import org.eclipse.californium.tools.coapbench.producer.MessageTemplate;
+
+/**
+ * The identities with which the virtual clients authenticate in DTLS mode.
+ * Every client gets its own identity, so that the server has to keep one
+ * session per device like in production:
+ * <ul>
+ * <li>PSK: the identity is a pattern in which the
+ * {@value MessageTemplate#PLACEHOLDER} is replaced with the index of the
+ * client, e.g., <code>bench{}</code>, and all clients share the secret, so
+ * that the server can be provisioned with a simple rule.</li>
+ * <li>RPK: every client generates its own EC key pair on secp256r1 and
+ * authenticates with the raw public key.</li>
+ * </ul>
+ */
+public class DtlsIdentity {
+
+	public static final String DEFAULT_PSK_IDENTITY = "bench" + MessageTemplate.PLACEHOLDER;
+	public static final String DEFAULT_PSK_SECRET = "secretPSK";
+	public static final String EC_CURVE = "secp256r1";
+
+	public enum Mode { PSK, RPK }
+
+	private final Mode mode;
+	private final String identity;
+	private final byte[] secret;
+
+	private DtlsIdentity(Mode mode, String identity, byte[] secret) {
+		this.mode = mode;
+		this.identity = identity;
+		this.secret = secret;
+	}
+
+	/**
+	 * Returns identities from a pre-shared key. The placeholder in the
+	 * identity is replaced with the index of each client.
+	 */
+	public static DtlsIdentity psk(String identity, String secret) {
+		return new DtlsIdentity(Mode.PSK, identity, secret.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns identities from a raw public key generated per client.
+	 */
+	public static DtlsIdentity rpk() {
+		return new DtlsIdentity(Mode.RPK, null, null);
+	}
+
+	/**
+	 * Parses the identities from psk[,IDENTITY[,SECRET]] or rpk.
+	 */
+	public static DtlsIdentity parse(String parameters) {
+		String[] parts = parameters.split(",", 3);
+		if ("psk".equalsIgnoreCase(parts[0]))
+			return psk(parts.length > 1 ? parts[1] : DEFAULT_PSK_IDENTITY, parts.length > 2 ? parts[2] : DEFAULT_PSK_SECRET);
+		if ("rpk".equalsIgnoreCase(parts[0]) && parts.length == 1)
+			return rpk();
+		throw new IllegalArgumentException("DTLS mode must be psk[,IDENTITY[,SECRET]] or rpk: "+parameters);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Returns the PSK identity of the client with the specified index.
+	 */
+	public String getIdentity(long index) {
+		return identity.replace(MessageTemplate.PLACEHOLDER, Long.toString(index));
+	}
+
+	/**
+	 * Creates the configuration of the connector of the client with the
+	 * specified index.
+	 *
+	 * @param bindAddr the local address or null for any
+	 * @param index the index of the client
+	 */
+	public DtlsConnectorConfig createConfig(InetSocketAddress bindAddr, long index) throws GeneralSecurityException {
+		DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder(bindAddr != null ? bindAddr : new InetSocketAddress(0));
+		if (mode == Mode.PSK) {
+			builder.setPskStore(new StaticPskStore(getIdentity(index), secret));
+			builder.setSupportedCipherSuites(new CipherSuite[] {CipherSuite.TLS_PSK_WITH_AES_128_CCM_8});
+		} else {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+			generator.initialize(new ECGenParameterSpec(EC_CURVE));
+			KeyPair keys = generator.generateKeyPair();
+			builder.setIdentity(keys.getPrivate(), keys.getPublic());
+			builder.setSupportedCipherSuites(new CipherSuite[] {CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8});
+		}
+		return builder.build();
+	}
+
+	@Override
+	public String toString() {
+		return mode == Mode.PSK ? "PSK with identity "+identity : "RPK per client on "+EC_CURVE;
+	}
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+import org.eclipse.californium.scandium.DTLSConnector;
+
+/**
+ * The DTLS transport of a threaded virtual client. Each client has its own
+ * {@link DTLSConnector} with its own identity and local port, so that the
+ * server keeps one session per client. The connector performs the handshakes
+ * on demand when a request is sent without a session and hands the decrypted
+ * responses to the thread of the client through a small queue.
+ * <p>
+ * The transport tracks whether the next response completes a handshake:
+ * after it has been created or closed, the first request needs a full
+ * handshake, and after {@link #resume()} an abbreviated one. The handshake
+ * latency is measured from the first request that triggered the handshake to
+ * its response, i.e., including one request round trip.
+ */
+public class DtlsTransport implements RawDataChannel {
+
+	public static final int QUEUE_CAPACITY = 64;
+
+	public enum Handshake { NONE, FULL, RESUMED }
+
+	private final DTLSConnector connector;
+	private final BlockingQueue<RawData> received = new ArrayBlockingQueue<RawData>(QUEUE_CAPACITY);
+	private InetSocketAddress peer;
+	private Handshake handshake = Handshake.FULL;
+	private long handshakeStart;
+	private volatile long dropped;
+
+	/**
+	 * Creates and starts the transport of the client with the specified
+	 * index.
+	 */
+	public DtlsTransport(DtlsIdentity identity, InetSocketAddress bindAddr, long index) throws Exception {
+		this.connector = new DTLSConnector(identity.createConfig(bindAddr, index), null);
+		this.connector.setRawDataReceiver(this);
+		this.connector.start();
+	}
+
+	public void setPeer(InetSocketAddress peer) {
+		if (this.peer != null && !this.peer.equals(peer))
+			close();
+		this.peer = peer;
+	}
+
+	/**
+	 * Sends a copy of the datagram, since the connector encrypts it in its
+	 * own thread while the client reuses the buffer.
+	 */
+	public void send(byte[] bytes, long time) {
+		if (handshake != Handshake.NONE && handshakeStart == 0)
+			handshakeStart = time;
+		connector.send(new RawData(bytes.clone(), peer.getAddress(), peer.getPort()));
+	}
+
+	/**
+	 * Copies the next response into the buffer and returns its length, at
+	 * most the length of the buffer.
+	 *
+	 * @throws SocketTimeoutException if no response arrives in time
+	 */
+	public int receive(byte[] buffer, int timeout) throws IOException {
+		RawData raw;
+		try {
+			raw = received.poll(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new SocketTimeoutException("Interrupted");
+		}
+		if (raw == null)
+			throw new SocketTimeoutException();
+		byte[] bytes = raw.getBytes();
+		int length = Math.min(bytes.length, buffer.length);
+		System.arraycopy(bytes, 0, buffer, 0, length);
+		return length;
+	}
+
+	@Override
+	public void receiveData(RawData raw) {
+		// a client that falls behind loses responses like on a full socket
+		if (!received.offer(raw))
+			dropped++;
+	}
+
+	/**
+	 * Returns the kind of handshake the next response completes.
+	 */
+	public Handshake getHandshake() {
+		return handshake;
+	}
+
+	/**
+	 * Marks the pending handshake as completed and returns its latency in
+	 * nanoseconds.
+	 */
+	public long established(long now) {
+		long latency = now - handshakeStart;
+		handshake = Handshake.NONE;
+		handshakeStart = 0;
+		return latency;
+	}
+
+	/**
+	 * Forces an abbreviated handshake that resumes the session with the next
+	 * request.
+	 */
+	public void resume() {
+		connector.forceResumeSessionFor(peer);
+		handshake = Handshake.RESUMED;
+		handshakeStart = 0;
+	}
+
+	/**
+	 * Closes the connection with the peer, so that the next request needs a
+	 * full handshake.
+	 */
+	public void close() {
+		if (peer != null)
+			connector.close(peer);
+		handshake = Handshake.FULL;
+		handshakeStart = 0;
+		received.clear();
+	}
+
+	/**
+	 * Returns the number of responses dropped because the client did not
+	 * take them in time.
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	public int getLocalPort() {
+		return connector.getAddress().getPort();
+	}
+
+	public void destroy() {
+		connector.destroy();
+	}
+}
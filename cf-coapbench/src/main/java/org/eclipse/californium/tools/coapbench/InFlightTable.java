@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The in-flight table keeps the send timestamps of the outstanding requests
+ * of a pipelined virtual client. It is indexed by the lower bits of a key,
+ * e.g., the token, and each slot packs the lowest 16 bits of the key, an
+ * 8-bit tag, e.g., the class of the request, and the timestamp in units of
+ * {@value #RESOLUTION} ns into a single long. This allows the sending and
+ * the receiving half of a client to access the table concurrently without
+ * locks or allocation.
+ * <p>
+ * With a {@link Retransmission}, the receiving half also retransmits the
+ * requests that are due. It keeps the number of retransmissions of each slot
+ * for itself, so the sending half is not affected.
+ * <p>
+ * The keys are expected to increase, so that the requests in flight occupy
+ * the slots between the oldest unanswered key and the newest key. The
+ * receiving half only scans these slots for expired requests, which costs
+ * nothing while few requests are in flight.
+ */
+public class InFlightTable {
+
+	/** Returned by {@link #remove(int)} if the key is not in flight */
+	public static final long NOT_FOUND = Long.MIN_VALUE;
+
+	/** The maximum capacity is the space of the stored key bits */
+	public static final int MAX_CAPACITY = 1 << 16;
+
+	/** The maximum number of distinct tags */
+	public static final int MAX_TAGS = 1 << 8;
+
+	/** The resolution of the timestamps, which cover 19 hours */
+	public static final int RESOLUTION = 64; // [ns]
+
+	private static final int SHIFT = 6; // log2(RESOLUTION)
+
+	private final AtomicLongArray slots;
+	private final int mask;
+	private long epoch;
+	
+	// the newest key, counted without wrapping, only written by the sending half
+	private volatile long head = -1;
+	
+	// only accessed by the receiving half
+	private long tail;
+	private long[] seen;
+	private byte[] retries;
+
+	/**
+	 * Retransmits a request in flight.
+	 */
+	public interface Retransmitter {
+
+		/**
+		 * Sends the request with the specified key and tag again.
+		 */
+		void retransmit(int key, int tag) throws IOException;
+	}
+
+	/**
+	 * Creates a table for the specified number of outstanding requests. The
+	 * table uses at least twice as many slots, so that the sender always finds
+	 * a free slot within a few keys.
+	 */
+	public InFlightTable(int window) {
+		int size = Integer.highestOneBit(Math.max(1, 2 * window - 1)) << 1;
+		size = Math.min(size, MAX_CAPACITY);
+		this.slots = new AtomicLongArray(size);
+		this.mask = size - 1;
+		this.epoch = System.nanoTime() - 1;
+	}
+
+	/**
+	 * Adds the key with tag 0 and the specified timestamp.
+	 *
+	 * @return false if the slot of the key is still occupied by an older
+	 *         request
+	 */
+	public boolean put(int key, long timestamp) {
+		return put(key, 0, timestamp);
+	}
+
+	/**
+	 * Adds the key with the specified tag and timestamp.
+	 *
+	 * @return false if the slot of the key is still occupied by an older
+	 *         request
+	 */
+	public boolean put(int key, int tag, long timestamp) {
+		long rel = Math.max(1, (timestamp - epoch) >> SHIFT);
+		if (!slots.compareAndSet(key & mask, 0, rel << 24 | (tag & 0xFF) << 16 | (key & 0xFFFF)))
+			return false;
+		long h = head;
+		head = h < 0 ? key & 0xFFFF : h + ((key - (int) h) & 0xFFFF);
+		return true;
+	}
+
+	/*
+	 * Returns the first key, counted without wrapping, of the slots that may
+	 * be occupied. A slot is scanned at most once even if the keys have
+	 * wrapped around the table since the last scan.
+	 */
+	private long first(long h) {
+		return Math.max(tail, h - mask);
+	}
+
+	private long timestamp(long entry) {
+		return epoch + ((entry >>> 24) << SHIFT);
+	}
+
+	private static int tag(long entry) {
+		return (int) (entry >>> 16) & 0xFF;
+	}
+
+	/**
+	 * Removes the key from the table.
+	 *
+	 * @return the timestamp of the request or {@link #NOT_FOUND}
+	 */
+	public long remove(int key) {
+		int slot = key & mask;
+		long entry = slots.get(slot);
+		if (entry != 0 && (entry & 0xFFFF) == (key & 0xFFFF) && slots.compareAndSet(slot, entry, 0))
+			return timestamp(entry);
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Returns the tag of the key in flight or -1 if the key is not in flight.
+	 */
+	public int getTag(int key) {
+		long entry = slots.get(key & mask);
+		if (entry != 0 && (entry & 0xFFFF) == (key & 0xFFFF))
+			return tag(entry);
+		return -1;
+	}
+
+	/**
+	 * Removes all requests that are older than the specified timeout.
+	 *
+	 * @param now the current time in nanoseconds
+	 * @param timeout the timeout in nanoseconds
+	 * @param tags counts the expired requests per tag or null
+	 * @return the number of expired requests
+	 */
+	public int expire(long now, long timeout, int[] tags) {
+		int expired = 0;
+		long h = head;
+		long oldest = h + 1;
+		for (long k=first(h);k<=h;k++) {
+			int i = (int) k & mask;
+			long entry = slots.get(i);
+			if (entry == 0)
+				continue;
+			if (now - timestamp(entry) > timeout && slots.compareAndSet(i, entry, 0)) {
+				expired++;
+				if (tags != null)
+					tags[tag(entry)]++;
+			} else if (oldest > h) {
+				oldest = k;
+			}
+		}
+		tail = oldest;
+		return expired;
+	}
+
+	/**
+	 * Retransmits all requests whose next retransmission is due and removes
+	 * the requests that are lost after the last retransmission.
+	 *
+	 * @param now the current time in nanoseconds
+	 * @param retransmission the retransmission parameters
+	 * @param retransmitter sends the requests again
+	 * @param tags counts the lost requests per tag or null
+	 * @return the number of lost requests
+	 */
+	public int retransmit(long now, Retransmission retransmission, Retransmitter retransmitter, int[] tags) throws IOException {
+		if (retries == null) {
+			seen = new long[slots.length()];
+			retries = new byte[slots.length()];
+		}
+		int expired = 0;
+		long h = head;
+		long oldest = h + 1;
+		for (long k=first(h);k<=h;k++) {
+			int i = (int) k & mask;
+			long entry = slots.get(i);
+			if (entry == 0)
+				continue;
+			if (oldest > h)
+				oldest = k;
+			if (seen[i] != entry) {
+				// a new request in this slot
+				seen[i] = entry;
+				retries[i] = 0;
+			}
+			int key = (int) (entry & 0xFFFF);
+			long elapsed = now - timestamp(entry);
+			if (elapsed > retransmission.getLifetime(key)) {
+				if (slots.compareAndSet(i, entry, 0)) {
+					expired++;
+					if (tags != null)
+						tags[tag(entry)]++;
+					if (oldest == k)
+						oldest = h + 1;
+				}
+				continue;
+			}
+			while (retries[i] < retransmission.getMaxRetransmit()
+					&& elapsed > retransmission.getDeadline(key, retries[i] + 1)) {
+				retries[i]++;
+				retransmitter.retransmit(key, tag(entry));
+			}
+		}
+		tail = oldest;
+		return expired;
+	}
+
+	/**
+	 * Returns how often the request with the specified key has been
+	 * retransmitted. Must only be called by the receiving half before the key
+	 * is removed.
+	 */
+	public int getRetransmissions(int key) {
+		int slot = key & mask;
+		long entry = slots.get(slot);
+		if (retries != null && entry != 0 && seen[slot] == entry)
+			return retries[slot];
+		return 0;
+	}
+
+	/**
+	 * Removes all requests. Must not be called while the client is running.
+	 */
+	public void clear() {
+		for (int i=0;i<slots.length();i++)
+			slots.set(i, 0);
+		epoch = System.nanoTime() - 1;
+		head = -1;
+		tail = 0;
+		seen = null;
+		retries = null;
+	}
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * The distribution of the time between two requests of a virtual device. A
+ * device draws the time to its next request when it sends a request, so the
+ * requests of each device are scheduled independently of the responses.
+ * <p>
+ * The distributions are parsed from
+ * <ul>
+ * <li><code>const:MS</code>, a fixed period,</li>
+ * <li><code>exp:MS</code>, exponential times with mean MS, i.e., the requests
+ * of each device are a Poisson process,</li>
+ * <li><code>uniform:MIN,MAX</code>, uniform times between MIN and MAX,</li>
+ * <li><code>trace:FILE</code>, times drawn from a file with one time per line,
+ * e.g., the measured wake-up periods of real sensors.</li>
+ * </ul>
+ * All times are in milliseconds. The distributions are immutable and can be
+ * shared by all devices; each device draws with its own random generator.
+ */
+public abstract class InterArrival {
+
+	/**
+	 * Returns the time to the next request in nanoseconds.
+	 */
+	public abstract long next(Random random);
+
+	/**
+	 * Returns the mean time between two requests in nanoseconds.
+	 */
+	public abstract long getMean();
+
+	/**
+	 * Parses a distribution, e.g., exp:5000.
+	 */
+	public static InterArrival parse(String distribution) throws IOException {
+		int colon = distribution.indexOf(':');
+		if (colon < 0)
+			throw new IllegalArgumentException("Expected TYPE:PARAMETERS, e.g., exp:5000");
+		String type = distribution.substring(0, colon).toLowerCase(Locale.ROOT);
+		String parameters = distribution.substring(colon + 1);
+		switch (type) {
+		case "const":
+			return new Constant(millis(parameters));
+		case "exp":
+			return new Exponential(millis(parameters));
+		case "uniform":
+			String[] bounds = parameters.split(",");
+			if (bounds.length != 2)
+				throw new IllegalArgumentException("Expected uniform:MIN,MAX");
+			return new Uniform(millis(bounds[0]), millis(bounds[1]));
+		case "trace":
+			return Empirical.load(parameters);
+		default:
+			throw new IllegalArgumentException("Unknown distribution "+type);
+		}
+	}
+
+	private static long millis(String value) {
+		return (long) (Double.parseDouble(value.trim()) * 1000000d);
+	}
+
+	private static String format(long nanos) {
+		return String.format(Locale.ROOT, "%.1f ms", nanos / 1000000d);
+	}
+
+	/**
+	 * A fixed period.
+	 */
+	public static class Constant extends InterArrival {
+
+		private final long period; // [ns]
+
+		public Constant(long period) {
+			if (period <= 0)
+				throw new IllegalArgumentException("Period must be positive");
+			this.period = period;
+		}
+
+		public long next(Random random) {
+			return period;
+		}
+
+		public long getMean() {
+			return period;
+		}
+
+		@Override
+		public String toString() {
+			return "constant "+format(period);
+		}
+	}
+
+	/**
+	 * Exponential times, i.e., a Poisson process.
+	 */
+	public static class Exponential extends InterArrival {
+
+		private final long mean; // [ns]
+
+		public Exponential(long mean) {
+			if (mean <= 0)
+				throw new IllegalArgumentException("Mean must be positive");
+			this.mean = mean;
+		}
+
+		public long next(Random random) {
+			// inverse transform sampling, 1 - u is never 0
+			return Math.max(1, (long) (-mean * Math.log(1 - random.nextDouble())));
+		}
+
+		public long getMean() {
+			return mean;
+		}
+
+		@Override
+		public String toString() {
+			return "exponential with mean "+format(mean);
+		}
+	}
+
+	/**
+	 * Uniform times between a minimum and a maximum.
+	 */
+	public static class Uniform extends InterArrival {
+
+		private final long min; // [ns]
+		private final long max; // [ns]
+
+		public Uniform(long min, long max) {
+			if (min <= 0 || max < min)
+				throw new IllegalArgumentException("Bounds must be positive and in order");
+			this.min = min;
+			this.max = max;
+		}
+
+		public long next(Random random) {
+			return min + (long) (random.nextDouble() * (max - min));
+		}
+
+		public long getMean() {
+			return (min + max) / 2;
+		}
+
+		@Override
+		public String toString() {
+			return "uniform between "+format(min)+" and "+format(max);
+		}
+	}
+
+	/**
+	 * Times drawn with replacement from a list of measured times.
+	 */
+	public static class Empirical extends InterArrival {
+
+		private final long[] times; // [ns]
+		private final long mean; // [ns]
+
+		public Empirical(long[] times) {
+			if (times.length == 0)
+				throw new IllegalArgumentException("No times");
+			long sum = 0;
+			for (long time:times) {
+				if (time <= 0)
+					throw new IllegalArgumentException("Times must be positive");
+				sum += time;
+			}
+			this.times = times;
+			this.mean = sum / times.length;
+		}
+
+		/**
+		 * Loads the times from a file with one time in milliseconds per line.
+		 * Empty lines and lines starting with # are ignored.
+		 */
+		public static Empirical load(String file) throws IOException {
+			long[] times = new long[64];
+			int size = 0;
+			try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#"))
+						continue;
+					if (size == times.length)
+						times = Arrays.copyOf(times, 2 * size);
+					times[size++] = millis(line);
+				}
+			}
+			return new Empirical(Arrays.copyOf(times, size));
+		}
+
+		public long next(Random random) {
+			return times[random.nextInt(times.length)];
+		}
+
+		public long getMean() {
+			return mean;
+		}
+
+		@Override
+		public String toString() {
+			return times.length+" measured times with mean "+format(mean);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The interval reporter periodically logs the throughput, the timeouts and the
+ * latency distribution of the last interval while the virtual devices keep
+ * running. It only reads the counters and histograms of the devices and
+ * computes the difference to the previous snapshot, so the devices do not
+ * have to do anything for it.
+ */
+public class IntervalReporter extends TimerService.Task {
+
+	private final List<? extends VirtualDevice> devices;
+	private final LogFile log;
+	private final ResultExporter exporter;
+	private final LatencyUnit unit;
+	private final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+
+	private final LatencyHistogram current;
+	private final LatencyHistogram previous;
+	private final LatencyHistogram interval;
+
+	private final long start;
+	private long timestamp;
+	private long count;
+	private long timeouts;
+
+	/**
+	 * Creates a reporter.
+	 *
+	 * @param devices the devices to sample
+	 * @param log the log for the snapshots
+	 * @param exporter the exporter for the snapshots or null
+	 * @param unit the unit of the latencies in the log
+	 * @param precision the precision of the latency histograms of the devices
+	 */
+	public IntervalReporter(List<? extends VirtualDevice> devices, LogFile log, ResultExporter exporter, LatencyUnit unit, int precision) {
+		this.devices = devices;
+		this.log = log;
+		this.exporter = exporter;
+		this.unit = unit;
+		this.current = new LatencyHistogram(precision);
+		this.previous = new LatencyHistogram(precision);
+		this.interval = new LatencyHistogram(precision);
+		this.start = System.nanoTime();
+		this.timestamp = start;
+		log.format("Interval: Time, Elapsed, Completed, Throughput, Timeouts | 50%%, 99%%, max(%s)\n", unit.getSymbol());
+	}
+
+	@Override
+	public void run() {
+		long now = System.nanoTime();
+		long sumCount = 0;
+		long sumTimeouts = 0;
+		current.reset();
+		for (VirtualDevice device:devices) {
+			sumCount += device.getCount();
+			sumTimeouts += device.getTimeouts();
+			if (device.isCheckLatency())
+				current.add(device.getLatencies());
+		}
+		interval.set(current);
+		interval.subtract(previous);
+		previous.set(current);
+
+		long completed = sumCount - count;
+		float dt = (now - timestamp) / 1000000f;
+		float throughput = completed * 1000L / dt;
+		String quantiles;
+		if (interval.isEmpty())
+			quantiles = "-, -, -";
+		else
+			quantiles = unit.format(interval.getValueAtPercentile(50)) + ", "
+					+ unit.format(interval.getValueAtPercentile(99)) + ", "
+					+ unit.format(interval.getMax());
+		log.format("Interval: %s, %.3f, %d, %.2f, %d | %s\n",
+				format.format(new Date()), (now - start) / 1000000000f,
+				completed, throughput, sumTimeouts - timeouts, quantiles);
+		if (exporter != null)
+			exporter.interval((now - start) / 1000000000f, dt, completed, sumTimeouts - timeouts, interval);
+
+		timestamp = now;
+		count = sumCount;
+		timeouts = sumTimeouts;
+	}
+}
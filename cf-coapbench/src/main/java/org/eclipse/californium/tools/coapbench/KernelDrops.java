@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * A snapshot of the datagrams that the kernel dropped because a socket buffer
+ * was full. The drops of the client sockets are summed up from the drops
+ * column of /proc/net/udp and /proc/net/udp6 by local port. The receive and
+ * send buffer errors of /proc/net/snmp and /proc/net/snmp6 count the drops of
+ * all UDP sockets of the host. Only Linux provides these files; on other
+ * systems all counters are zero.
+ */
+public class KernelDrops {
+
+	private final long socketDrops;
+	private final long receiveBufferErrors;
+	private final long sendBufferErrors;
+
+	private KernelDrops(long socketDrops, long receiveBufferErrors, long sendBufferErrors) {
+		this.socketDrops = socketDrops;
+		this.receiveBufferErrors = receiveBufferErrors;
+		this.sendBufferErrors = sendBufferErrors;
+	}
+
+	public static boolean isSupported() {
+		return new File("/proc/net/udp").canRead();
+	}
+
+	/**
+	 * Takes a snapshot of the counters.
+	 *
+	 * @param ports the local ports of the client sockets
+	 */
+	public static KernelDrops snapshot(Set<Integer> ports) {
+		if (!isSupported())
+			return new KernelDrops(0, 0, 0);
+		try {
+			long drops = readSocketDrops("/proc/net/udp", ports) + readSocketDrops("/proc/net/udp6", ports);
+			long[] snmp = readSnmp();
+			return new KernelDrops(drops, snmp[0], snmp[1]);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Cannot read the kernel drops: "+e);
+			return new KernelDrops(0, 0, 0);
+		}
+	}
+
+	/*
+	 * Each line is "sl local_address rem_address st ... drops" with the
+	 * local address as hexadecimal IP:PORT.
+	 */
+	private static long readSocketDrops(String file, Set<Integer> ports) throws IOException {
+		if (!new File(file).canRead())
+			return 0;
+		long drops = 0;
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line = reader.readLine(); // header
+			while ((line = reader.readLine()) != null) {
+				String[] columns = line.trim().split("\\s+");
+				if (columns.length < 13)
+					continue;
+				String local = columns[1];
+				int port = Integer.parseInt(local.substring(local.indexOf(':') + 1), 16);
+				if (ports.contains(port))
+					drops += Long.parseLong(columns[columns.length - 1]);
+			}
+		}
+		return drops;
+	}
+
+	/*
+	 * /proc/net/snmp has a line with the names and a line with the values of
+	 * the UDP counters, /proc/net/snmp6 one line per counter.
+	 */
+	private static long[] readSnmp() throws IOException {
+		long[] errors = new long[2];
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/net/snmp"))) {
+			String line;
+			String[] names = null;
+			while ((line = reader.readLine()) != null) {
+				if (!line.startsWith("Udp: "))
+					continue;
+				String[] columns = line.split("\\s+");
+				if (names == null) {
+					names = columns;
+					continue;
+				}
+				for (int i=1;i<columns.length && i<names.length;i++) {
+					if ("RcvbufErrors".equals(names[i]))
+						errors[0] += Long.parseLong(columns[i]);
+					else if ("SndbufErrors".equals(names[i]))
+						errors[1] += Long.parseLong(columns[i]);
+				}
+			}
+		}
+		if (new File("/proc/net/snmp6").canRead()) {
+			try (BufferedReader reader = new BufferedReader(new FileReader("/proc/net/snmp6"))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] columns = line.trim().split("\\s+");
+					if (columns.length != 2)
+						continue;
+					if ("Udp6RcvbufErrors".equals(columns[0]))
+						errors[0] += Long.parseLong(columns[1]);
+					else if ("Udp6SndbufErrors".equals(columns[0]))
+						errors[1] += Long.parseLong(columns[1]);
+				}
+			}
+		}
+		return errors;
+	}
+
+	/**
+	 * Returns the difference of the counters to an earlier snapshot.
+	 */
+	public KernelDrops since(KernelDrops earlier) {
+		return new KernelDrops(socketDrops - earlier.socketDrops,
+				receiveBufferErrors - earlier.receiveBufferErrors,
+				sendBufferErrors - earlier.sendBufferErrors);
+	}
+
+	/**
+	 * Returns the datagrams that the client sockets dropped because their
+	 * receive buffer was full.
+	 */
+	public long getSocketDrops() {
+		return socketDrops;
+	}
+
+	/**
+	 * Returns the receive buffer errors of all UDP sockets of the host.
+	 */
+	public long getReceiveBufferErrors() {
+		return receiveBufferErrors;
+	}
+
+	/**
+	 * Returns the send buffer errors of all UDP sockets of the host.
+	 */
+	public long getSendBufferErrors() {
+		return sendBufferErrors;
+	}
+}
@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A high dynamic range histogram for latencies in microseconds. Like
+ * HdrHistogram, it uses buckets whose size doubles with each power of two and
+ * divides each bucket into linear sub-buckets, so that every value is kept
+ * with the configured number of significant decimal digits. The memory is
+ * fixed no matter how many values are recorded, and recording is lock-free.
+ * <p>
+ * Values above {@link #HIGHEST_TRACKABLE_VALUE} are counted in the highest
+ * bucket; the maximum is kept exactly.
+ */
+public class LatencyHistogram {
+
+	public static final int DEFAULT_PRECISION = 2;
+	public static final long HIGHEST_TRACKABLE_VALUE = 1L << 28; // [us], ~4.5 min
+
+	/* The cookies of the HdrHistogram V2 encoding for 64-bit counts */
+	private static final int ENCODING_COOKIE = 0x1c849303 | 0x10;
+	private static final int COMPRESSED_ENCODING_COOKIE = 0x1c849304 | 0x10;
+	private static final int ENCODING_HEADER_SIZE = 40;
+
+	private final int precision;
+	private final int subBucketHalfCountMagnitude;
+	private final int subBucketHalfCount;
+	private final long subBucketMask;
+	private final AtomicLongArray counts;
+
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong minValue = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong maxValue = new AtomicLong(0);
+
+	public LatencyHistogram() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * Creates a histogram.
+	 *
+	 * @param precision the number of significant decimal digits (1 to 5)
+	 */
+	public LatencyHistogram(int precision) {
+		if (precision < 1 || precision > 5)
+			throw new IllegalArgumentException("Precision must be between 1 and 5 digits");
+		this.precision = precision;
+		long largestSingleUnitResolution = 2 * (long) Math.pow(10, precision);
+		int subBucketCountMagnitude = 64 - Long.numberOfLeadingZeros(largestSingleUnitResolution - 1);
+		int subBucketCount = 1 << subBucketCountMagnitude;
+		this.subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+		this.subBucketHalfCount = subBucketCount / 2;
+		this.subBucketMask = subBucketCount - 1;
+
+		int bucketCount = 1;
+		long trackable = subBucketCount;
+		while (trackable <= HIGHEST_TRACKABLE_VALUE) {
+			trackable <<= 1;
+			bucketCount++;
+		}
+		this.counts = new AtomicLongArray((bucketCount + 1) * subBucketHalfCount);
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param value the latency in microseconds
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		int index = indexOf(Math.min(value, HIGHEST_TRACKABLE_VALUE));
+		counts.incrementAndGet(index);
+		totalCount.incrementAndGet();
+		long min;
+		while (value < (min = minValue.get()) && !minValue.compareAndSet(min, value));
+		long max;
+		while (value > (max = maxValue.get()) && !maxValue.compareAndSet(max, value));
+	}
+
+	/**
+	 * Adds all values of the specified histogram to this histogram.
+	 */
+	public void add(LatencyHistogram other) {
+		if (other.precision != precision)
+			throw new IllegalArgumentException("Cannot add histograms with different precision");
+		for (int i=0;i<counts.length();i++) {
+			long count = other.counts.get(i);
+			if (count != 0)
+				counts.addAndGet(i, count);
+		}
+		totalCount.addAndGet(other.totalCount.get());
+		long min;
+		long otherMin = other.minValue.get();
+		while (otherMin < (min = minValue.get()) && !minValue.compareAndSet(min, otherMin));
+		long max;
+		long otherMax = other.maxValue.get();
+		while (otherMax > (max = maxValue.get()) && !maxValue.compareAndSet(max, otherMax));
+	}
+
+	/**
+	 * Replaces the values of this histogram with the values of the specified
+	 * histogram.
+	 */
+	public void set(LatencyHistogram other) {
+		reset();
+		add(other);
+	}
+
+	/**
+	 * Removes the values of an earlier snapshot of the same histogram, so that
+	 * only the values recorded since the snapshot remain. The minimum and
+	 * maximum are derived from the remaining buckets.
+	 */
+	public void subtract(LatencyHistogram snapshot) {
+		if (snapshot.precision != precision)
+			throw new IllegalArgumentException("Cannot subtract histograms with different precision");
+		long total = 0;
+		int lowest = -1;
+		int highest = -1;
+		for (int i=0;i<counts.length();i++) {
+			long count = counts.addAndGet(i, -snapshot.counts.get(i));
+			if (count > 0) {
+				total += count;
+				if (lowest < 0) lowest = i;
+				highest = i;
+			}
+		}
+		totalCount.set(total);
+		if (total > 0) {
+			minValue.set(Math.max(getMin(), lowestEquivalentValue(lowest)));
+			maxValue.set(Math.min(getMax(), highestEquivalentValue(highest)));
+		} else {
+			minValue.set(Long.MAX_VALUE);
+			maxValue.set(0);
+		}
+	}
+
+	public void reset() {
+		for (int i=0;i<counts.length();i++)
+			counts.set(i, 0);
+		totalCount.set(0);
+		minValue.set(Long.MAX_VALUE);
+		maxValue.set(0);
+	}
+
+	public long getTotalCount() {
+		return totalCount.get();
+	}
+
+	public boolean isEmpty() {
+		return totalCount.get() == 0;
+	}
+
+	public long getMin() {
+		return isEmpty() ? 0 : minValue.get();
+	}
+
+	public long getMax() {
+		return maxValue.get();
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Returns the value below which the specified percentage of all recorded
+	 * values lies. The value is the highest value equivalent to the bucket it
+	 * falls into, i.e., it is exact within the precision of the histogram.
+	 *
+	 * @param percentile the percentile between 0 and 100
+	 * @return the value in microseconds
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = totalCount.get();
+		if (total == 0)
+			return 0;
+		if (percentile <= 0)
+			return getMin();
+		if (percentile >= 100)
+			return getMax();
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long sum = 0;
+		for (int i=0;i<counts.length();i++) {
+			sum += counts.get(i);
+			if (sum >= target)
+				return Math.min(highestEquivalentValue(i), getMax());
+		}
+		return getMax();
+	}
+
+	public double getMean() {
+		long total = 0;
+		double sum = 0;
+		for (int i=0;i<counts.length();i++) {
+			long count = counts.get(i);
+			if (count != 0) {
+				total += count;
+				sum += count * medianEquivalentValue(i);
+			}
+		}
+		return total == 0 ? 0 : sum / total;
+	}
+
+	public double getStdDeviation() {
+		double mean = getMean();
+		long total = 0;
+		double sum = 0;
+		for (int i=0;i<counts.length();i++) {
+			long count = counts.get(i);
+			if (count != 0) {
+				double dev = medianEquivalentValue(i) - mean;
+				total += count;
+				sum += count * dev * dev;
+			}
+		}
+		return total == 0 ? 0 : Math.sqrt(sum / total);
+	}
+
+	/**
+	 * Encodes the histogram in the compressed V2 format of HdrHistogram, so
+	 * that the histogram logs can be read with the HdrHistogram tools. The
+	 * counts are ZigZag LEB128 encoded with runs of empty buckets collapsed
+	 * and then deflated.
+	 */
+	public byte[] toCompressedByteArray() {
+		ByteBuffer payload = ByteBuffer.allocate(9 * counts.length());
+		int limit = isEmpty() ? 0 : indexOf(Math.min(getMax(), HIGHEST_TRACKABLE_VALUE)) + 1;
+		int i = 0;
+		while (i < limit) {
+			long count = counts.get(i++);
+			long zeros = 0;
+			if (count == 0) {
+				zeros = 1;
+				while (i < limit && counts.get(i) == 0) {
+					zeros++;
+					i++;
+				}
+			}
+			putZigZag(payload, zeros > 1 ? -zeros : count);
+		}
+		int length = payload.position();
+		ByteBuffer encoded = ByteBuffer.allocate(ENCODING_HEADER_SIZE + length);
+		encoded.putInt(ENCODING_COOKIE);
+		encoded.putInt(length);
+		encoded.putInt(0); // normalizing index offset
+		encoded.putInt(precision);
+		encoded.putLong(1); // lowest discernible value
+		encoded.putLong(HIGHEST_TRACKABLE_VALUE);
+		encoded.putDouble(1.0); // integer to double value conversion ratio
+		encoded.put(payload.array(), 0, length);
+
+		Deflater deflater = new Deflater();
+		deflater.setInput(encoded.array());
+		deflater.finish();
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream(encoded.capacity());
+		byte[] buffer = new byte[1024];
+		while (!deflater.finished())
+			deflated.write(buffer, 0, deflater.deflate(buffer));
+		deflater.end();
+
+		ByteBuffer compressed = ByteBuffer.allocate(8 + deflated.size());
+		compressed.putInt(COMPRESSED_ENCODING_COOKIE);
+		compressed.putInt(deflated.size());
+		compressed.put(deflated.toByteArray());
+		return compressed.array();
+	}
+
+	/**
+	 * Decodes a histogram that was encoded by
+	 * {@link #toCompressedByteArray()}, e.g., to aggregate the histogram of
+	 * another process.
+	 *
+	 * @throws IllegalArgumentException if the data is no compressed histogram
+	 */
+	public static LatencyHistogram fromCompressedByteArray(byte[] data) {
+		ByteBuffer compressed = ByteBuffer.wrap(data);
+		if (data.length < 8 || compressed.getInt() != COMPRESSED_ENCODING_COOKIE)
+			throw new IllegalArgumentException("Not a compressed histogram");
+		int length = compressed.getInt();
+		Inflater inflater = new Inflater();
+		inflater.setInput(data, 8, Math.min(length, data.length - 8));
+		ByteArrayOutputStream inflated = new ByteArrayOutputStream(ENCODING_HEADER_SIZE + length);
+		byte[] buffer = new byte[1024];
+		try {
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IllegalArgumentException("Truncated histogram");
+				inflated.write(buffer, 0, n);
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Malformed histogram", e);
+		} finally {
+			inflater.end();
+		}
+
+		ByteBuffer encoded = ByteBuffer.wrap(inflated.toByteArray());
+		if (encoded.remaining() < ENCODING_HEADER_SIZE || encoded.getInt() != ENCODING_COOKIE)
+			throw new IllegalArgumentException("Not a histogram");
+		int limit = ENCODING_HEADER_SIZE + encoded.getInt();
+		encoded.getInt(); // normalizing index offset
+		LatencyHistogram histogram = new LatencyHistogram(encoded.getInt());
+		encoded.position(ENCODING_HEADER_SIZE);
+		if (limit > encoded.capacity())
+			throw new IllegalArgumentException("Truncated histogram");
+		int index = 0;
+		int lowest = -1;
+		int highest = -1;
+		long total = 0;
+		while (encoded.position() < limit) {
+			long count = getZigZag(encoded);
+			if (count < 0) {
+				index -= count;
+			} else {
+				if (index >= histogram.counts.length())
+					throw new IllegalArgumentException("Histogram exceeds the trackable range");
+				if (count > 0) {
+					histogram.counts.set(index, count);
+					total += count;
+					if (lowest < 0) lowest = index;
+					highest = index;
+				}
+				index++;
+			}
+		}
+		histogram.totalCount.set(total);
+		if (total > 0) {
+			histogram.minValue.set(histogram.lowestEquivalentValue(lowest));
+			histogram.maxValue.set(histogram.highestEquivalentValue(highest));
+		}
+		return histogram;
+	}
+
+	private static long getZigZag(ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (shift < 56 ? (long) (b & 0x7F) : (long) (b & 0xFF)) << shift;
+			shift += 7;
+		} while (b < 0 && shift < 63);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void putZigZag(ByteBuffer buffer, long value) {
+		value = (value << 1) ^ (value >> 63);
+		for (int i=0;i<8 && (value & ~0x7FL) != 0;i++) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private int indexOf(long value) {
+		int bucketIndex = 64 - subBucketHalfCountMagnitude - 1 - Long.numberOfLeadingZeros(value | subBucketMask);
+		int subBucketIndex = (int) (value >>> bucketIndex);
+		return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+	}
+
+	private long lowestEquivalentValue(int index) {
+		int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+		int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+		if (bucketIndex < 0) {
+			subBucketIndex -= subBucketHalfCount;
+			bucketIndex = 0;
+		}
+		return (long) subBucketIndex << bucketIndex;
+	}
+
+	private long bucketSize(int index) {
+		int bucketIndex = Math.max(0, (index >> subBucketHalfCountMagnitude) - 1);
+		return 1L << bucketIndex;
+	}
+
+	private long highestEquivalentValue(int index) {
+		return lowestEquivalentValue(index) + bucketSize(index) - 1;
+	}
+
+	private double medianEquivalentValue(int index) {
+		return lowestEquivalentValue(index) + (bucketSize(index) - 1) / 2d;
+	}
+}
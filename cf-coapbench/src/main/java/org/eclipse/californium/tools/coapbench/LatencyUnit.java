@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.util.Locale;
+
+/**
+ * The unit in which latencies are reported. All latencies are measured with
+ * {@link System#nanoTime()} and recorded in microseconds; the unit only
+ * affects the log.
+ */
+public enum LatencyUnit {
+
+	MILLISECONDS("ms", 1000, "%.3f"),
+	MICROSECONDS("us", 1, "%.0f");
+
+	private final String symbol;
+	private final double micros;
+	private final String format;
+
+	private LatencyUnit(String symbol, double micros, String format) {
+		this.symbol = symbol;
+		this.micros = micros;
+		this.format = format;
+	}
+
+	/**
+	 * Returns the unit with the specified symbol, i.e., ms or us.
+	 */
+	public static LatencyUnit parse(String symbol) {
+		for (LatencyUnit unit:values())
+			if (unit.symbol.equalsIgnoreCase(symbol))
+				return unit;
+		throw new IllegalArgumentException("Unknown latency unit "+symbol+", use ms or us");
+	}
+
+	public String getSymbol() {
+		return symbol;
+	}
+
+	/**
+	 * Converts the latency in microseconds to this unit.
+	 */
+	public double convert(double micros) {
+		return micros / this.micros;
+	}
+
+	/**
+	 * Formats the latency in microseconds in this unit.
+	 */
+	public String format(double micros) {
+		return String.format(format, convert(micros));
+	}
+
+	/**
+	 * Formats the latency in microseconds in this unit for the specified
+	 * locale, e.g., {@link Locale#ROOT} for machine-readable output.
+	 */
+	public String format(Locale locale, double micros) {
+		return String.format(locale, format, convert(micros));
+	}
+}
@@ -16,66 +16,59 @@
  ******************************************************************************/
 package org.eclipse.californium.tools.coapbench;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 
 /**
  * Log file. Works like System.out.println() but stores all Strings into a file.
+ * The file is written by an {@link AsyncWriter}, so that logging does not
+ * block the caller.
  */
 public class LogFile {
 
 	private boolean verbose;
-	private BufferedWriter out;
+	private AsyncWriter out;
 	
 	public LogFile(String name) throws Exception {
 		File file = createLogFile(name);
-		out = new BufferedWriter(new FileWriter(file));
+		out = new AsyncWriter(file);
 		System.out.println("Created log file "+file.getAbsolutePath());
 	}
 	
 	public void println(String line) {
-		try {
-			while (line.startsWith("\n")) {
-//				if (verbose)
-					System.out.println();
-				out.write("\r\n");
-				line = line.substring(1);
-			}
-			if (verbose)
-				System.out.println(line);
-			out.write(line+"\r\n");
-			out.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+		while (line.startsWith("\n")) {
+//			if (verbose)
+				System.out.println();
+			out.write("\r\n");
+			line = line.substring(1);
 		}
+		if (verbose)
+			System.out.println(line);
+		out.write(line+"\r\n");
 	}
 	
 	public void format(String str, Object... args){
-		try {
-			String line = String.format(str, args);
-//			if (verbose)
-				System.out.print(line);
-			out.write(line.replace("\n", "\r\n"));
-			out.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		String line = String.format(str, args);
+//		if (verbose)
+			System.out.print(line);
+		out.write(line.replace("\n", "\r\n"));
 	}
 	
 	public void errln(String line) {
-		try {
-//			if (verbose)
-				System.err.println(line);
-			out.write(line+"\r\n");
-			out.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+//		if (verbose)
+			System.err.println(line);
+		out.write(line+"\r\n");
+	}
+	
+	public void close() {
+		out.close();
 	}
 	
-	private File createLogFile(String name) throws Exception {
+	/**
+	 * Creates a new file with the specified name. If the file already exists,
+	 * a number is appended to the name.
+	 */
+	static File createLogFile(String name) throws IOException {
 //		String date = new SimpleDateFormat("yyyy_MM_dd_HH_mm_ss").format(new Date());
 //		name = name + "_" + date;
 		File file = new File(name);
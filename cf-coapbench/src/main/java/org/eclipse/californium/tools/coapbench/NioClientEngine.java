@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The NIO client engine drives non-blocking virtual clients from a small
+ * number of threads instead of one thread per client. Each worker thread owns
+ * a {@link Selector} with which the channels of its share of the clients are
+ * registered. By default, there is one worker per available core.
+ * <p>
+ * Each worker keeps the timers of its clients in a {@link TimerWheel}: the
+ * next scheduled request if the clients run open-loop, replay a trace or
+ * wait for think times, and the next retransmission or loss of their
+ * requests in flight. The worker wakes up for the next tick with a timer and
+ * only visits the clients whose timers are due, so that many mostly idle
+ * clients cost nothing between their requests.
+ * <p>
+ * Clients that share the sockets of a {@link SocketShard} are all served by
+ * the worker with which the sockets are registered.
+ * <p>
+ * A client whose receive, send or timer fails is stopped on its own, so that
+ * the other clients of its worker keep running. The engine counts the
+ * failed clients, see {@link #getFailedClients()}.
+ */
+public class NioClientEngine {
+
+	public static final int SELECT_TIMEOUT = 100; // [ms]
+
+	private final int threadCount;
+	private final ReceiveBufferPool buffers;
+	private Worker[] workers;
+	private Thread[] threads;
+	private final AtomicInteger failed = new AtomicInteger();
+
+	public NioClientEngine() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public NioClientEngine(int threadCount) {
+		this(threadCount, ReceiveBufferPool.getDefault());
+	}
+
+	/**
+	 * Creates an engine.
+	 *
+	 * @param threadCount the number of workers
+	 * @param buffers the pool from which each worker takes its receive buffer
+	 */
+	public NioClientEngine(int threadCount, ReceiveBufferPool buffers) {
+		this.threadCount = threadCount;
+		this.buffers = buffers;
+	}
+
+	public void start(List<VirtualClient> clients) throws IOException {
+		failed.set(0);
+		int n = Math.max(1, Math.min(threadCount, clients.size()));
+		workers = new Worker[n];
+		for (int i=0;i<n;i++)
+			workers[i] = new Worker();
+		// all clients of a shard are served by the worker of its sockets
+		Map<SocketShard, Worker> shards = new IdentityHashMap<SocketShard, Worker>();
+		for (int i=0;i<clients.size();i++) {
+			VirtualClient client = clients.get(i);
+			Worker worker = workers[i % n];
+			if (client.getShard() != null) {
+				if (!shards.containsKey(client.getShard()))
+					shards.put(client.getShard(), workers[shards.size() % n]);
+				worker = shards.get(client.getShard());
+			}
+			worker.add(client);
+		}
+		threads = new Thread[n];
+		for (int i=0;i<n;i++) {
+			threads[i] = new Thread(workers[i], "NioClientEngine-"+i);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Stops all workers and waits until they have processed their last
+	 * response so that the counters of the clients are stable.
+	 */
+	public void stop() {
+		if (workers != null) {
+			for (Worker worker:workers)
+				worker.stop();
+			for (Thread thread:threads) {
+				try {
+					thread.join(10 * SELECT_TIMEOUT);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+			workers = null;
+			threads = null;
+		}
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Returns the number of clients that have been stopped because their
+	 * receive, send or timer failed since the engine has been started.
+	 */
+	public int getFailedClients() {
+		return failed.get();
+	}
+
+	/*
+	 * The selection key of a client is attached to its entry, which holds the
+	 * timeout of its next scheduled request and the timeout at which its
+	 * requests in flight have to be checked.
+	 */
+	private static final class Entry implements TimerWheel.Task {
+
+		private final VirtualClient client;
+		private final Worker worker;
+		private final TimerWheel wheel;
+		private final TimerWheel.Timeout timeout;
+		private final TimerWheel.Timeout expiry;
+		private long deadline;
+		private long expiryDeadline;
+		private boolean failed;
+
+		private Entry(VirtualClient client, Worker worker) {
+			this.client = client;
+			this.worker = worker;
+			this.wheel = worker.wheel;
+			this.timeout = new TimerWheel.Timeout(this);
+			this.expiry = new TimerWheel.Timeout(new TimerWheel.Task() {
+				public void expired(long now) {
+					try {
+						Entry.this.client.expire(now);
+						if (Entry.this.client.isRunning())
+							fill();
+					} catch (Exception e) {
+						Entry.this.worker.fail(Entry.this, e);
+					}
+				} });
+		}
+
+		public void expired(long now) {
+			try {
+				if (client.isRunning())
+					fill();
+			} catch (Exception e) {
+				worker.fail(this, e);
+			}
+		}
+
+		/*
+		 * Tops up the client and schedules its next request and the next
+		 * check of its requests in flight.
+		 */
+		private void fill() throws IOException {
+			client.fill();
+			if (!client.isRunning())
+				return;
+			long now = System.nanoTime();
+			if (client.isScheduled()) {
+				long next = client.getNextSend();
+				if (!timeout.isScheduled() || next != deadline) {
+					deadline = next;
+					wheel.schedule(timeout, next);
+				}
+			}
+			// an earlier check only finds nothing and comes back
+			if (client.isPending()) {
+				long next = client.getNextExpiry(now);
+				if (!expiry.isScheduled() || next - expiryDeadline < 0) {
+					expiryDeadline = next;
+					wheel.schedule(expiry, next);
+				}
+			}
+		}
+	}
+
+	/*
+	 * The selection keys of the sockets of a shard are attached to the
+	 * entries of its clients by slot.
+	 */
+	private static final class ShardEntries {
+
+		private final SocketShard shard;
+		private final Entry[] entries;
+
+		private ShardEntries(SocketShard shard) {
+			this.shard = shard;
+			this.entries = new Entry[shard.getCapacity()];
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private final Selector selector;
+		private final ArrayList<Entry> entries;
+		private final Map<SocketShard, ShardEntries> shards;
+		private final TimerWheel wheel;
+		private final ByteBuffer buffer;
+		private volatile boolean running;
+
+		private Worker() throws IOException {
+			this.selector = Selector.open();
+			this.entries = new ArrayList<Entry>();
+			this.shards = new IdentityHashMap<SocketShard, ShardEntries>();
+			this.wheel = new TimerWheel();
+			this.buffer = buffers.acquire();
+			this.running = true;
+		}
+
+		private void add(VirtualClient client) throws IOException {
+			Entry entry = new Entry(client, this);
+			SocketShard shard = client.getShard();
+			if (shard == null) {
+				client.getChannel().register(selector, SelectionKey.OP_READ, entry);
+			} else {
+				ShardEntries shardEntries = shards.get(shard);
+				if (shardEntries == null) {
+					shardEntries = new ShardEntries(shard);
+					shards.put(shard, shardEntries);
+					for (DatagramChannel channel:shard.getChannels())
+						channel.register(selector, SelectionKey.OP_READ, shardEntries);
+				}
+				shardEntries.entries[client.getSlot()] = entry;
+			}
+			entries.add(entry);
+		}
+
+		private void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		/*
+		 * Stops a client whose receive, send or timer failed and cancels its
+		 * timers and its key, so that the other clients of the worker keep
+		 * running. The client stays open and is reset by the next run.
+		 */
+		private void fail(Entry entry, Exception e) {
+			if (entry.failed)
+				return;
+			entry.failed = true;
+			if (failed.incrementAndGet() == 1)
+				e.printStackTrace();
+			else
+				System.err.println("Stop virtual client "+entry.client.getIndex()+": "+e);
+			entry.client.stop();
+			wheel.cancel(entry.timeout);
+			wheel.cancel(entry.expiry);
+			if (entry.client.getShard() == null) {
+				SelectionKey key = entry.client.getChannel().keyFor(selector);
+				if (key != null)
+					key.cancel();
+			}
+		}
+
+		/*
+		 * Receives the responses of a client and tops it up.
+		 */
+		private void receive(Entry entry) {
+			try {
+				entry.client.receiveAvailable(buffer);
+				if (entry.client.isRunning())
+					entry.fill();
+			} catch (Exception e) {
+				fail(entry, e);
+			}
+		}
+
+		/*
+		 * Tops up a client of a shard.
+		 */
+		private void fill(Entry entry) {
+			try {
+				if (entry.client.isRunning())
+					entry.fill();
+			} catch (Exception e) {
+				fail(entry, e);
+			}
+		}
+
+		public void run() {
+			try {
+				for (Entry entry:entries)
+					fill(entry);
+
+				while (running) {
+					long due = System.nanoTime() + SELECT_TIMEOUT * 1000000L;
+					long expiration = wheel.nextExpiration();
+					if (expiration != TimerWheel.NONE && expiration - due < 0)
+						due = expiration;
+					long remaining = due - System.nanoTime();
+					if (remaining > 0)
+						selector.select(Math.max(1, (remaining + 999999L) / 1000000L));
+					else
+						selector.selectNow();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.attachment() instanceof ShardEntries) {
+							receive((ShardEntries) key.attachment(), (DatagramChannel) key.channel());
+							continue;
+						}
+						receive((Entry) key.attachment());
+					}
+					wheel.advance(System.nanoTime());
+				}
+			} catch (Exception e) {
+				// the selector failed, all clients of the worker stop
+				e.printStackTrace();
+				for (Entry entry:entries) {
+					if (!entry.failed) {
+						entry.failed = true;
+						failed.incrementAndGet();
+						entry.client.stop();
+					}
+				}
+			} finally {
+				buffers.release(buffer);
+				try {
+					selector.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/*
+		 * Hands the datagrams of a socket of a shard to their clients and tops
+		 * up each client after its consecutive datagrams.
+		 */
+		private void receive(ShardEntries shard, DatagramChannel channel) throws IOException {
+			Entry previous = null;
+			int slot;
+			while (true) {
+				try {
+					slot = shard.shard.receive(channel, buffer);
+				} catch (SocketShard.ClientException e) {
+					fail(shard.entries[e.getSlot()], (Exception) e.getCause());
+					continue;
+				}
+				if (slot == SocketShard.EMPTY)
+					break;
+				Entry entry = slot >= 0 ? shard.entries[slot] : null;
+				if (entry == null || entry.failed)
+					continue;
+				if (previous != null && previous != entry)
+					fill(previous);
+				previous = entry;
+			}
+			if (previous != null)
+				fill(previous);
+		}
+	}
+}
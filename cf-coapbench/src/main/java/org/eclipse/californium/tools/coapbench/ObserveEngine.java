@@ -0,0 +1,1027 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
+import org.eclipse.californium.tools.coapbench.producer.MessageTemplate;
+
+/**
+ * The observe engine simulates many observable devices with a few threads
+ * instead of one {@link VirtualServer} with its own thread and socket per
+ * device. Each worker thread owns a {@link Selector} and a {@link TimerWheel}
+ * and drives the observe relations of its sockets as state machines:
+ * <ol>
+ * <li>The relation announces its resource with a POST of its URI to the
+ * observer, which is retransmitted every {@link #POST_TIMEOUT} up to
+ * {@link #POST_ATTEMPTS} times.</li>
+ * <li>It waits up to {@link #REGISTRATION_TIMEOUT} for the GET with Observe
+ * of the observer and answers it with a piggybacked 2.05 Content with
+ * Observe, which completes the registration.</li>
+ * <li>Once all relations are registered and the notifications are started,
+ * it notifies the observer. Without an {@link InterArrival} distribution, a
+ * relation sends confirmable notifications one after another as soon as the
+ * previous one is acknowledged, or non-confirmable notifications as fast as
+ * its socket accepts them. With a distribution, it notifies at the times
+ * drawn from it, but never has more than one confirmable notification in
+ * flight.</li>
+ * <li>When stopped, it cancels the relation with a 4.04 Not Found.</li>
+ * </ol>
+ * A relation whose send or timer fails is aborted, and a socket whose
+ * receive fails aborts its relations, while the other relations of the
+ * worker keep running, see {@link #getAborted()}.
+ * Several relations can share a socket. Their resources then have the path
+ * <code>/benchmark/SLOT</code> to tell their GETs apart, and the ACKs are
+ * matched by MID. A relation costs a few dozen bytes and a timeout, so that
+ * tens of thousands of relations need no more threads than cores.
+ * <p>
+ * The registrations and the notifications are measured separately: the
+ * latency of a registration is the time from the first POST to the GET of
+ * the observer, the latency of a confirmable notification the time to its
+ * ACK. The payload of each notification is a {@link DeliveryStamp}, so that
+ * the observer can account for the delivery of non-confirmable notifications.
+ */
+public class ObserveEngine {
+
+	public static final String RESOURCE = "benchmark";
+	public static final int POST_TIMEOUT = 1000; // [ms]
+	public static final int POST_ATTEMPTS = 10;
+	public static final int REGISTRATION_TIMEOUT = 5000; // [ms]
+	public static final int ACK_TIMEOUT = VirtualServer.TIMEOUT; // [ms]
+	public static final int SELECT_TIMEOUT = 100; // [ms]
+	public static final int MAX_RELATIONS_PER_SOCKET = 1 << 12;
+
+	private static final char NO_SLOT = 0xFFFF;
+	private static final int POSTING = 0;
+	private static final int REGISTERING = 1;
+	private static final int REGISTERED = 2;
+	private static final int NOTIFYING = 3;
+	private static final int FAILED = 4;
+	private static final int CANCELLED = 5;
+	private static final int ABORTED = 6;
+
+	private final UdpDataSerializer serializer = new UdpDataSerializer();
+	private final URI announce;
+	private final InetSocketAddress announceAddress;
+	private final InetSocketAddress bindAddr;
+	private final boolean confirmable;
+	private int threadCount = Runtime.getRuntime().availableProcessors();
+	private int relationsPerSocket = 1;
+	private InterArrival arrival;
+	private int precision = LatencyHistogram.DEFAULT_PRECISION;
+	private boolean checkLatency;
+	private ReceiveBufferPool buffers = ReceiveBufferPool.getDefault();
+	private long run;
+
+	private Worker[] workers;
+	private Thread[] threads;
+	private int relationCount;
+	private final AtomicInteger registered = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger aborted = new AtomicInteger();
+	private long start; // [ns]
+	private volatile long notifyStart; // [ns], 0 until the notifications start
+	private long notifyStop; // [ns]
+
+	/**
+	 * Creates an engine.
+	 *
+	 * @param announce the URI to which the relations POST their resources
+	 * @param bindAddr the local address of the sockets or null for any
+	 * @param confirmable whether the notifications are confirmable
+	 */
+	public ObserveEngine(URI announce, InetSocketAddress bindAddr, boolean confirmable) throws IOException {
+		this.announce = announce;
+		this.announceAddress = new InetSocketAddress(InetAddress.getByName(announce.getHost()), announce.getPort() != -1 ? announce.getPort() : 5683);
+		this.bindAddr = bindAddr;
+		this.confirmable = confirmable;
+	}
+
+	/**
+	 * Sets the number of worker threads. Must be set before the engine is
+	 * started.
+	 */
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1)
+			throw new IllegalArgumentException("Thread count must be positive");
+		this.threadCount = threadCount;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Sets the number of relations that share a socket. Must be set before
+	 * the engine is started.
+	 */
+	public void setRelationsPerSocket(int relationsPerSocket) {
+		if (relationsPerSocket < 1 || relationsPerSocket > MAX_RELATIONS_PER_SOCKET)
+			throw new IllegalArgumentException("Relations per socket must be between 1 and "+MAX_RELATIONS_PER_SOCKET);
+		this.relationsPerSocket = relationsPerSocket;
+	}
+
+	public int getRelationsPerSocket() {
+		return relationsPerSocket;
+	}
+
+	/**
+	 * Sets the distribution of the time between two notifications of each
+	 * relation or null to notify as fast as possible.
+	 */
+	public void setInterArrival(InterArrival arrival) {
+		this.arrival = arrival;
+	}
+
+	public void setPrecision(int precision) {
+		this.precision = precision;
+	}
+
+	/**
+	 * Measures the latency of the confirmable notifications. The latency of
+	 * the registrations is always measured.
+	 */
+	public void setCheckLatency(boolean checkLatency) {
+		this.checkLatency = checkLatency;
+	}
+
+	/**
+	 * Sets the run of the {@link DeliveryStamp} in the payload of the
+	 * notifications. The index of a relation is its relation in the stamp.
+	 */
+	public void setRun(long run) {
+		this.run = run;
+	}
+
+	public void setReceiveBuffers(ReceiveBufferPool buffers) {
+		this.buffers = buffers;
+	}
+
+	/**
+	 * Creates the sockets and relations and starts the registrations.
+	 *
+	 * @param relations the number of observe relations
+	 */
+	public void start(int relations) throws IOException {
+		int sockets = (relations + relationsPerSocket - 1) / relationsPerSocket;
+		int n = Math.max(1, Math.min(threadCount, sockets));
+		workers = new Worker[n];
+		relationCount = relations;
+		registered.set(0);
+		failed.set(0);
+		aborted.set(0);
+		notifyStart = 0;
+		start = System.nanoTime();
+		try {
+			for (int i=0;i<n;i++)
+				workers[i] = new Worker();
+			int index = 0;
+			for (int s=0;s<sockets;s++) {
+				int size = Math.min(relationsPerSocket, relations - index);
+				Endpoint endpoint = new Endpoint(size);
+				try {
+					workers[s % n].add(endpoint);
+				} catch (IOException | RuntimeException e) {
+					endpoint.close();
+					throw e;
+				}
+				for (int slot=0;slot<size;slot++)
+					endpoint.relations[slot] = new Relation(workers[s % n], endpoint, slot, index++);
+			}
+		} catch (IOException | RuntimeException e) {
+			for (Worker worker:workers)
+				if (worker != null)
+					worker.close();
+			workers = null;
+			throw e;
+		}
+		threads = new Thread[n];
+		for (int i=0;i<n;i++) {
+			workers[i].lastRegistration = start;
+			threads[i] = new Thread(workers[i], "ObserveEngine-"+i);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Lets all registered relations start to notify.
+	 */
+	public void startNotifications() {
+		notifyStart = System.nanoTime();
+		for (Worker worker:workers)
+			worker.selector.wakeup();
+	}
+
+	/**
+	 * Stops all workers, which cancel their relations, and waits until they
+	 * have finished so that the counters are stable.
+	 */
+	public void stop() {
+		if (threads == null)
+			return;
+		notifyStop = System.nanoTime();
+		for (Worker worker:workers)
+			worker.stop();
+		// the workers cancel their relations before they finish, only then
+		// are their counters and histograms safe to read
+		for (Thread thread:threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		threads = null;
+	}
+
+	public boolean isRunning() {
+		return threads != null;
+	}
+
+	public int getRelationCount() {
+		return relationCount;
+	}
+
+	/**
+	 * Returns the number of relations whose GET has been answered.
+	 */
+	public int getRegistered() {
+		return registered.get();
+	}
+
+	/**
+	 * Returns the number of relations that have given up on their POST or on
+	 * the GET of the observer.
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the time from the start to the last registration in
+	 * milliseconds.
+	 */
+	public float getRegistrationTime() {
+		long last = start;
+		for (Worker worker:workers)
+			if (worker.lastRegistration - last > 0)
+				last = worker.lastRegistration;
+		return (last - start) / 1000000f;
+	}
+
+	/**
+	 * Returns the registrations per second from the start to the last
+	 * registration.
+	 */
+	public float getRegistrationRate() {
+		float time = getRegistrationTime();
+		return time > 0 ? getRegistered() * 1000f / time : 0;
+	}
+
+	public LatencyHistogram getRegistrationLatencies() {
+		LatencyHistogram latencies = new LatencyHistogram(precision);
+		for (Worker worker:workers)
+			latencies.add(worker.registrationLatencies);
+		return latencies;
+	}
+
+	/**
+	 * Returns the time from the start of the notifications to the stop in
+	 * milliseconds.
+	 */
+	public float getNotificationTime() {
+		return notifyStart != 0 ? (notifyStop - notifyStart) / 1000000f : 0;
+	}
+
+	public long getNotifications() {
+		long sum = 0;
+		for (Worker worker:workers)
+			sum += worker.notifications;
+		return sum;
+	}
+
+	/**
+	 * Returns the number of relations that have sent at least one
+	 * notification. Must only be called once the engine has stopped.
+	 */
+	public int getNotifyingRelations() {
+		int sum = 0;
+		for (Worker worker:workers)
+			for (Endpoint endpoint:worker.endpoints)
+				for (Relation relation:endpoint.relations)
+					if (relation.sequence > 0)
+						sum++;
+		return sum;
+	}
+
+	public long getAcknowledged() {
+		long sum = 0;
+		for (Worker worker:workers)
+			sum += worker.acknowledged;
+		return sum;
+	}
+
+	public long getLost() {
+		long sum = 0;
+		for (Worker worker:workers)
+			sum += worker.lost;
+		return sum;
+	}
+
+	/**
+	 * Returns the number of relations that the engine aborted because their
+	 * send, receive or timer failed.
+	 */
+	public int getAborted() {
+		return aborted.get();
+	}
+
+	/**
+	 * Returns the number of relations the observer has cancelled with a
+	 * reset or a GET with Observe 1.
+	 */
+	public int getCancelled() {
+		int sum = 0;
+		for (Worker worker:workers)
+			sum += worker.cancelled;
+		return sum;
+	}
+
+	/**
+	 * Returns the latencies of the confirmable notifications or null if they
+	 * were not measured.
+	 */
+	public LatencyHistogram getAckLatencies() {
+		if (!checkLatency)
+			return null;
+		LatencyHistogram latencies = new LatencyHistogram(precision);
+		for (Worker worker:workers)
+			latencies.add(worker.ackLatencies);
+		return latencies;
+	}
+
+	/*
+	 * A socket and the relations that share it. With more than one relation,
+	 * the MIDs of the socket map to the relation that sent them.
+	 */
+	private static final class Endpoint {
+
+		private final DatagramChannel channel;
+		private final Relation[] relations;
+		private final char[] owners;
+		private int mid;
+		private long full; // the last pass of notifyUnlimited in which the socket was full
+
+		private Endpoint(int size) throws IOException {
+			this.channel = DatagramChannel.open();
+			this.relations = new Relation[size];
+			this.owners = size > 1 ? new char[1 << 16] : null;
+			this.mid = ThreadLocalRandom.current().nextInt(1 << 16);
+			if (owners != null)
+				Arrays.fill(owners, NO_SLOT);
+		}
+
+		private int nextMID(int slot) {
+			mid = (mid + 1) & 0xFFFF;
+			if (owners != null)
+				owners[mid] = (char) slot;
+			return mid;
+		}
+
+		private Relation owner(int mid) {
+			if (owners == null)
+				return relations[0];
+			char slot = owners[mid];
+			return slot != NO_SLOT ? relations[slot] : null;
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private final class Worker implements Runnable {
+
+		private final Selector selector;
+		private final TimerWheel wheel = new TimerWheel();
+		private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		private final List<Relation> unlimited = new ArrayList<Relation>();
+		private final LatencyHistogram registrationLatencies = new LatencyHistogram(precision);
+		private final LatencyHistogram ackLatencies = new LatencyHistogram(precision);
+		private final byte[] reply = new byte[4 + 8 + 1];
+		private ByteBuffer buffer;
+		private boolean notifying;
+		private int next; // the relation with which the next pass of notifyUnlimited starts
+		private long passes;
+		private volatile boolean running = true;
+		private volatile long lastRegistration;
+		private volatile long notifications;
+		private volatile long acknowledged;
+		private volatile long lost;
+		private volatile int cancelled;
+
+		private Worker() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		private void add(Endpoint endpoint) throws IOException {
+			endpoint.channel.configureBlocking(false);
+			endpoint.channel.bind(bindAddr);
+			endpoint.channel.register(selector, SelectionKey.OP_READ, endpoint);
+			endpoints.add(endpoint);
+		}
+
+		private void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		private void close() {
+			for (Endpoint endpoint:endpoints)
+				endpoint.close();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/*
+		 * Aborts a relation whose send or timer failed and cancels its
+		 * timeout, so that the other relations of the worker keep running.
+		 */
+		private void abort(Relation relation, Exception e) {
+			if (relation.state == ABORTED)
+				return;
+			relation.state = ABORTED;
+			wheel.cancel(relation.timeout);
+			if (aborted.incrementAndGet() == 1)
+				e.printStackTrace();
+			else
+				System.err.println("Abort observe relation "+relation.index+": "+e);
+		}
+
+		/*
+		 * Aborts the relations of a socket whose receive failed and cancels
+		 * its key.
+		 */
+		private void abort(Endpoint endpoint, Exception e) {
+			for (Relation relation:endpoint.relations)
+				abort(relation, e);
+			SelectionKey key = endpoint.channel.keyFor(selector);
+			if (key != null)
+				key.cancel();
+		}
+
+		public void run() {
+			buffer = buffers.acquire();
+			try {
+				long now = System.nanoTime();
+				for (Endpoint endpoint:endpoints) {
+					for (Relation relation:endpoint.relations) {
+						try {
+							relation.post(now);
+						} catch (Exception e) {
+							abort(relation, e);
+						}
+					}
+				}
+
+				while (running) {
+					if (!notifying && notifyStart != 0) {
+						notifying = true;
+						now = System.nanoTime();
+						for (Endpoint endpoint:endpoints) {
+							for (Relation relation:endpoint.relations) {
+								try {
+									relation.startNotifying(now);
+								} catch (Exception e) {
+									abort(relation, e);
+								}
+							}
+						}
+					}
+					if (notifying && !unlimited.isEmpty()) {
+						selector.selectNow();
+					} else {
+						long due = System.nanoTime() + SELECT_TIMEOUT * 1000000L;
+						long expiration = wheel.nextExpiration();
+						if (expiration != TimerWheel.NONE && expiration - due < 0)
+							due = expiration;
+						long remaining = due - System.nanoTime();
+						if (remaining > 0)
+							selector.select(Math.max(1, (remaining + 999999L) / 1000000L));
+						else
+							selector.selectNow();
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						receive((Endpoint) key.attachment());
+					}
+					wheel.advance(System.nanoTime());
+					if (notifying)
+						notifyUnlimited();
+				}
+			} catch (Exception e) {
+				// the selector failed, all relations of the worker stop
+				e.printStackTrace();
+				for (Endpoint endpoint:endpoints)
+					for (Relation relation:endpoint.relations)
+						if (relation.state != FAILED && relation.state != CANCELLED && relation.state != ABORTED)
+							aborted.incrementAndGet();
+			} finally {
+				for (Endpoint endpoint:endpoints)
+					for (Relation relation:endpoint.relations)
+						relation.cancel();
+				close();
+				buffers.release(buffer);
+			}
+		}
+
+		/*
+		 * Sends one notification of each relation that notifies as fast as
+		 * possible. Once the socket of an endpoint is full, its other relations
+		 * are skipped in this pass. Each pass starts one relation later, so
+		 * that no relation is always behind a full socket.
+		 */
+		private void notifyUnlimited() {
+			for (int i=0;i<unlimited.size();i++) {
+				Relation relation = unlimited.get(i);
+				if (relation.state != NOTIFYING) {
+					unlimited.set(i, unlimited.get(unlimited.size() - 1));
+					unlimited.remove(unlimited.size() - 1);
+					i--;
+				}
+			}
+			int size = unlimited.size();
+			if (size == 0)
+				return;
+			long pass = ++passes;
+			int first = next % size;
+			for (int i=0;i<size;i++) {
+				Relation relation = unlimited.get((first + i) % size);
+				if (relation.endpoint.full == pass || relation.state != NOTIFYING)
+					continue;
+				try {
+					if (!relation.notifyObserver(System.nanoTime()))
+						relation.endpoint.full = pass;
+				} catch (Exception e) {
+					abort(relation, e);
+				}
+			}
+			next = first + 1;
+		}
+
+		/*
+		 * Receives the datagrams of a socket. A failed receive aborts all
+		 * relations of the socket, a failed relation only itself.
+		 */
+		private void receive(Endpoint endpoint) {
+			try {
+				receiveAvailable(endpoint);
+			} catch (Exception e) {
+				abort(endpoint, e);
+			}
+		}
+
+		private void receiveAvailable(Endpoint endpoint) throws IOException {
+			while (true) {
+				buffer.clear();
+				SocketAddress source = endpoint.channel.receive(buffer);
+				if (source == null)
+					return;
+				int length = buffer.position();
+				byte[] bytes = buffer.array();
+				if (length < 4 || buffers.isTruncated(length) || (bytes[0] & 0xC0) != 0x40)
+					continue;
+				long now = System.nanoTime();
+				int type = (bytes[0] & 0x30) >> 4;
+				int code = bytes[1] & 0xFF;
+				int mid = (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+				if (type == Type.ACK.value || type == Type.RST.value) {
+					Relation relation = endpoint.owner(mid);
+					if (relation != null) {
+						try {
+							relation.acknowledged(type == Type.RST.value, mid, now);
+						} catch (Exception e) {
+							abort(relation, e);
+						}
+					}
+				} else if (code == Code.GET.value) {
+					int slot = endpoint.relations.length == 1 ? 0 : getPathSlot(bytes, length);
+					if (slot >= 0 && slot < endpoint.relations.length) {
+						Relation relation = endpoint.relations[slot];
+						try {
+							relation.observed(bytes, length, (InetSocketAddress) source, now);
+						} catch (Exception e) {
+							abort(relation, e);
+						}
+					}
+				} else if (code >= 0x40) {
+					// a separate response to the POST carries the slot as token
+					if (type == Type.CON.value)
+						reply(endpoint, bytes, Type.ACK, (InetSocketAddress) source);
+					int slot = (bytes[0] & 0x0F) == 2 && length >= 6 ? (bytes[4] & 0xFF) << 8 | (bytes[5] & 0xFF) : -1;
+					if (slot >= 0 && slot < endpoint.relations.length)
+						endpoint.relations[slot].posted(now);
+				}
+			}
+		}
+
+		/*
+		 * Sends an empty ACK or RST for the specified message.
+		 */
+		private void reply(Endpoint endpoint, byte[] message, Type type, InetSocketAddress destination) throws IOException {
+			byte[] empty = new byte[4];
+			empty[0] = (byte) (0x40 | type.value << 4);
+			empty[2] = message[2];
+			empty[3] = message[3];
+			endpoint.channel.send(ByteBuffer.wrap(empty), destination);
+		}
+	}
+
+	/*
+	 * Returns the number in the last Uri-Path segment of a request, e.g., the
+	 * slot in /benchmark/7, or -1 if it has none.
+	 */
+	private static int getPathSlot(byte[] bytes, int length) {
+		int slot = -1;
+		int index = 4 + (bytes[0] & 0x0F);
+		int number = 0;
+		while (index < length && bytes[index] != (byte) 0xFF) {
+			int header = bytes[index++] & 0xFF;
+			int delta = header >> 4;
+			int optionLength = header & 0x0F;
+			if (delta == 13)
+				delta = 13 + (bytes[index++] & 0xFF);
+			else if (delta == 14)
+				return slot; // beyond Uri-Path
+			if (optionLength == 13)
+				optionLength = 13 + (bytes[index++] & 0xFF);
+			else if (optionLength == 14)
+				optionLength = 269 + ((bytes[index++] & 0xFF) << 8 | (bytes[index++] & 0xFF));
+			number += delta;
+			if (number > OptionNumberRegistry.URI_PATH)
+				return slot;
+			if (number == OptionNumberRegistry.URI_PATH) {
+				slot = optionLength > 0 ? 0 : -1;
+				for (int i=index;i<index+optionLength && i<length;i++) {
+					int digit = bytes[i] - '0';
+					if (digit < 0 || digit > 9) {
+						slot = -1;
+						break;
+					}
+					slot = slot * 10 + digit;
+				}
+			}
+			index += optionLength;
+		}
+		return slot;
+	}
+
+	/*
+	 * Returns the value of the Observe option of a request, or -1 if it has
+	 * none.
+	 */
+	private static int getObserve(byte[] bytes, int length) {
+		int index = 4 + (bytes[0] & 0x0F);
+		int number = 0;
+		while (index < length && bytes[index] != (byte) 0xFF) {
+			int header = bytes[index++] & 0xFF;
+			int delta = header >> 4;
+			int optionLength = header & 0x0F;
+			if (delta >= 13)
+				return -1; // beyond Observe
+			if (optionLength == 13)
+				optionLength = 13 + (bytes[index++] & 0xFF);
+			else if (optionLength == 14)
+				optionLength = 269 + ((bytes[index++] & 0xFF) << 8 | (bytes[index++] & 0xFF));
+			number += delta;
+			if (number > OptionNumberRegistry.OBSERVE)
+				return -1;
+			if (number == OptionNumberRegistry.OBSERVE) {
+				int value = 0;
+				for (int i=0;i<optionLength && index+i<length;i++)
+					value = value << 8 | (bytes[index+i] & 0xFF);
+				return value;
+			}
+			index += optionLength;
+		}
+		return -1;
+	}
+
+	/*
+	 * The state machine of one observe relation. It only runs in the thread
+	 * of its worker.
+	 */
+	private final class Relation implements TimerWheel.Task {
+
+		private final Worker worker;
+		private final Endpoint endpoint;
+		private final int slot;
+		private final int index;
+		private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this);
+		private int state;
+		private int attempts;
+		private long postStart;
+		private int postMID;
+		private byte[] post;
+		private InetSocketAddress observer;
+		private MessageTemplate notification;
+		private int sequence;
+		private boolean awaitingAck;
+		private int ackMID;
+		private long sent;
+		private long nextNotify;
+
+		private Relation(Worker worker, Endpoint endpoint, int slot, int index) {
+			this.worker = worker;
+			this.endpoint = endpoint;
+			this.slot = slot;
+			this.index = index;
+		}
+
+		/*
+		 * Announces the resource of the relation to the observer.
+		 */
+		private void post(long now) throws IOException {
+			int port = ((InetSocketAddress) endpoint.channel.getLocalAddress()).getPort();
+			String host = bindAddr != null ? bindAddr.getHostString() : "127.0.0.1";
+			Request request = new Request(Code.POST);
+			request.setPayload("coap://" + host + ":" + port + "/" + RESOURCE + (endpoint.relations.length > 1 ? "/" + slot : ""));
+			request.setToken(new byte[] { (byte) (slot >> 8), (byte) slot });
+			request.setMID(0);
+			request.setType(Type.CON);
+			request.setURI(announce);
+			post = serializer.serializeRequest(request).getBytes();
+			state = POSTING;
+			attempts = 0;
+			postStart = now;
+			sendPost(now);
+		}
+
+		private void sendPost(long now) throws IOException {
+			postMID = endpoint.nextMID(slot);
+			post[2] = (byte) (postMID >> 8);
+			post[3] = (byte) postMID;
+			attempts++;
+			endpoint.channel.send(ByteBuffer.wrap(post), announceAddress);
+			worker.wheel.schedule(timeout, now + POST_TIMEOUT * 1000000L);
+		}
+
+		/*
+		 * The observer has answered the POST, now its GET is due.
+		 */
+		private void posted(long now) {
+			if (state != POSTING)
+				return;
+			state = REGISTERING;
+			post = null;
+			worker.wheel.schedule(timeout, now + REGISTRATION_TIMEOUT * 1000000L);
+		}
+
+		/*
+		 * Answers a GET of the observer. Observe 0 registers or, if repeated,
+		 * refreshes the relation, Observe 1 cancels it.
+		 */
+		private void observed(byte[] bytes, int length, InetSocketAddress source, long now) throws IOException {
+			int observe = getObserve(bytes, length);
+			if (observe == 1) {
+				cancelled();
+				return;
+			}
+			if (observe != 0 || state == FAILED || state == CANCELLED || state == ABORTED)
+				return;
+			int tokenLength = bytes[0] & 0x0F;
+			if (tokenLength > 8 || length < 4 + tokenLength)
+				return;
+			long token = 0;
+			for (int i=0;i<tokenLength;i++)
+				token = token << 8 | (bytes[4 + i] & 0xFF);
+			if (state == POSTING || state == REGISTERING) {
+				worker.wheel.cancel(timeout);
+				worker.registrationLatencies.record((now - postStart) / 1000);
+				worker.lastRegistration = now;
+				registered.incrementAndGet();
+				state = REGISTERED;
+				post = null;
+			}
+			observer = source;
+			Response response = new Response(ResponseCode.CONTENT);
+			response.setType(confirmable ? Type.CON : Type.NON);
+			response.setToken(new byte[tokenLength]);
+			response.setMID(0);
+			response.getOptions().setObserve(0);
+			response.setPayload(DeliveryStamp.PAYLOAD);
+			notification = new MessageTemplate(response, DeliveryStamp.DIGITS);
+			notification.setToken(token);
+
+			// piggybacked 2.05 with Observe 0, e.g., 0x60 0x45 MID TOKEN 0x60
+			byte[] reply = worker.reply;
+			boolean con = ((bytes[0] & 0x30) >> 4) == Type.CON.value;
+			reply[0] = (byte) (0x40 | (con ? Type.ACK.value : Type.NON.value) << 4 | tokenLength);
+			reply[1] = (byte) ResponseCode.CONTENT.value;
+			int mid = con ? (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF) : endpoint.nextMID(slot);
+			reply[2] = (byte) (mid >> 8);
+			reply[3] = (byte) mid;
+			System.arraycopy(bytes, 4, reply, 4, tokenLength);
+			reply[4 + tokenLength] = (byte) (OptionNumberRegistry.OBSERVE << 4); // Observe 0 is empty
+			endpoint.channel.send(ByteBuffer.wrap(reply, 0, 5 + tokenLength), observer);
+			if (worker.notifying && state == REGISTERED)
+				startNotifying(now);
+		}
+
+		private void startNotifying(long now) throws IOException {
+			if (state != REGISTERED)
+				return;
+			state = NOTIFYING;
+			sequence = 0;
+			if (arrival != null) {
+				// spread the first notifications of all relations over one period
+				nextNotify = now + ThreadLocalRandom.current().nextLong(Math.max(1, arrival.getMean()));
+				worker.wheel.schedule(timeout, nextNotify);
+			} else if (confirmable) {
+				notifyObserver(now);
+			} else {
+				worker.unlimited.add(this);
+			}
+		}
+
+		/*
+		 * Sends the next notification and returns false if the socket is
+		 * full.
+		 */
+		private boolean notifyObserver(long now) throws IOException {
+			int mid = endpoint.nextMID(slot);
+			notification.setMID(mid);
+			notification.setObserve(++sequence);
+			DeliveryStamp.stamp(notification, run, index, sequence);
+			if (endpoint.channel.send(ByteBuffer.wrap(notification.getBytes()), observer) == 0) {
+				// retry a confirmable notification once the socket has room
+				sequence--;
+				if (confirmable)
+					worker.wheel.schedule(timeout, now + 1000000L);
+				return false;
+			}
+			worker.notifications++;
+			if (confirmable) {
+				awaitingAck = true;
+				ackMID = mid;
+				sent = now;
+				worker.wheel.schedule(timeout, now + ACK_TIMEOUT * 1000000L);
+			}
+			return true;
+		}
+
+		/*
+		 * Handles an ACK or RST from the announce server or the observer.
+		 */
+		private void acknowledged(boolean reset, int mid, long now) throws IOException {
+			if (state == POSTING) {
+				if (mid == postMID)
+					posted(now);
+				return;
+			}
+			if (reset) {
+				if (state == NOTIFYING || state == REGISTERED)
+					cancelled();
+				return;
+			}
+			if (state != NOTIFYING || !awaitingAck || mid != ackMID)
+				return;
+			awaitingAck = false;
+			worker.acknowledged++;
+			if (checkLatency)
+				worker.ackLatencies.record((now - sent) / 1000);
+			next(now);
+		}
+
+		/*
+		 * Schedules or sends the next confirmable notification after the ACK
+		 * or the loss of the last one.
+		 */
+		private void next(long now) throws IOException {
+			if (arrival == null) {
+				notifyObserver(now);
+			} else if (nextNotify - now > 0) {
+				worker.wheel.schedule(timeout, nextNotify);
+			} else {
+				notifyObserver(now);
+				nextNotify += arrival.next(ThreadLocalRandom.current());
+			}
+		}
+
+		public void expired(long now) {
+			try {
+				expire(now);
+			} catch (Exception e) {
+				worker.abort(this, e);
+			}
+		}
+
+		private void expire(long now) throws IOException {
+			switch (state) {
+			case POSTING:
+				if (attempts < POST_ATTEMPTS) {
+					sendPost(now);
+					return;
+				}
+				// fall through
+			case REGISTERING:
+				state = FAILED;
+				post = null;
+				failed.incrementAndGet();
+				return;
+			case NOTIFYING:
+				if (awaitingAck) {
+					awaitingAck = false;
+					worker.lost++;
+					next(now);
+				} else if (arrival == null) {
+					notifyObserver(now);
+				} else {
+					notifyObserver(now);
+					nextNotify += arrival.next(ThreadLocalRandom.current());
+					if (!awaitingAck)
+						worker.wheel.schedule(timeout, nextNotify);
+				}
+				return;
+			default:
+				return;
+			}
+		}
+
+		private void cancelled() {
+			if (state == CANCELLED || state == ABORTED)
+				return;
+			state = CANCELLED;
+			worker.wheel.cancel(timeout);
+			worker.cancelled++;
+		}
+
+		/*
+		 * Ends the relation with a 4.04 Not Found, like a device that removes
+		 * its resource.
+		 */
+		private void cancel() {
+			if (state != REGISTERED && state != NOTIFYING)
+				return;
+			state = CANCELLED;
+			try {
+				byte[] bytes = notification.getBytes();
+				int tokenLength = bytes[0] & 0x0F;
+				byte[] notFound = Arrays.copyOf(bytes, 4 + tokenLength);
+				notFound[0] = (byte) (0x40 | Type.NON.value << 4 | tokenLength);
+				notFound[1] = (byte) ResponseCode.NOT_FOUND.value;
+				int mid = endpoint.nextMID(slot);
+				notFound[2] = (byte) (mid >> 8);
+				notFound[3] = (byte) mid;
+				endpoint.channel.send(ByteBuffer.wrap(notFound), observer);
+			} catch (IOException e) {
+				System.err.println("Observe relation "+index+" could not be cancelled: "+e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of receive buffers of a configurable size. Each buffer has one byte
+ * more than the size, so that a datagram that fills the whole buffer is known
+ * to be larger than the size and thus truncated, see
+ * {@link #isTruncated(int)}. Without this byte, the socket would silently
+ * drop the rest of a large response and the response would look complete.
+ * <p>
+ * A threaded device takes a buffer while it runs and returns it when it
+ * stops, a worker of the {@link NioClientEngine} takes one buffer for all its
+ * clients. The buffers are reused by the next run. The pool is thread-safe.
+ */
+public class ReceiveBufferPool {
+
+	/** The default size, which fits any CoAP message that avoids IP fragmentation */
+	public static final int DEFAULT_SIZE = 1152; // [bytes]
+
+	/** The maximum size, which fits any UDP datagram */
+	public static final int MAX_SIZE = 65507; // [bytes]
+
+	private static final ReceiveBufferPool DEFAULT = new ReceiveBufferPool(DEFAULT_SIZE);
+
+	private final int size;
+	private final ConcurrentLinkedQueue<ByteBuffer> free;
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param size the largest datagram that is received completely
+	 */
+	public ReceiveBufferPool(int size) {
+		if (size < 4 || size > MAX_SIZE)
+			throw new IllegalArgumentException("Receive buffer size must be between 4 and "+MAX_SIZE);
+		this.size = size;
+		this.free = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	/**
+	 * Returns the pool of the default size that devices use unless they are
+	 * given another one.
+	 */
+	public static ReceiveBufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Takes a buffer from the pool or allocates a new one.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null)
+			buffer = allocate();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer != null && buffer.capacity() == size + 1)
+			free.add(buffer);
+	}
+
+	/**
+	 * Allocates a buffer of this size outside of the pool.
+	 */
+	public ByteBuffer allocate() {
+		return ByteBuffer.allocate(size + 1);
+	}
+
+	/**
+	 * Returns whether a datagram of the received length has been truncated.
+	 */
+	public boolean isTruncated(int length) {
+		return length > size;
+	}
+
+	public int getSize() {
+		return size;
+	}
+}
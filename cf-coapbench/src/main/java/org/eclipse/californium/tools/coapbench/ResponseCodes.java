@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+/**
+ * Counts the responses of a virtual client per response code. Resets (RST)
+ * are counted in the slot of code 0, which is never used by a response. Every
+ * response that is not a success (2.xx) is an error.
+ * <p>
+ * Each client has its own counters and is their only writer, so counting
+ * needs neither locks nor atomic operations. Like {@link LatencyHistogram},
+ * the counters of several clients are aggregated with {@link #add} and the
+ * warm-up is removed with {@link #subtract}.
+ */
+public class ResponseCodes {
+
+	private static final int RESET = 0;
+
+	private final int[] counts = new int[256];
+
+	/**
+	 * Counts a response.
+	 *
+	 * @param code the code byte of the response
+	 */
+	public void record(int code) {
+		counts[code & 0xFF]++;
+	}
+
+	/**
+	 * Counts a reset.
+	 */
+	public void recordReset() {
+		counts[RESET]++;
+	}
+
+	public int getCount(int code) {
+		return counts[code & 0xFF];
+	}
+
+	public int getResets() {
+		return counts[RESET];
+	}
+
+	/**
+	 * Returns the number of responses and resets.
+	 */
+	public long getTotal() {
+		long total = 0;
+		for (int count:counts)
+			total += count;
+		return total;
+	}
+
+	/**
+	 * Returns the number of responses that are not a success and resets.
+	 */
+	public long getErrors() {
+		long errors = 0;
+		for (int code=0;code<counts.length;code++)
+			if (!isSuccess(code))
+				errors += counts[code];
+		return errors;
+	}
+
+	public static boolean isSuccess(int code) {
+		return (code & 0xFF) >> 5 == 2;
+	}
+
+	public void add(ResponseCodes other) {
+		for (int i=0;i<counts.length;i++)
+			counts[i] += other.counts[i];
+	}
+
+	public void subtract(ResponseCodes snapshot) {
+		for (int i=0;i<counts.length;i++)
+			counts[i] -= snapshot.counts[i];
+	}
+
+	/**
+	 * Resets all counters. Must not be called while the client is running.
+	 */
+	public void reset() {
+		for (int i=0;i<counts.length;i++)
+			counts[i] = 0;
+	}
+
+	/**
+	 * Returns the name of a code, e.g., 5.03, or RST for resets.
+	 */
+	public static String name(int code) {
+		if ((code & 0xFF) == RESET)
+			return "RST";
+		return String.format("%d.%02d", (code & 0xFF) >> 5, code & 0x1F);
+	}
+
+	/**
+	 * Returns the codes that occurred with their counts, e.g.,
+	 * "2.05=1000, 5.03=12, RST=1".
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (int code=1;code<=counts.length;code++) {
+			// list the resets last
+			int i = code & 0xFF;
+			if (counts[i] != 0) {
+				if (builder.length() > 0)
+					builder.append(", ");
+				builder.append(name(i)).append('=').append(counts[i]);
+			}
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,346 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Exports the benchmark results in machine-readable formats next to the log
+ * file:
+ * <ul>
+ * <li>{@link Format#JSON}: one JSON object per line for each run summary and
+ * each interval snapshot (NAME.json)</li>
+ * <li>{@link Format#CSV}: the run summaries (NAME.csv) and the interval
+ * snapshots (NAME_interval.csv) with a header line</li>
+ * <li>{@link Format#HLOG}: the full latency distributions as HdrHistogram log
+ * (NAME.hlog) with one compressed histogram per interval snapshot and one per
+ * run tagged with "summary"</li>
+ * </ul>
+ * All files are written by an {@link AsyncWriter}. Numbers are formatted
+ * independent of the default locale.
+ */
+public class ResultExporter {
+
+	public enum Format {
+		JSON, CSV, HLOG;
+
+		/**
+		 * Parses a comma separated list of formats, e.g., json,csv,hlog.
+		 */
+		public static Set<Format> parse(String formats) {
+			Set<Format> set = EnumSet.noneOf(Format.class);
+			for (String format:formats.split(","))
+				if (!format.trim().isEmpty())
+					set.add(valueOf(format.trim().toUpperCase(Locale.ROOT)));
+			return set;
+		}
+	}
+
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private final String name;
+	private final LatencyUnit unit;
+	private final double[] percentiles;
+	private final long start; // [ms]
+
+	private AsyncWriter json;
+	private AsyncWriter csv;
+	private AsyncWriter intervalCsv;
+	private AsyncWriter hlog;
+
+	/**
+	 * Creates the exporter and the files for the specified formats.
+	 *
+	 * @param name the name of the files without extension
+	 * @param formats the formats to export
+	 * @param unit the unit of the latencies
+	 * @param percentiles the percentiles of the run summaries
+	 */
+	public ResultExporter(String name, Set<Format> formats, LatencyUnit unit, double[] percentiles) throws IOException {
+		this.name = name;
+		this.unit = unit;
+		this.percentiles = percentiles;
+		this.start = System.currentTimeMillis();
+		if (formats.contains(Format.JSON))
+			json = new AsyncWriter(LogFile.createLogFile(name + ".json"));
+		if (formats.contains(Format.CSV)) {
+			csv = new AsyncWriter(LogFile.createLogFile(name + ".csv"));
+			StringBuilder header = new StringBuilder("timestamp,uri,concurrency,time,completed,timeouts,throughput");
+			String symbol = unit.getSymbol();
+			header.append(",min_").append(symbol).append(",mean_").append(symbol).append(",stdev_").append(symbol);
+			for (double percentile:percentiles)
+				header.append(",").append(key(percentile)).append("_").append(symbol);
+			header.append(",max_").append(symbol).append("\n");
+			csv.write(header.toString());
+		}
+		if (formats.contains(Format.HLOG)) {
+			hlog = new AsyncWriter(LogFile.createLogFile(name + ".hlog"));
+			String date = new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.ROOT).format(new Date(start));
+			hlog.write("#[Logged with CoAPBench]\n");
+			hlog.write("#[Histogram log format version 1.3]\n");
+			hlog.write(String.format(Locale.ROOT, "#[StartTime: %.3f (seconds since epoch), %s]\n", start / 1000d, date));
+			hlog.write(String.format(Locale.ROOT, "#[BaseTime: %.3f (seconds since epoch)]\n", start / 1000d));
+			hlog.write("\"StartTimestamp\",\"Interval_Length\",\"Interval_Max\",\"Interval_Compressed_Histogram\"\n");
+		}
+	}
+
+	/**
+	 * Exports the summary of a run.
+	 */
+	public void summary(BenchmarkResult result) {
+		LatencyHistogram latencies = result.hasLatencies() ? result.getLatencies() : null;
+		if (json != null) {
+			StringBuilder line = new StringBuilder("{\"type\":\"summary\"");
+			line.append(",\"timestamp\":").append(result.getTimestamp());
+			line.append(",\"uri\":\"").append(escape(result.getURI())).append("\"");
+			line.append(",\"concurrency\":").append(result.getConcurrency());
+			line.append(",\"time\":").append(number(result.getTime() / 1000f));
+			line.append(",\"completed\":").append(result.getCompleted());
+			line.append(",\"timeouts\":").append(result.getTimeouts());
+			line.append(",\"throughput\":").append(number(result.getThroughput()));
+			if (result.getBytes() > 0) {
+				line.append(",\"bytes\":").append(result.getBytes());
+				line.append(",\"goodput\":").append(number(result.getGoodput()));
+				line.append(",\"truncated\":").append(result.getTruncated());
+			}
+			if (result.getResponseCodes() != null) {
+				line.append(",\"errors\":").append(result.getErrors());
+				line.append(",\"aborted\":").append(result.isAborted());
+				line.append(",\"response_codes\":{");
+				ResponseCodes codes = result.getResponseCodes();
+				String separator = "";
+				for (int code=0;code<256;code++) {
+					if (codes.getCount(code) != 0) {
+						line.append(separator).append("\"").append(ResponseCodes.name(code)).append("\":").append(codes.getCount(code));
+						separator = ",";
+					}
+				}
+				line.append("}");
+			}
+			if (result.getFirstTryLatencies() != null)
+				line.append(",\"retransmissions\":").append(result.getRetransmissions());
+			if (result.getBlockLatencies() != null) {
+				line.append(",\"blocks\":").append(result.getBlocks());
+				line.append(",\"blocks_per_transfer\":").append(number(result.getBlocksPerTransfer()));
+			}
+			if (result.getHandshakeLatencies() != null) {
+				line.append(",\"handshakes\":").append(result.getHandshakes());
+				line.append(",\"resumptions\":").append(result.getResumptions());
+				line.append(",\"record_throughput\":").append(number(result.getRecordThroughput()));
+			}
+			if (result.getRegistrationLatencies() != null) {
+				line.append(",\"registrations\":").append(result.getRegistrations());
+				line.append(",\"registration_failures\":").append(result.getRegistrationFailures());
+				line.append(",\"registration_rate\":").append(number(result.getRegistrationRate()));
+			}
+			if (result.getOneWayLatencies() != null) {
+				line.append(",\"sent\":").append(result.getSent());
+				line.append(",\"delivered\":").append(result.getDelivered());
+				line.append(",\"undelivered\":").append(result.getUndelivered());
+				line.append(",\"reordered\":").append(result.getReordered());
+				line.append(",\"duplicates\":").append(result.getDuplicates());
+				line.append(",\"silent_relations\":").append(result.getSilentRelations());
+			}
+			if (result.getKernelDrops() > 0)
+				line.append(",\"kernel_drops\":").append(result.getKernelDrops());
+			if (result.getFailedClients() > 0)
+				line.append(",\"failed_clients\":").append(result.getFailedClients());
+			if (latencies != null)
+				appendLatencies(line, "latency", latencies);
+			if (result.getFirstTryLatencies() != null && !result.getFirstTryLatencies().isEmpty())
+				appendLatencies(line, "latency_first_try", result.getFirstTryLatencies());
+			if (result.getBlockLatencies() != null && !result.getBlockLatencies().isEmpty())
+				appendLatencies(line, "latency_block", result.getBlockLatencies());
+			if (result.getHandshakeLatencies() != null && !result.getHandshakeLatencies().isEmpty())
+				appendLatencies(line, "latency_handshake", result.getHandshakeLatencies());
+			if (result.getResumptionLatencies() != null && !result.getResumptionLatencies().isEmpty())
+				appendLatencies(line, "latency_resumption", result.getResumptionLatencies());
+			if (result.getRegistrationLatencies() != null && !result.getRegistrationLatencies().isEmpty())
+				appendLatencies(line, "latency_registration", result.getRegistrationLatencies());
+			if (result.getOneWayLatencies() != null && !result.getOneWayLatencies().isEmpty())
+				appendLatencies(line, "latency_one_way", result.getOneWayLatencies());
+			if (result.getClasses() != null) {
+				line.append(",\"classes\":{");
+				String separator = "";
+				for (Map.Entry<String, BenchmarkResult> entry:result.getClasses().entrySet()) {
+					BenchmarkResult c = entry.getValue();
+					line.append(separator).append("\"").append(escape(entry.getKey())).append("\":{");
+					line.append("\"uri\":\"").append(escape(c.getURI())).append("\"");
+					line.append(",\"completed\":").append(c.getCompleted());
+					line.append(",\"timeouts\":").append(c.getTimeouts());
+					line.append(",\"throughput\":").append(number(c.getThroughput()));
+					line.append(",\"errors\":").append(c.getErrors());
+					if (c.hasLatencies())
+						appendLatencies(line, "latency", c.getLatencies());
+					line.append("}");
+					separator = ",";
+				}
+				line.append("}");
+			}
+			json.write(line.append("}\n").toString());
+		}
+		if (csv != null) {
+			StringBuilder line = new StringBuilder();
+			line.append(result.getTimestamp());
+			line.append(",\"").append(result.getURI().replace("\"", "\"\"")).append("\"");
+			line.append(",").append(result.getConcurrency());
+			line.append(",").append(number(result.getTime() / 1000f));
+			line.append(",").append(result.getCompleted());
+			line.append(",").append(result.getTimeouts());
+			line.append(",").append(number(result.getThroughput()));
+			if (latencies != null) {
+				line.append(",").append(latency(latencies.getMin()));
+				line.append(",").append(latency(latencies.getMean()));
+				line.append(",").append(latency(latencies.getStdDeviation()));
+				for (double percentile:percentiles)
+					line.append(",").append(latency(latencies.getValueAtPercentile(percentile)));
+				line.append(",").append(latency(latencies.getMax()));
+			} else {
+				for (int i=0;i<percentiles.length+4;i++)
+					line.append(",");
+			}
+			csv.write(line.append("\n").toString());
+		}
+		if (hlog != null && latencies != null)
+			histogram("summary-c" + result.getConcurrency(), result.getTimestamp() - (long) result.getTime(), result.getTime(), latencies);
+	}
+
+	/**
+	 * Exports an interval snapshot.
+	 *
+	 * @param elapsed the time since the start of the run in seconds
+	 * @param length the length of the interval in milliseconds
+	 * @param completed the requests completed in the interval
+	 * @param timeouts the timeouts in the interval
+	 * @param latencies the latencies of the interval
+	 */
+	public void interval(float elapsed, float length, long completed, long timeouts, LatencyHistogram latencies) {
+		long timestamp = System.currentTimeMillis();
+		float throughput = completed * 1000L / length;
+		boolean hasLatencies = !latencies.isEmpty();
+		if (json != null) {
+			StringBuilder line = new StringBuilder("{\"type\":\"interval\"");
+			line.append(",\"timestamp\":").append(timestamp);
+			line.append(",\"elapsed\":").append(number(elapsed));
+			line.append(",\"completed\":").append(completed);
+			line.append(",\"timeouts\":").append(timeouts);
+			line.append(",\"throughput\":").append(number(throughput));
+			if (hasLatencies) {
+				line.append(",\"latency\":{\"unit\":\"").append(unit.getSymbol()).append("\"");
+				line.append(",\"p50\":").append(latency(latencies.getValueAtPercentile(50)));
+				line.append(",\"p99\":").append(latency(latencies.getValueAtPercentile(99)));
+				line.append(",\"max\":").append(latency(latencies.getMax())).append("}");
+			}
+			json.write(line.append("}\n").toString());
+		}
+		if (csv != null) {
+			if (intervalCsv == null) {
+				try {
+					intervalCsv = new AsyncWriter(LogFile.createLogFile(name + "_interval.csv"));
+				} catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+				String symbol = unit.getSymbol();
+				intervalCsv.write("timestamp,elapsed,completed,timeouts,throughput,p50_"+symbol+",p99_"+symbol+",max_"+symbol+"\n");
+			}
+			StringBuilder line = new StringBuilder();
+			line.append(timestamp);
+			line.append(",").append(number(elapsed));
+			line.append(",").append(completed);
+			line.append(",").append(timeouts);
+			line.append(",").append(number(throughput));
+			if (hasLatencies) {
+				line.append(",").append(latency(latencies.getValueAtPercentile(50)));
+				line.append(",").append(latency(latencies.getValueAtPercentile(99)));
+				line.append(",").append(latency(latencies.getMax()));
+			} else {
+				line.append(",,,");
+			}
+			intervalCsv.write(line.append("\n").toString());
+		}
+		if (hlog != null && hasLatencies)
+			histogram(null, timestamp - (long) length, length, latencies);
+	}
+
+	/**
+	 * Writes all exported results and closes the files.
+	 */
+	public void close() {
+		if (json != null) json.close();
+		if (csv != null) csv.close();
+		if (intervalCsv != null) intervalCsv.close();
+		if (hlog != null) hlog.close();
+	}
+
+	private void histogram(String tag, long timestamp, float length, LatencyHistogram latencies) {
+		StringBuilder line = new StringBuilder();
+		if (tag != null)
+			line.append("Tag=").append(tag).append(",");
+		line.append(String.format(Locale.ROOT, "%.3f,%.3f,%.3f,", (timestamp - start) / 1000d, length / 1000f, latencies.getMax() / 1000d));
+		line.append(base64(latencies.toCompressedByteArray()));
+		hlog.write(line.append("\n").toString());
+	}
+
+	private String latency(double micros) {
+		return unit.format(Locale.ROOT, micros);
+	}
+
+	private void appendLatencies(StringBuilder line, String name, LatencyHistogram latencies) {
+		line.append(",\"").append(name).append("\":{\"unit\":\"").append(unit.getSymbol()).append("\"");
+		line.append(",\"min\":").append(latency(latencies.getMin()));
+		line.append(",\"mean\":").append(latency(latencies.getMean()));
+		line.append(",\"stdev\":").append(latency(latencies.getStdDeviation()));
+		for (double percentile:percentiles)
+			line.append(",\"").append(key(percentile)).append("\":").append(latency(latencies.getValueAtPercentile(percentile)));
+		line.append(",\"max\":").append(latency(latencies.getMax())).append("}");
+	}
+
+	private static String number(float value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static String key(double percentile) {
+		if (percentile == Math.rint(percentile))
+			return "p" + (long) percentile;
+		return "p" + String.format(Locale.ROOT, "%.2f", percentile);
+	}
+
+	private static String escape(String text) {
+		return text.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static String base64(byte[] data) {
+		StringBuilder text = new StringBuilder((data.length + 2) / 3 * 4);
+		for (int i=0;i<data.length;i+=3) {
+			int b = (data[i] & 0xFF) << 16;
+			if (i+1 < data.length) b |= (data[i+1] & 0xFF) << 8;
+			if (i+2 < data.length) b |= data[i+2] & 0xFF;
+			text.append(BASE64[b >>> 18 & 0x3F]);
+			text.append(BASE64[b >>> 12 & 0x3F]);
+			text.append(i+1 < data.length ? BASE64[b >>> 6 & 0x3F] : '=');
+			text.append(i+2 < data.length ? BASE64[b & 0x3F] : '=');
+		}
+		return text.toString();
+	}
+}
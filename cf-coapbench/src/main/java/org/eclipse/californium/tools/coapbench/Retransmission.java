@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+/**
+ * The retransmission parameters of confirmable requests as defined in RFC 7252,
+ * Section 4.8. The initial timeout of an exchange is a random duration between
+ * ACK_TIMEOUT and ACK_TIMEOUT * ACK_RANDOM_FACTOR and doubles with every
+ * retransmission. After MAX_RETRANSMIT retransmissions and the last timeout,
+ * the request is lost.
+ * <p>
+ * The random factor of an exchange is derived from its key, e.g., the token,
+ * so that the whole schedule can be computed from the key and the time of the
+ * first transmission without keeping any state per request.
+ */
+public class Retransmission {
+
+	public static final int DEFAULT_ACK_TIMEOUT = 2000; // [ms]
+	public static final double DEFAULT_ACK_RANDOM_FACTOR = 1.5;
+	public static final int DEFAULT_MAX_RETRANSMIT = 4;
+
+	private final long ackTimeout; // [ns]
+	private final double ackRandomFactor;
+	private final int maxRetransmit;
+
+	public Retransmission() {
+		this(DEFAULT_ACK_TIMEOUT, DEFAULT_ACK_RANDOM_FACTOR, DEFAULT_MAX_RETRANSMIT);
+	}
+
+	/**
+	 * Creates the retransmission parameters.
+	 *
+	 * @param ackTimeout the minimum initial timeout in milliseconds
+	 * @param ackRandomFactor the factor of the maximum initial timeout
+	 * @param maxRetransmit the maximum number of retransmissions
+	 */
+	public Retransmission(int ackTimeout, double ackRandomFactor, int maxRetransmit) {
+		if (ackTimeout <= 0)
+			throw new IllegalArgumentException("ACK_TIMEOUT must be positive");
+		if (ackRandomFactor < 1)
+			throw new IllegalArgumentException("ACK_RANDOM_FACTOR must be at least 1");
+		if (maxRetransmit < 0 || maxRetransmit > 16)
+			throw new IllegalArgumentException("MAX_RETRANSMIT must be between 0 and 16");
+		this.ackTimeout = ackTimeout * 1000000L;
+		this.ackRandomFactor = ackRandomFactor;
+		this.maxRetransmit = maxRetransmit;
+	}
+
+	/**
+	 * Parses the parameters in the format
+	 * ACK_TIMEOUT[,ACK_RANDOM_FACTOR[,MAX_RETRANSMIT]], e.g., 2000,1.5,4.
+	 * Missing parameters have their default value.
+	 */
+	public static Retransmission parse(String parameters) {
+		String[] parts = parameters.split(",");
+		int ackTimeout = Integer.parseInt(parts[0]);
+		double ackRandomFactor = parts.length > 1 ? Double.parseDouble(parts[1]) : DEFAULT_ACK_RANDOM_FACTOR;
+		int maxRetransmit = parts.length > 2 ? Integer.parseInt(parts[2]) : DEFAULT_MAX_RETRANSMIT;
+		return new Retransmission(ackTimeout, ackRandomFactor, maxRetransmit);
+	}
+
+	public int getMaxRetransmit() {
+		return maxRetransmit;
+	}
+
+	/**
+	 * Returns the initial timeout of the exchange with the specified key in
+	 * nanoseconds.
+	 */
+	public long getInitialTimeout(int key) {
+		// spread the keys evenly over [0, 1) with the golden ratio
+		double random = ((key * 0x9E3779B9) & 0xFFFFFFFFL) / 4294967296d;
+		return (long) (ackTimeout * (1 + (ackRandomFactor - 1) * random));
+	}
+
+	/**
+	 * Returns the time after the first transmission at which the specified
+	 * retransmission is due in nanoseconds. The retransmission after
+	 * {@link #getMaxRetransmit()} is never sent but marks the time at which
+	 * the request is lost.
+	 *
+	 * @param key the key of the exchange
+	 * @param retransmission the number of the retransmission, starting at 1
+	 */
+	public long getDeadline(int key, int retransmission) {
+		return getInitialTimeout(key) * ((1L << retransmission) - 1);
+	}
+
+	/**
+	 * Returns the time after the first transmission at which the request with
+	 * the specified key is lost in nanoseconds.
+	 */
+	public long getLifetime(int key) {
+		return getDeadline(key, maxRetransmit + 1);
+	}
+
+	/**
+	 * Returns the longest time after the first transmission at which a
+	 * request is lost in nanoseconds, i.e., the lifetime with the maximum
+	 * random factor.
+	 */
+	public long getMaxLifetime() {
+		return (long) (ackTimeout * ackRandomFactor) * ((1L << (maxRetransmit + 1)) - 1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ACK_TIMEOUT %d ms, ACK_RANDOM_FACTOR %.2f, MAX_RETRANSMIT %d",
+				ackTimeout / 1000000L, ackRandomFactor, maxRetransmit);
+	}
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.eclipse.californium.tools.coapbench.producer.MessageTemplate;
+
+/**
+ * A scenario is a weighted mix of request classes. Each virtual client picks
+ * the class of every request at random according to the weights, so that the
+ * clients together send the mix of the scenario. A scenario file has one
+ * class per line in the format
+ *
+ * <pre>
+ * NAME WEIGHT METHOD URI [payload=FILE] [think=MS]
+ * </pre>
+ *
+ * e.g.,
+ *
+ * <pre>
+ * # 70% reads, 20% registration updates and 10% observations
+ * read    70 GET     coap://localhost/node{}/temp
+ * update  20 POST    coap://localhost/rd/node{} payload=update.txt think=100
+ * observe 10 OBSERVE coap://localhost/node{}/temp
+ * </pre>
+ *
+ * The method is GET, POST, PUT, DELETE or OBSERVE, which is a GET that
+ * registers an observation. The payload file is relative to the scenario
+ * file. The think time is the time a closed-loop client waits after a request
+ * of the class has completed before it sends its next request. Empty lines
+ * and lines starting with # are ignored. All classes must have the same host
+ * and port.
+ */
+public class Scenario {
+
+	/** The maximum number of classes, which is the space of the tags */
+	public static final int MAX_CLASSES = InFlightTable.MAX_TAGS;
+
+	/**
+	 * A request class of a scenario.
+	 */
+	public static class RequestClass {
+
+		private final String name;
+		private final int weight;
+		private final String method;
+		private final URI uri;
+		private final String payload;
+		private final int think; // [ms]
+
+		public RequestClass(String name, int weight, String method, URI uri, String payload, int think) {
+			if (weight < 1)
+				throw new IllegalArgumentException("Weight of class "+name+" must be positive");
+			if (think < 0)
+				throw new IllegalArgumentException("Think time of class "+name+" must not be negative");
+			this.name = name;
+			this.weight = weight;
+			this.method = method;
+			this.uri = uri;
+			this.payload = payload;
+			this.think = think;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public URI getURI() {
+			return uri;
+		}
+
+		/**
+		 * Returns the payload or null if the requests have no payload.
+		 */
+		public String getPayload() {
+			return payload;
+		}
+
+		/**
+		 * Returns the think time in milliseconds.
+		 */
+		public int getThink() {
+			return think;
+		}
+
+		@Override
+		public String toString() {
+			return name+" "+weight+" "+method+" "+uri+(payload != null ? " payload="+payload.length()+" bytes" : "")+(think > 0 ? " think="+think : "");
+		}
+	}
+
+	private final List<RequestClass> classes;
+	private final int[] cumulative;
+
+	public Scenario(List<RequestClass> classes) {
+		if (classes.isEmpty())
+			throw new IllegalArgumentException("Scenario has no request classes");
+		if (classes.size() > MAX_CLASSES)
+			throw new IllegalArgumentException("Scenario has more than "+MAX_CLASSES+" request classes");
+		URI first = classes.get(0).getURI();
+		this.classes = classes;
+		this.cumulative = new int[classes.size()];
+		int sum = 0;
+		for (int i=0;i<classes.size();i++) {
+			URI uri = classes.get(i).getURI();
+			if (uri.getHost() == null)
+				throw new IllegalArgumentException("Class "+classes.get(i).getName()+" has no host: "+uri);
+			if (!first.getHost().equalsIgnoreCase(uri.getHost()) || getPort(first) != getPort(uri))
+				throw new IllegalArgumentException("Class "+classes.get(i).getName()+" has another host or port than "+first);
+			sum += classes.get(i).getWeight();
+			cumulative[i] = sum;
+		}
+	}
+
+	/*
+	 * Returns the port of the URI or the default port of its scheme.
+	 */
+	private static int getPort(URI uri) {
+		if (uri.getPort() != -1)
+			return uri.getPort();
+		return "coaps".equalsIgnoreCase(uri.getScheme()) ? 5684 : 5683;
+	}
+
+	/**
+	 * Loads a scenario file.
+	 */
+	public static Scenario load(String file) throws IOException {
+		List<RequestClass> classes = new ArrayList<RequestClass>();
+		File directory = new File(file).getAbsoluteFile().getParentFile();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				try {
+					classes.add(parse(line, directory));
+				} catch (IllegalArgumentException | URISyntaxException e) {
+					throw new IOException(file+":"+number+": "+e.getMessage(), e);
+				}
+			}
+		}
+		return new Scenario(classes);
+	}
+
+	private static RequestClass parse(String line, File directory) throws IOException, URISyntaxException {
+		String[] parts = line.split("\\s+");
+		if (parts.length < 4)
+			throw new IllegalArgumentException("Expected NAME WEIGHT METHOD URI [payload=FILE] [think=MS]");
+		String name = parts[0];
+		int weight = Integer.parseInt(parts[1]);
+		String method = parts[2].toUpperCase(Locale.ROOT);
+		if (!method.matches("GET|POST|PUT|DELETE|OBSERVE"))
+			throw new IllegalArgumentException("Unknown method "+parts[2]);
+		// the placeholder of the message templates is not a valid URI character
+		URI uri = new URI(parts[3].replace(MessageTemplate.PLACEHOLDER, "%7B%7D"));
+		String payload = null;
+		int think = 0;
+		for (int i=4;i<parts.length;i++) {
+			if (parts[i].startsWith("payload=")) {
+				File payloadFile = new File(parts[i].substring("payload=".length()));
+				if (!payloadFile.isAbsolute())
+					payloadFile = new File(directory, payloadFile.getPath());
+				payload = readPayload(payloadFile);
+			} else if (parts[i].startsWith("think=")) {
+				think = Integer.parseInt(parts[i].substring("think=".length()));
+			} else {
+				throw new IllegalArgumentException("Unknown attribute "+parts[i]);
+			}
+		}
+		return new RequestClass(name, weight, method, uri, payload, think);
+	}
+
+	/*
+	 * Reads the payload like the payload file of CoapBench, i.e., joins the
+	 * lines without line separators.
+	 */
+	private static String readPayload(File file) throws IOException {
+		StringBuilder payload = new StringBuilder();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null)
+				payload.append(line);
+		}
+		return payload.toString();
+	}
+
+	public int size() {
+		return classes.size();
+	}
+
+	public RequestClass get(int index) {
+		return classes.get(index);
+	}
+
+	public String getName(int index) {
+		return classes.get(index).getName();
+	}
+
+	/**
+	 * Returns whether any class has a think time.
+	 */
+	public boolean hasThinkTimes() {
+		for (RequestClass c:classes)
+			if (c.getThink() > 0)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Picks the index of a class according to the weights.
+	 */
+	public int pick(Random random) {
+		if (cumulative.length == 1)
+			return 0;
+		int value = random.nextInt(cumulative[cumulative.length - 1]);
+		int low = 0;
+		int high = cumulative.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (cumulative[middle] > value)
+				high = middle;
+			else
+				low = middle + 1;
+		}
+		return low;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (int i=0;i<classes.size();i++) {
+			if (i > 0)
+				builder.append("; ");
+			builder.append(classes.get(i));
+		}
+		return builder.toString();
+	}
+}
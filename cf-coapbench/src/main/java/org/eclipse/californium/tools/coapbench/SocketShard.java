@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A socket shard lets many non-blocking virtual clients share one or a few
+ * sockets instead of opening one socket each, which exhausts the file
+ * descriptors and the kernel buffers of the host with many clients. The
+ * clients of a shard are distinguished by the upper half of their tokens,
+ * which is their slot in the shard. Responses without a token, i.e., resets
+ * and empty ACKs, are matched by their MID. The shard assigns the MIDs of all
+ * its clients from one counter, since a server deduplicates by source endpoint
+ * and MID. The MIDs are only distinct while the shard sends less than 2^16
+ * requests per {@link #EXCHANGE_LIFETIME}, i.e., at most {@link #MAX_MID_RATE}
+ * requests per second. Otherwise, the server answers the new request of one
+ * client with the cached response to an old request of another. The shard
+ * counts the MIDs it reuses too early, see {@link #getReusedMIDs()}.
+ * <p>
+ * A shard with more than one socket binds them all to the same port with
+ * SO_REUSEPORT. The kernel delivers the responses of a flow to any of them,
+ * so all sockets of a shard share its slots and are served by the same
+ * {@link NioClientEngine} worker. A shard must only be used by that worker.
+ */
+public class SocketShard {
+
+	/** The maximum number of clients of a shard, i.e., the space of the slots */
+	public static final int MAX_CLIENTS = 1 << 16;
+
+	/** Returned by {@link #receive(DatagramChannel, ByteBuffer)} if no datagram is available */
+	public static final int EMPTY = -1;
+
+	/** Returned by {@link #receive(DatagramChannel, ByteBuffer)} for a datagram of no client */
+	public static final int UNKNOWN = -2;
+
+	/** The time a server remembers a MID, EXCHANGE_LIFETIME of RFC 7252 in ms */
+	public static final long EXCHANGE_LIFETIME = 247000;
+
+	/** The highest rate in requests/s at which a shard reuses no MID within the exchange lifetime */
+	public static final double MAX_MID_RATE = (1 << 16) * 1000d / EXCHANGE_LIFETIME;
+
+	/**
+	 * Thrown by {@link #receive(DatagramChannel, ByteBuffer)} if the client
+	 * of a datagram failed to handle it. The sockets of the shard are fine.
+	 */
+	public static class ClientException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int slot;
+
+		public ClientException(int slot, Exception cause) {
+			super(cause);
+			this.slot = slot;
+		}
+
+		/**
+		 * Returns the slot of the failed client.
+		 */
+		public int getSlot() {
+			return slot;
+		}
+	}
+
+	private final DatagramChannel[] channels;
+	private final VirtualClient[] clients;
+	private final char[] owners; // the slot of the client by MID
+	private int size;
+	private int hint;
+	private int mid;
+	private int first; // the MID that completes a round of the counter
+	private long round; // the start of the current round in ns
+	private long reused;
+	private long received;
+	private long unknown;
+
+	/**
+	 * Creates a shard and binds its sockets.
+	 *
+	 * @param bindAddr the local address or null to let the system choose
+	 * @param sockets the number of sockets, all bound to the same port
+	 * @param capacity the maximum number of clients
+	 */
+	public SocketShard(InetSocketAddress bindAddr, int sockets, int capacity) throws IOException {
+		if (capacity < 1 || capacity > MAX_CLIENTS)
+			throw new IllegalArgumentException("Capacity must be between 1 and "+MAX_CLIENTS);
+		this.channels = new DatagramChannel[sockets];
+		this.clients = new VirtualClient[capacity];
+		this.owners = new char[1 << 16];
+		this.round = System.nanoTime();
+		this.mid = (int) (round & 0xFFFF);
+		this.first = mid;
+		try {
+			for (int i=0;i<sockets;i++) {
+				channels[i] = DatagramChannel.open();
+				channels[i].configureBlocking(false);
+				if (sockets > 1)
+					channels[i].setOption(getReusePort(channels[i]), true);
+				channels[i].bind(i == 0 ? bindAddr : (InetSocketAddress) channels[0].getLocalAddress());
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/*
+	 * StandardSocketOptions.SO_REUSEPORT only exists since Java 9.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePort(DatagramChannel channel) {
+		for (SocketOption<?> option:channel.supportedOptions())
+			if ("SO_REUSEPORT".equals(option.name()))
+				return (SocketOption<Boolean>) option;
+		throw new UnsupportedOperationException("SO_REUSEPORT is not supported by this JDK or system");
+	}
+
+	/**
+	 * Returns whether SO_REUSEPORT is available.
+	 */
+	public static boolean isReusePortSupported() {
+		try (DatagramChannel channel = DatagramChannel.open()) {
+			getReusePort(channel);
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Adds a client to the shard.
+	 *
+	 * @return the slot of the client
+	 */
+	public int attach(VirtualClient client) {
+		if (isFull())
+			throw new IllegalStateException("Shard is full");
+		while (clients[hint] != null)
+			hint = (hint + 1) % clients.length;
+		clients[hint] = client;
+		size++;
+		return hint;
+	}
+
+	/**
+	 * Removes the client in the specified slot and closes the sockets when
+	 * the last client has been removed.
+	 */
+	public void detach(int slot) {
+		if (clients[slot] != null) {
+			clients[slot] = null;
+			if (--size == 0)
+				close();
+		}
+	}
+
+	/**
+	 * Returns the socket through which the client in the specified slot
+	 * sends.
+	 */
+	public DatagramChannel getChannel(int slot) {
+		return channels[slot % channels.length];
+	}
+
+	public DatagramChannel[] getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Returns the next MID of the shard and remembers the client in the
+	 * specified slot as its owner. Counts the MIDs of a round of the counter
+	 * that started within the exchange lifetime of the previous round.
+	 */
+	public int nextMID(int slot) {
+		mid = (mid + 1) & 0xFFFF;
+		if (mid == first) {
+			long now = System.nanoTime();
+			if (now - round < EXCHANGE_LIFETIME * 1000000L)
+				reused += 1 << 16;
+			round = now;
+		}
+		owners[mid] = (char) slot;
+		return mid;
+	}
+
+	/**
+	 * Receives one datagram from a socket of the shard into the specified
+	 * buffer and hands it to its client.
+	 *
+	 * @return the slot of the client, {@link #EMPTY} if no datagram is
+	 *         available or {@link #UNKNOWN} if the datagram belongs to no
+	 *         client
+	 * @throws ClientException if the client failed to handle the datagram
+	 */
+	public int receive(DatagramChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		if (channel.receive(buffer) == null)
+			return EMPTY;
+		received++;
+		byte[] bytes = buffer.array();
+		int length = buffer.position();
+		if (length < 4) {
+			unknown++;
+			return UNKNOWN;
+		}
+		int slot;
+		if ((bytes[0] & 0x0F) == VirtualClient.TOKEN_LENGTH && length >= 4 + VirtualClient.TOKEN_LENGTH)
+			slot = ((bytes[4] & 0xFF) << 8) | (bytes[5] & 0xFF);
+		else
+			slot = owners[((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF)];
+		VirtualClient client = slot < clients.length ? clients[slot] : null;
+		if (client == null) {
+			unknown++;
+			return UNKNOWN;
+		}
+		try {
+			client.receive(bytes, length);
+		} catch (Exception e) {
+			throw new ClientException(slot, e);
+		}
+		return slot;
+	}
+
+	public boolean isFull() {
+		return size == clients.length;
+	}
+
+	public boolean isClosed() {
+		return !channels[0].isOpen();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return clients.length;
+	}
+
+	/**
+	 * Returns the number of datagrams received by the sockets of the shard.
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Returns the number of received datagrams that belonged to no client.
+	 */
+	public long getUnknown() {
+		return unknown;
+	}
+
+	/**
+	 * Returns the number of MIDs that the shard has reused within the
+	 * exchange lifetime, counted in whole rounds of the MID counter.
+	 */
+	public long getReusedMIDs() {
+		return reused;
+	}
+
+	/**
+	 * Returns the local port of the sockets.
+	 */
+	public int getLocalPort() throws IOException {
+		return ((InetSocketAddress) channels[0].getLocalAddress()).getPort();
+	}
+
+	private void close() {
+		for (DatagramChannel channel:channels) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
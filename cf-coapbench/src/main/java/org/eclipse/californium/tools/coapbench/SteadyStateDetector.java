@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+/**
+ * Detects when the throughput of a benchmark has settled. The detector is fed
+ * with the total number of completed requests in regular intervals and keeps
+ * the throughput of the last intervals. The benchmark is in steady state when
+ * the coefficient of variation, i.e., the standard deviation divided by the
+ * mean, of these throughputs falls below the threshold.
+ */
+public class SteadyStateDetector {
+
+	/** The number of intervals that must be stable */
+	public static final int WINDOW = 5;
+
+	private final double threshold;
+	private final double[] throughputs = new double[WINDOW];
+	private int samples;
+	private boolean sampled;
+	private long lastCount;
+	private long lastTime;
+	private double variation = Double.NaN;
+
+	/**
+	 * Creates a detector.
+	 *
+	 * @param threshold the maximum coefficient of variation, e.g., 0.05 for 5%
+	 */
+	public SteadyStateDetector(double threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Adds a sample.
+	 *
+	 * @param count the total number of completed requests so far
+	 * @param time the current time in nanoseconds
+	 * @return true if the throughput is in steady state
+	 */
+	public boolean sample(long count, long time) {
+		// System.nanoTime() may be negative, only the difference counts
+		if (sampled && time - lastTime > 0) {
+			throughputs[samples++ % WINDOW] = (count - lastCount) * 1000000000d / (time - lastTime);
+		}
+		sampled = true;
+		lastCount = count;
+		lastTime = time;
+		if (samples < WINDOW)
+			return false;
+
+		double sum = 0;
+		for (double throughput:throughputs)
+			sum += throughput;
+		double mean = sum / WINDOW;
+		double squares = 0;
+		for (double throughput:throughputs)
+			squares += (throughput - mean) * (throughput - mean);
+		variation = mean > 0 ? Math.sqrt(squares / WINDOW) / mean : Double.NaN;
+		return variation < threshold;
+	}
+
+	/**
+	 * Returns the coefficient of variation of the last samples or NaN if
+	 * there are not enough samples yet.
+	 */
+	public double getVariation() {
+		return variation;
+	}
+}
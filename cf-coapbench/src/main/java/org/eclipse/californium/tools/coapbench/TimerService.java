@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The timer service runs tasks at their scheduled times from a single thread
+ * that drives a {@link TimerWheel}. Unlike {@link java.util.Timer}, whose
+ * queue is a heap, scheduling and cancelling cost the same however many
+ * tasks are scheduled, and all tasks that are due in the same tick run in
+ * one batch. This makes it suitable for the per-device timers of many
+ * virtual devices, e.g., lifetimes and notification periods, as well as for
+ * the few timers of a run.
+ * <p>
+ * Any thread may schedule and cancel tasks. The requests are handed to the
+ * timer thread through a queue, so that the wheel itself is only touched by
+ * the timer thread. Like the tasks of a {@link java.util.Timer}, the tasks
+ * run one after the other and must return quickly.
+ */
+public class TimerService {
+
+	/**
+	 * A task of the service. A task can be scheduled once; a periodic task
+	 * runs until it is cancelled.
+	 */
+	public static abstract class Task implements Runnable, TimerWheel.Task {
+
+		private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this);
+		private TimerService service;
+		private long deadline; // [ns]
+		private long period; // [ns]
+		private boolean fixedRate;
+		private volatile boolean cancelled;
+
+		/**
+		 * Cancels the task. A periodic task that is running completes its
+		 * current run.
+		 *
+		 * @return true, if the task was scheduled and not cancelled before
+		 */
+		public boolean cancel() {
+			TimerService service;
+			synchronized (this) {
+				service = this.service;
+				if (service == null || cancelled)
+					return false;
+				cancelled = true;
+			}
+			// remove it from the wheel right away instead of when it is due
+			service.submit(this);
+			return true;
+		}
+
+		public void expired(long now) {
+			if (cancelled)
+				return;
+			if (period > 0 && fixedRate) {
+				// a late run does not delay the next ones
+				deadline += period;
+				service.wheel.schedule(timeout, deadline);
+			}
+			try {
+				run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			if (period > 0 && !fixedRate && !cancelled) {
+				deadline = System.nanoTime() + period;
+				service.wheel.schedule(timeout, deadline);
+			}
+		}
+	}
+
+	private final TimerWheel wheel;
+	private final ConcurrentLinkedQueue<Task> requests;
+	private final Thread thread;
+	private volatile boolean running;
+
+	public TimerService(String name) {
+		this(name, TimerWheel.DEFAULT_TICK);
+	}
+
+	/**
+	 * Creates a service and starts its thread.
+	 *
+	 * @param name the name of the thread
+	 * @param tick the duration of a tick in nanoseconds
+	 */
+	public TimerService(String name, long tick) {
+		this.wheel = new TimerWheel(tick, TimerWheel.DEFAULT_BUCKETS, TimerWheel.DEFAULT_LEVELS);
+		this.requests = new ConcurrentLinkedQueue<Task>();
+		this.running = true;
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				TimerService.this.run();
+			} }, name);
+		this.thread.start();
+	}
+
+	/**
+	 * Runs the task once after the delay.
+	 *
+	 * @param delay the delay in milliseconds
+	 */
+	public void schedule(Task task, long delay) {
+		schedule(task, delay, 0, false);
+	}
+
+	/**
+	 * Runs the task after the delay and then periodically with the period
+	 * between the end of a run and the start of the next one.
+	 *
+	 * @param delay the delay in milliseconds
+	 * @param period the period in milliseconds
+	 */
+	public void schedule(Task task, long delay, long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Period must be positive");
+		schedule(task, delay, period, false);
+	}
+
+	/**
+	 * Runs the task after the delay and then periodically at a fixed rate.
+	 *
+	 * @param delay the delay in milliseconds
+	 * @param period the period in milliseconds
+	 */
+	public void scheduleAtFixedRate(Task task, long delay, long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Period must be positive");
+		schedule(task, delay, period, true);
+	}
+
+	private void schedule(Task task, long delay, long period, boolean fixedRate) {
+		if (delay < 0)
+			throw new IllegalArgumentException("Delay must not be negative");
+		synchronized (task) {
+			if (task.service != null)
+				throw new IllegalStateException("Task already scheduled or cancelled");
+			task.service = this;
+			task.deadline = System.nanoTime() + delay * 1000000L;
+			task.period = period * 1000000L;
+			task.fixedRate = fixedRate;
+		}
+		submit(task);
+	}
+
+	private void submit(Task task) {
+		if (!running)
+			throw new IllegalStateException("Timer service stopped");
+		requests.add(task);
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Stops the service. The scheduled tasks no longer run.
+	 */
+	public void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Returns the number of scheduled tasks. Must only be called from a task.
+	 */
+	public int size() {
+		return wheel.size();
+	}
+
+	private void run() {
+		while (running) {
+			Task task;
+			while ((task = requests.poll()) != null) {
+				if (task.cancelled)
+					wheel.cancel(task.timeout);
+				else
+					wheel.schedule(task.timeout, task.deadline);
+			}
+			try {
+				wheel.advance(System.nanoTime());
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			if (!requests.isEmpty())
+				continue;
+			long next = wheel.nextExpiration();
+			if (next == TimerWheel.NONE)
+				LockSupport.park(this);
+			else
+				LockSupport.parkNanos(this, next - System.nanoTime());
+		}
+	}
+}
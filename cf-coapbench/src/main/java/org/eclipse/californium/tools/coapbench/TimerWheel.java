@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.IOException;
+
+/**
+ * A hierarchical timing wheel schedules the timeouts of many virtual devices
+ * with constant cost for scheduling and cancelling. The wheel has several
+ * levels of buckets. A bucket of the lowest level covers one tick, a bucket
+ * of each higher level covers a whole revolution of the level below. A
+ * timeout is linked into the lowest level whose revolution reaches its
+ * deadline. Whenever a level completes a revolution, the next bucket of the
+ * level above is cascaded, i.e., its timeouts are moved down to the level
+ * that now reaches them. With the defaults, four levels of 256 buckets of
+ * 1 ms cover 49 days, and a timeout is moved at most three times however far
+ * its deadline is, so that mostly idle devices cost nothing between their
+ * deadlines. Deadlines beyond the highest level wait in its last bucket.
+ * Each {@link #advance(long)} expires the timeouts of all ticks since the
+ * last one in one batch.
+ * <p>
+ * A {@link Timeout} is allocated once per device and rescheduled as often as
+ * needed, so scheduling does not allocate anything. A wheel must only be used
+ * by a single thread, e.g., a worker of the {@link NioClientEngine} or a
+ * {@link TimerService}.
+ */
+public class TimerWheel {
+
+	/** The default duration of a tick */
+	public static final long DEFAULT_TICK = 1000000L; // [ns]
+
+	/** The default number of buckets per level, i.e., ticks per revolution */
+	public static final int DEFAULT_BUCKETS = 256;
+
+	/** The default number of levels */
+	public static final int DEFAULT_LEVELS = 4;
+
+	/** Returned by {@link #nextExpiration()} if no timeout is scheduled */
+	public static final long NONE = Long.MIN_VALUE;
+
+	private static final int IDLE = 0;
+	private static final int SCHEDULED = 1;
+	private static final int EXPIRED = 2;
+
+	/**
+	 * The action of a timeout.
+	 */
+	public interface Task {
+
+		/**
+		 * Runs when the timeout expires.
+		 *
+		 * @param now the current time
+		 */
+		void expired(long now) throws IOException;
+	}
+
+	/**
+	 * A reusable timeout. It is in at most one bucket at a time.
+	 */
+	public static final class Timeout {
+
+		private final Task task;
+		private long tick;
+		private int slot; // level * buckets + bucket
+		private int state = IDLE;
+		private Timeout previous;
+		private Timeout next;
+		private Timeout nextExpired;
+
+		public Timeout(Task task) {
+			this.task = task;
+		}
+
+		public boolean isScheduled() {
+			return state == SCHEDULED;
+		}
+	}
+
+	private final long tickDuration; // [ns]
+	private final long start;
+	private final Timeout[] slots;
+	private final int bits;
+	private final int mask;
+	private final int levels;
+	private final long span; // [ticks]
+	private long current; // the last tick that has expired
+	private int size;
+
+	public TimerWheel() {
+		this(DEFAULT_TICK, DEFAULT_BUCKETS, DEFAULT_LEVELS);
+	}
+
+	/**
+	 * Creates a wheel.
+	 *
+	 * @param tick the duration of a tick in nanoseconds
+	 * @param buckets the number of buckets per level, rounded up to a power of
+	 *            two
+	 * @param levels the number of levels
+	 */
+	public TimerWheel(long tick, int buckets, int levels) {
+		if (tick <= 0)
+			throw new IllegalArgumentException("Tick must be positive");
+		int n = Integer.highestOneBit(Math.max(2, 2 * buckets - 1));
+		int bits = Integer.numberOfTrailingZeros(n);
+		if (levels < 1 || bits * levels > 62)
+			throw new IllegalArgumentException("Wheel must have between 1 and "+(62 / bits)+" levels");
+		this.tickDuration = tick;
+		this.bits = bits;
+		this.mask = n - 1;
+		this.levels = levels;
+		this.span = 1L << (bits * levels);
+		this.slots = new Timeout[n * levels];
+		this.start = System.nanoTime();
+	}
+
+	/**
+	 * Schedules the timeout at the specified time. A timeout that is already
+	 * scheduled is moved. A deadline in the past expires with the next tick.
+	 */
+	public void schedule(Timeout timeout, long deadline) {
+		cancel(timeout);
+		// round up, so that a timeout never expires before its deadline
+		timeout.tick = Math.max(current + 1, ceilDiv(deadline - start, tickDuration));
+		timeout.state = SCHEDULED;
+		link(timeout);
+		size++;
+	}
+
+	/**
+	 * Cancels the timeout. A timeout that is not scheduled is ignored.
+	 */
+	public void cancel(Timeout timeout) {
+		if (timeout.state == EXPIRED) {
+			// not run yet, but already removed from its bucket
+			timeout.state = IDLE;
+		} else if (timeout.state == SCHEDULED) {
+			unlink(timeout);
+			timeout.state = IDLE;
+			size--;
+		}
+	}
+
+	/*
+	 * Links the timeout into the lowest level that reaches its tick.
+	 */
+	private void link(Timeout timeout) {
+		long tick = timeout.tick;
+		long delta = tick - current;
+		if (delta >= span)
+			tick = current + span - 1; // moved down later
+		int level = 0;
+		while (level < levels - 1 && delta >> (bits * (level + 1)) != 0)
+			level++;
+		int slot = (level << bits) | ((int) (tick >>> (bits * level)) & mask);
+		timeout.slot = slot;
+		timeout.previous = null;
+		timeout.next = slots[slot];
+		if (timeout.next != null)
+			timeout.next.previous = timeout;
+		slots[slot] = timeout;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.previous != null)
+			timeout.previous.next = timeout.next;
+		else
+			slots[timeout.slot] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.previous = timeout.previous;
+		timeout.previous = null;
+		timeout.next = null;
+	}
+
+	/**
+	 * Expires all timeouts up to the specified time. The tasks may schedule
+	 * their timeouts again.
+	 *
+	 * @return the number of expired timeouts
+	 */
+	public int advance(long now) throws IOException {
+		long target = floorDiv(now - start, tickDuration);
+		// collect the expired timeouts first, the tasks may modify the buckets
+		Timeout expired = null;
+		while (current < target) {
+			if (size == 0) {
+				// nothing to cascade or expire
+				current = target;
+				break;
+			}
+			current++;
+			cascade();
+			Timeout timeout = slots[(int) current & mask];
+			slots[(int) current & mask] = null;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.tick > current) {
+					// beyond the highest level of a single-level wheel
+					link(timeout);
+					timeout = next;
+					continue;
+				}
+				timeout.previous = null;
+				timeout.next = null;
+				timeout.state = EXPIRED;
+				timeout.nextExpired = expired;
+				expired = timeout;
+				size--;
+				timeout = next;
+			}
+		}
+		int count = 0;
+		while (expired != null) {
+			Timeout timeout = expired;
+			expired = timeout.nextExpired;
+			timeout.nextExpired = null;
+			if (timeout.state == EXPIRED) {
+				timeout.state = IDLE;
+				timeout.task.expired(now);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Moves the timeouts of the buckets of the higher levels that begin with
+	 * the current tick down, the highest level first, so that the timeouts
+	 * that arrive at a level are cascaded further in the same tick.
+	 */
+	private void cascade() {
+		int level = 1;
+		while (level < levels && (current & ((1L << (bits * level)) - 1)) == 0)
+			level++;
+		for (level=level-1;level>0;level--) {
+			int slot = (level << bits) | ((int) (current >>> (bits * level)) & mask);
+			Timeout timeout = slots[slot];
+			slots[slot] = null;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				link(timeout);
+				timeout = next;
+			}
+		}
+	}
+
+	/**
+	 * Returns the end of the next tick whose bucket in the lowest level is
+	 * not empty or, if there is none before, the end of the tick at which the
+	 * next bucket of the higher levels is cascaded. This is the earliest time
+	 * at which a timeout may expire.
+	 *
+	 * @return the time or {@link #NONE} if no timeout is scheduled
+	 */
+	public long nextExpiration() {
+		if (size == 0)
+			return NONE;
+		long boundary = (current | mask) + 1;
+		for (long t=current+1;t<boundary;t++)
+			if (slots[(int) t & mask] != null)
+				return start + t * tickDuration;
+		return start + boundary * tickDuration;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		return (x % y != 0 && x < 0) ? q - 1 : q;
+	}
+
+	private static long ceilDiv(long x, long y) {
+		return -floorDiv(-x, y);
+	}
+}
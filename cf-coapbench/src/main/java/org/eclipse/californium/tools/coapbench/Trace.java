@@ -0,0 +1,431 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.eclipse.californium.tools.coapbench.producer.MessageTemplate;
+
+/**
+ * A trace is a recording of the requests of real devices that virtual clients
+ * replay with the original timing. A trace is read from either
+ * <ul>
+ * <li>a pcap capture file with Ethernet, raw IP, loopback or Linux cooked
+ * frames and UDP over IPv4 or IPv6, or</li>
+ * <li>a text file with one message per line in the format
+ * <code>TIME SOURCE HEX</code>, where TIME is in seconds, SOURCE identifies
+ * the device, e.g., its address and port, and HEX is the CoAP message.</li>
+ * </ul>
+ * Only requests are replayed. Responses, empty messages and fragments are
+ * skipped, and so are the retransmissions of a source, i.e., requests with the
+ * MID of an earlier request within {@link #EXCHANGE_LIFETIME}, because the
+ * server under test deduplicates them. Each request is converted into a
+ * {@link MessageTemplate}, so that the replay does not allocate anything.
+ * <p>
+ * For the replay, the sources are distributed over the clients with
+ * {@link #split(int)}. All requests of a source are replayed by the same
+ * client in their original order.
+ */
+public class Trace {
+
+	/** The time within which a request with the same MID is a retransmission */
+	public static final long EXCHANGE_LIFETIME = 247 * 1000000000L; // [ns]
+
+	private static final int PCAP_MAGIC = 0xA1B2C3D4;
+	private static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+	private static final int PCAPNG_MAGIC = 0x0A0D0D0A;
+	private static final int MAX_SNAPLEN = 262144; // [bytes]
+
+	private final int tokenLength;
+	private final List<MessageTemplate> templates = new ArrayList<MessageTemplate>();
+	private final IntArray sources = new IntArray();
+	private final List<Long> times = new ArrayList<Long>();
+	private final Map<String, Integer> sourceIndices = new HashMap<String, Integer>();
+	private final Map<Long, Long> lastMIDs = new HashMap<Long, Long>();
+	private int retransmissions;
+	private int skipped;
+	private long duration; // [ns]
+
+	/*
+	 * The order of the requests by time and the times relative to the first
+	 * request after loading.
+	 */
+	private int[] order;
+	private long[] relative;
+	private int[] sourceOf;
+
+	private Trace(int tokenLength) {
+		this.tokenLength = tokenLength;
+	}
+
+	/**
+	 * A track is the part of a trace that one client replays. It loops over
+	 * its requests and shifts the time of each loop by the duration of the
+	 * trace, so that all tracks stay in sync.
+	 */
+	public static class Track {
+
+		private final Trace trace;
+		private final int[] indices;
+		private int position;
+		private long offset; // [ns]
+
+		private Track(Trace trace, int[] indices) {
+			this.trace = trace;
+			this.indices = indices;
+		}
+
+		public boolean isEmpty() {
+			return indices.length == 0;
+		}
+
+		public int size() {
+			return indices.length;
+		}
+
+		/**
+		 * Returns the template of the current request.
+		 */
+		public MessageTemplate getTemplate() {
+			return trace.templates.get(indices[position]);
+		}
+
+		/**
+		 * Returns the time of the current request since the start of the
+		 * replay in nanoseconds.
+		 */
+		public long getTime() {
+			return offset + trace.relative[indices[position]];
+		}
+
+		/**
+		 * Moves on to the next request. After the last request, the track
+		 * starts over one trace duration later.
+		 */
+		public void advance() {
+			if (++position == indices.length) {
+				position = 0;
+				offset += trace.duration;
+			}
+		}
+
+		/**
+		 * Moves back to the first request.
+		 */
+		public void rewind() {
+			position = 0;
+			offset = 0;
+		}
+	}
+
+	/**
+	 * Loads a pcap or text trace.
+	 *
+	 * @param file the name of the file
+	 * @param tokenLength the length of the tokens of the templates
+	 */
+	public static Trace load(String file, int tokenLength) throws IOException {
+		Trace trace = new Trace(tokenLength);
+		boolean pcap = false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			in.mark(4);
+			int magic = in.readInt();
+			in.reset();
+			if (magic == PCAPNG_MAGIC)
+				throw new IOException("pcapng is not supported, convert the file with: editcap -F pcap "+file+" OUT");
+			if (magic == PCAP_MAGIC || magic == PCAP_MAGIC_NANOS
+					|| magic == Integer.reverseBytes(PCAP_MAGIC) || magic == Integer.reverseBytes(PCAP_MAGIC_NANOS)) {
+				pcap = true;
+				trace.readPcap(in);
+			}
+		} catch (EOFException e) {
+			// the file is shorter than the magic number, read it as text
+		}
+		if (!pcap)
+			trace.readText(file);
+		if (trace.templates.isEmpty())
+			throw new IOException("Trace "+file+" contains no requests");
+		trace.finish();
+		return trace;
+	}
+
+	private void readPcap(InputStream in) throws IOException {
+		byte[] header = new byte[24];
+		readFully(in, header, 24);
+		ByteBuffer global = ByteBuffer.wrap(header);
+		int magic = global.getInt(0);
+		if (magic != PCAP_MAGIC && magic != PCAP_MAGIC_NANOS)
+			global.order(ByteOrder.LITTLE_ENDIAN);
+		boolean nanos = global.getInt(0) == PCAP_MAGIC_NANOS;
+		int linkType = global.getInt(20) & 0xFFFF;
+
+		byte[] record = new byte[16];
+		ByteBuffer recordHeader = ByteBuffer.wrap(record).order(global.order());
+		byte[] packet = new byte[MAX_SNAPLEN];
+		while (readFully(in, record, 16)) {
+			long seconds = recordHeader.getInt(0) & 0xFFFFFFFFL;
+			long fraction = recordHeader.getInt(4) & 0xFFFFFFFFL;
+			int length = recordHeader.getInt(8);
+			if (length < 0 || length > MAX_SNAPLEN)
+				throw new IOException("Corrupt pcap record of "+length+" bytes");
+			if (!readFully(in, packet, length))
+				break;
+			long time = seconds * 1000000000L + (nanos ? fraction : fraction * 1000);
+			addPacket(time, linkType, packet, length);
+		}
+	}
+
+	/*
+	 * Extracts the UDP payload of a captured frame and adds it as message.
+	 */
+	private void addPacket(long time, int linkType, byte[] p, int length) throws IOException {
+		int offset;
+		switch (linkType) {
+		case 0: // BSD loopback
+		case 108:
+			offset = 4;
+			break;
+		case 1: // Ethernet
+			offset = 14;
+			int type = (p[12] & 0xFF) << 8 | (p[13] & 0xFF);
+			while ((type == 0x8100 || type == 0x88A8) && offset + 4 <= length) { // VLAN tags
+				type = (p[offset+2] & 0xFF) << 8 | (p[offset+3] & 0xFF);
+				offset += 4;
+			}
+			if (type != 0x0800 && type != 0x86DD) {
+				skipped++;
+				return;
+			}
+			break;
+		case 12: // raw IP
+		case 14:
+		case 101:
+			offset = 0;
+			break;
+		case 113: // Linux cooked
+			offset = 16;
+			break;
+		case 276: // Linux cooked v2
+			offset = 20;
+			break;
+		default:
+			throw new IOException("Unsupported pcap link type "+linkType);
+		}
+		if (offset >= length) {
+			skipped++;
+			return;
+		}
+		byte[] address;
+		int udp;
+		int version = (p[offset] & 0xF0) >> 4;
+		if (version == 4 && offset + 20 <= length) {
+			boolean fragment = (p[offset+6] & 0x20) != 0 || ((p[offset+6] & 0x1F) << 8 | (p[offset+7] & 0xFF)) != 0;
+			if (p[offset+9] != 17 || fragment) {
+				skipped++;
+				return;
+			}
+			address = Arrays.copyOfRange(p, offset + 12, offset + 16);
+			udp = offset + (p[offset] & 0x0F) * 4;
+		} else if (version == 6 && offset + 40 <= length) {
+			if (p[offset+6] != 17) { // extension headers are not supported
+				skipped++;
+				return;
+			}
+			address = Arrays.copyOfRange(p, offset + 8, offset + 24);
+			udp = offset + 40;
+		} else {
+			skipped++;
+			return;
+		}
+		if (udp + 8 > length) {
+			skipped++;
+			return;
+		}
+		int port = (p[udp] & 0xFF) << 8 | (p[udp+1] & 0xFF);
+		int end = Math.min(length, udp + ((p[udp+4] & 0xFF) << 8 | (p[udp+5] & 0xFF)));
+		String source = InetAddress.getByAddress(address).getHostAddress() + ":" + port;
+		add(time, source, Arrays.copyOfRange(p, udp + 8, Math.max(udp + 8, end)));
+	}
+
+	private void readText(String file) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] parts = line.split("\\s+");
+				if (parts.length != 3)
+					throw new IOException(file+":"+number+": Expected TIME SOURCE HEX");
+				try {
+					long time = (long) (Double.parseDouble(parts[0]) * 1000000000d);
+					add(time, parts[1], parseHex(parts[2]));
+				} catch (IllegalArgumentException e) {
+					throw new IOException(file+":"+number+": "+e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Adds a message if it is a request and not a retransmission.
+	 */
+	private void add(long time, String source, byte[] message) {
+		// requests have a code of class 0 other than 0.00
+		if (message.length < 4 || message[1] == 0 || (message[1] & 0xE0) != 0) {
+			skipped++;
+			return;
+		}
+		MessageTemplate template;
+		try {
+			template = MessageTemplate.fromBytes(message, tokenLength);
+		} catch (IllegalArgumentException e) {
+			skipped++;
+			return;
+		}
+		Integer index = sourceIndices.get(source);
+		if (index == null) {
+			index = sourceIndices.size();
+			sourceIndices.put(source, index);
+		}
+		Long key = (long) index << 16 | template.getMID();
+		Long last = lastMIDs.put(key, time);
+		if (last != null && time - last < EXCHANGE_LIFETIME) {
+			retransmissions++;
+			return;
+		}
+		templates.add(template);
+		sources.add(index);
+		times.add(time);
+	}
+
+	/*
+	 * Orders the requests by time, which the capture does not guarantee, and
+	 * computes the times relative to the first request.
+	 */
+	private void finish() {
+		int n = templates.size();
+		Integer[] sorted = new Integer[n];
+		for (int i=0;i<n;i++)
+			sorted[i] = i;
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(times.get(a), times.get(b));
+			} });
+		order = new int[n];
+		relative = new long[n];
+		long first = times.get(sorted[0]);
+		for (int i=0;i<n;i++) {
+			order[i] = sorted[i];
+			relative[sorted[i]] = times.get(sorted[i]) - first;
+		}
+		long last = relative[order[n-1]];
+		// continue after the last request with the mean gap
+		duration = n > 1 ? last + last / (n - 1) : 1000000000L;
+		duration = Math.max(1, duration);
+		sourceOf = sources.getArray();
+		lastMIDs.clear();
+	}
+
+	/**
+	 * Distributes the sources over the specified number of clients. The
+	 * requests of source i are replayed by client i modulo clients. If there
+	 * are less sources than clients, some tracks are empty.
+	 */
+	public Track[] split(int clients) {
+		IntArray[] indices = new IntArray[clients];
+		for (int i=0;i<clients;i++)
+			indices[i] = new IntArray();
+		for (int index:order)
+			indices[sourceOf[index] % clients].add(index);
+		Track[] tracks = new Track[clients];
+		for (int i=0;i<clients;i++)
+			tracks[i] = new Track(this, indices[i].getArray());
+		return tracks;
+	}
+
+	public int size() {
+		return templates.size();
+	}
+
+	public int getSourceCount() {
+		return sourceIndices.size();
+	}
+
+	/**
+	 * Returns the duration of one loop of the trace in nanoseconds.
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	public int getRetransmissions() {
+		return retransmissions;
+	}
+
+	public int getSkipped() {
+		return skipped;
+	}
+
+	private static boolean readFully(InputStream in, byte[] buffer, int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int n = in.read(buffer, read, length - read);
+			if (n < 0) {
+				if (read == 0)
+					return false;
+				throw new EOFException("Truncated capture");
+			}
+			read += n;
+		}
+		return true;
+	}
+
+	private static byte[] parseHex(String hex) {
+		if (hex.length() % 2 != 0)
+			throw new IllegalArgumentException("Odd number of hex digits");
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i=0;i<bytes.length;i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%d requests from %d sources over %.3f s (skipped %d retransmissions and %d other messages)",
+				size(), getSourceCount(), duration / 1000000000d, retransmissions, skipped);
+	}
+}
@@ -25,56 +25,242 @@ import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.tools.coapbench.producer.MessageTemplate;
 import org.eclipse.californium.tools.coapbench.producer.VeryEcoMessageProducer;
 
 /**
  * A virtual client sends request to the server as fast as it can handle them.
+ * A client either runs in its own thread and blocks on a {@link DatagramSocket}
+ * or, when created as non-blocking, owns a {@link DatagramChannel} that is
+ * driven by a {@link NioClientEngine}.
+ * <p>
+ * By default, a client waits for the response before it sends the next
+ * request. With a window larger than one, a client keeps up to that many
+ * requests in flight and matches the responses by token through an
+ * {@link InFlightTable}. A threaded client then receives the responses in a
+ * separate thread.
+ * <p>
+ * Each request carries a token of {@link #TOKEN_LENGTH} bytes with a
+ * sequence number of the client, so that piggybacked and separate responses
+ * are correlated even if the server reuses MIDs. Empty ACKs are skipped and
+ * confirmable separate responses are acknowledged.
+ * <p>
+ * With a rate, a client runs open-loop: it sends its requests at fixed
+ * intervals regardless of the responses and measures each latency from the
+ * time the request was scheduled to be sent. This way, a stalling server
+ * shows up in the latencies instead of silently reducing the load. Its
+ * in-flight table holds the requests of one request lifetime at that rate.
+ * Instead of a fixed rate, an open-loop client can draw the time between its
+ * requests from an {@link InterArrival} distribution, e.g., to simulate a
+ * sensor that wakes up every few seconds.
+ * <p>
+ * With a {@link Retransmission}, a client retransmits unanswered requests
+ * with exponential backoff like a real device and measures the latencies of
+ * the requests answered on the first try separately.
+ * <p>
+ * With a {@link Scenario}, a client picks the class of each request according
+ * to the weights of the scenario and counts the results per class. A
+ * closed-loop client with a window of one waits for the think time of the
+ * class after each completed request. Notifications of observations whose
+ * request has already completed are rejected with a reset, so that the
+ * server cancels them.
+ * <p>
+ * With a {@link Trace.Track}, a client replays captured requests at their
+ * original time, scaled by a speed factor, instead of sending its own. Like in
+ * open-loop mode, the latency is measured from the scheduled time.
+ * <p>
+ * With {@link Blockwise} parameters, a closed-loop client with a window of one
+ * performs block-wise transfers: each response to a block that is not the
+ * last one is followed by the request for the next block right away. Only
+ * complete transfers are counted and their latency is measured from the first
+ * request, while the latency of each block is recorded separately.
+ * <p>
+ * A threaded closed-loop client can also send its requests over DTLS through
+ * a {@link DtlsTransport} with its own identity. The latencies of the
+ * requests that complete a full or an abbreviated handshake are recorded
+ * separately from the latencies of the requests over an established session.
  */
 public class VirtualClient implements Runnable, VirtualDevice {
 
 	public static final int TIMEOUT = 10000;
+	public static final int EXPIRE_INTERVAL = 100; // [ms]
+	public static final int TOKEN_LENGTH = 4; // [bytes]
+	
+	/* A relative time that is never reached */
+	private static final long IDLE = Long.MAX_VALUE / 2; // [ns]
 	
 	private DatagramSocket socket;
 	private DatagramPacket pSend;
 	private DatagramPacket pRecv;
+	private ReceiveBufferPool buffers = ReceiveBufferPool.getDefault();
+	private ByteBuffer buffer;
 	private VeryEcoMessageProducer producer;
 	
+	// only used in non-blocking mode
+	private DatagramChannel channel;
+	private InetSocketAddress destination;
+	private int pending;
+	private SocketShard shard;
+	private int slot;
+	
+	// only used in pipelined mode
+	private int window = 1;
+	private int closedWindow = 1; // the window set with setWindow
+	private InFlightTable inflight;
+	
+	// only used with retransmissions
+	private Retransmission retransmission;
+	private int retries;
+	private int retransmissions;
+	private byte[][] retransmitBuffers = new byte[1][];
+	private DatagramPacket pRetransmit;
+	private LatencyHistogram firstTry;
+	private final InFlightTable.Retransmitter retransmitter = new InFlightTable.Retransmitter() {
+		public void retransmit(int key, int tag) throws IOException {
+			byte[] buffer = retransmitBuffers[tag];
+			if (buffer == null)
+				retransmitBuffers[tag] = buffer = getProducer(tag).getTemplate().getBytes().clone();
+			buffer[2] = (byte) (key >> 8);
+			buffer[3] = (byte) key;
+			setToken(buffer, prefix << 16 | key);
+			resend(buffer);
+		} };
+	
+	// only used with a scenario
+	private Scenario scenario;
+	private VeryEcoMessageProducer[] producers;
+	private int current;
+	private long[] think; // [ns]
+	private int[] classCounts;
+	private int[] classTimeouts;
+	private ResponseCodes[] classCodes;
+	private LatencyHistogram[] classLatencies;
+	
+	// only used in open-loop mode
+	private long interval; // [ns]
+	private InterArrival arrival;
+	private long nextSend;
+	
+	// only used in replay mode
+	private Trace.Track track;
+	private double speed = 1;
+	private long replayStart;
+	
+	// only used in block-wise mode
+	private Blockwise blockwise;
+	private int blockNum;
+	private int blockSzx;
+	private long transferStart;
+	private int blocks;
+	private LatencyHistogram blockLatencies;
+	
+	// only used with DTLS
+	private DtlsTransport dtls;
+	private int receiveTimeout = TIMEOUT; // [ms]
+	private int resumeEvery;
+	private int sinceHandshake;
+	private int fullHandshakes;
+	private int resumptions;
+	private LatencyHistogram fullLatencies;
+	private LatencyHistogram resumeLatencies;
+	
 	private boolean runnable;
+	private boolean virtualThreads;
+	private long index;
 	private int counter;
 	private int lost;
+	private int truncated;
+	private long bytesReceived;
+	private long payloadBytes;
 	private boolean registration = false;
+	private boolean registering = false;
+	private boolean nonBlocking = false;
 	private String scheme = null;
 	
 	private InetAddress destAddress;
 	private int destPort;
-	private byte[] mid;
+	private int prefix;
+	private int sequence;
+	private int expected;
+	private DatagramPacket pAck;
+	private ByteBuffer bAck;
 	private long timestamp;
 	
-	private ArrayList<Integer> latencies;
+	private LatencyHistogram latencies;
+	private final ResponseCodes codes = new ResponseCodes();
+	private int precision = LatencyHistogram.DEFAULT_PRECISION;
 	
-	private boolean checkMID = true;
+	private boolean checkToken = true;
 	private boolean checkCode = true;
 	private boolean checkLatency = false;
-	private final Object lock = new Object();
+	
 	public VirtualClient(URI uri) throws Exception {
-		this(uri, null, null, null);
+		this(uri, (InetSocketAddress) null, null, null);
 	}
 	
 	public VirtualClient(URI uri, InetSocketAddress addr, String method, String payload) throws Exception {
-		this.mid = new byte[2];
-		this.latencies = new ArrayList<Integer>();
+		this(uri, addr, method, payload, false);
+	}
+	
+	public VirtualClient(URI uri, InetSocketAddress addr, String method, String payload, boolean nonBlocking) throws Exception {
+		this(uri, method, payload, nonBlocking);
+		bind(addr);
+	}
+	
+	/**
+	 * Creates a non-blocking client that sends and receives through a socket
+	 * of the specified shard instead of its own socket.
+	 */
+	public VirtualClient(URI uri, SocketShard shard, String method, String payload) throws Exception {
+		this(uri, method, payload, true);
+		this.shard = shard;
+		this.slot = shard.attach(this);
+		this.prefix = slot;
+		this.channel = shard.getChannel(slot);
+	}
+	
+	/**
+	 * Creates a threaded client that sends its requests over DTLS with the
+	 * identity of the specified index.
+	 */
+	public VirtualClient(URI uri, InetSocketAddress addr, String method, String payload, DtlsIdentity identity, long index) throws Exception {
+		this(uri, method, payload, false);
+		this.dtls = new DtlsTransport(identity, addr, index);
+		this.dtls.setPeer(destination);
+		this.fullLatencies = new LatencyHistogram(precision);
+		this.resumeLatencies = new LatencyHistogram(precision);
+	}
+	
+	private VirtualClient(URI uri, String method, String payload, boolean nonBlocking) throws Exception {
+		this.nonBlocking = nonBlocking;
 		this.producer = new VeryEcoMessageProducer();
+		this.producer.setTokenLength(TOKEN_LENGTH);
+		this.prefix = ThreadLocalRandom.current().nextInt(1 << 16);
+		this.pAck = new DatagramPacket(new byte[4], 4);
+		this.bAck = ByteBuffer.wrap(pAck.getData());
+		this.pRetransmit = new DatagramPacket(new byte[0], 0);
 		this.pSend = new DatagramPacket(new byte[0], 0);
-		this.pRecv = new DatagramPacket(new byte[100], 100);
+		this.pRecv = new DatagramPacket(new byte[0], 0);
 		this.runnable = true;
 		setURI(uri, method, payload);
-		bind(addr);
 	}
 	
 	public void bind(InetSocketAddress addr) throws Exception {
+		if (nonBlocking) {
+			this.channel = DatagramChannel.open();
+			this.channel.configureBlocking(false);
+			this.channel.bind(addr);
+			return;
+		}
 		if (addr == null)
 			this.socket = new DatagramSocket();
 		else
@@ -85,20 +271,92 @@ public class VirtualClient implements Runnable, VirtualDevice {
 	public void setURI(URI uri, String method, String payload)  throws UnknownHostException {
 		destAddress = InetAddress.getByName(uri.getHost());
 		if (uri.getPort() == -1)
-			destPort = 5683;
+			destPort = "coaps".equals(uri.getScheme()) ? 5684 : 5683;
 		else destPort = uri.getPort();
+		destination = new InetSocketAddress(destAddress, destPort);
+		if (dtls != null)
+			dtls.setPeer(destination);
 		producer.setURI(uri, method, payload);
 	}
 	
+	/**
+	 * Sets the index of this client, which replaces the placeholders in the
+	 * URI path and payload of its requests.
+	 * 
+	 * @see VeryEcoMessageProducer#setIndex(long)
+	 */
+	public void setIndex(long index) {
+		this.index = index;
+		producer.setIndex(index);
+		if (producers != null)
+			for (VeryEcoMessageProducer p:producers)
+				p.setIndex(index);
+	}
+	
+	public long getIndex() {
+		return index;
+	}
+	
+	/**
+	 * Sends the requests of the specified scenario instead of the requests to
+	 * the URI. All classes must have the host and port of the URI. Must not be
+	 * called while the client is running.
+	 */
+	public void setScenario(Scenario scenario) {
+		this.scenario = scenario;
+		if (scenario == null) {
+			producers = null;
+			think = null;
+			classCounts = null;
+			classTimeouts = null;
+			classCodes = null;
+			classLatencies = null;
+			retransmitBuffers = new byte[1][];
+			return;
+		}
+		int n = scenario.size();
+		producers = new VeryEcoMessageProducer[n];
+		classCounts = new int[n];
+		classTimeouts = new int[n];
+		classCodes = new ResponseCodes[n];
+		retransmitBuffers = new byte[n][];
+		for (int i=0;i<n;i++) {
+			Scenario.RequestClass c = scenario.get(i);
+			producers[i] = new VeryEcoMessageProducer();
+			producers[i].setTokenLength(TOKEN_LENGTH);
+			producers[i].setURI(c.getURI(), c.getMethod(), c.getPayload());
+			producers[i].setIndex(index);
+			classCodes[i] = new ResponseCodes();
+		}
+		if (scenario.hasThinkTimes()) {
+			think = new long[n];
+			for (int i=0;i<n;i++)
+				think[i] = scenario.get(i).getThink() * 1000000L;
+		} else {
+			think = null;
+		}
+		classLatencies = null;
+		setCheckLatency(checkLatency);
+		current = 0;
+		producer = producers[0];
+	}
+	
+	public Scenario getScenario() {
+		return scenario;
+	}
+	
+	private VeryEcoMessageProducer getProducer(int tag) {
+		return producers != null ? producers[tag] : producer;
+	}
+	
 	public void setRegistration(boolean registration) {
 		this.registration = registration;
 	}
 	
 	public void run() {
+		buffer = buffers.acquire();
+		pRecv.setData(buffer.array());
 		try {
-			synchronized (lock) {
-				latencies.clear();
-			}
 			//Register the client first if it's needed
 	        if (registration){ 
 	        	if (runnable) {
@@ -106,89 +364,802 @@ public class VirtualClient implements Runnable, VirtualDevice {
 	        		receiveRegistration();
 	        	}
 	        }
+			if (inflight != null) {
+				runPipelined();
+				return;
+			}
 			while (runnable) {
+				if (isThinking()) {
+					long delay = nextSend - System.nanoTime();
+					if (delay > 0) {
+						LockSupport.parkNanos(delay);
+						continue;
+					}
+				}
 				sendRequest();
 				receiveResponse();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			pRecv.setData(new byte[0]);
+			buffers.release(buffer);
+			buffer = null;
+		}
+	}
+	
+	/*
+	 * The sending half runs in the client's thread and may send as long as
+	 * there are less than window requests in flight. In open-loop mode, it
+	 * additionally waits for the scheduled time of the next request. The
+	 * receiving half runs in its own thread and returns a permit for each
+	 * response or timeout.
+	 */
+	private void runPipelined() throws Exception {
+		final Semaphore permits = new Semaphore(window);
+		Thread receiver = VirtualThreads.newThread(new Runnable() {
+			public void run() {
+				try {
+					receivePipelined(permits);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			} }, virtualThreads);
+		receiver.setName("VirtualClient-receiver");
+		socket.setSoTimeout(EXPIRE_INTERVAL);
+		receiver.start();
+		try {
+			while (runnable) {
+				if (isScheduled()) {
+					long delay = nextSend - System.nanoTime();
+					if (delay > 0) {
+						LockSupport.parkNanos(Math.min(delay, EXPIRE_INTERVAL * 1000000L));
+						continue;
+					}
+				}
+				if (permits.tryAcquire(EXPIRE_INTERVAL, TimeUnit.MILLISECONDS) && runnable)
+					sendScheduled();
+			}
+		} finally {
+			receiver.join();
+			socket.setSoTimeout(TIMEOUT);
+		}
+	}
+	
+	private void receivePipelined(Semaphore permits) throws IOException, URISyntaxException {
+		long next = System.nanoTime() + EXPIRE_INTERVAL * 1000000L;
+		while (runnable) {
+			try {
+				socket.receive(pRecv);
+				if (handleResponse(pRecv.getData(), pRecv.getLength()))
+					permits.release();
+			} catch (SocketTimeoutException e) {
+				// check for expired requests below
+			}
+			long now = System.nanoTime();
+			if (now - next >= 0) {
+				int expired = expireInFlight(now);
+				if (expired > 0) {
+					lost += expired;
+					permits.release(expired);
+				}
+				next = now + EXPIRE_INTERVAL * 1000000L;
+			}
 		}
 	}
 	
 	public void sendRequest() throws IOException {
-		byte[] bytes = producer.next();
-		saveMID(bytes);
+		sendRequest(System.nanoTime());
+	}
+	
+	/*
+	 * Sends the next request in closed-loop mode right away and in open-loop
+	 * mode with the scheduled time of the request as timestamp.
+	 */
+	private void sendScheduled() throws IOException {
+		if (track != null) {
+			sendRequest(nextSend);
+			track.advance();
+			nextSend = replayStart + (long) (track.getTime() / speed);
+		} else if (arrival != null) {
+			sendRequest(nextSend);
+			nextSend += arrival.next(ThreadLocalRandom.current());
+		} else if (interval > 0) {
+			sendRequest(nextSend);
+			nextSend += interval;
+		} else {
+			sendRequest(System.nanoTime());
+		}
+	}
+	
+	/*
+	 * The MID and the lower half of the token of the next request. The
+	 * clients of a shard share the MIDs of their socket.
+	 */
+	private int nextSequence() {
+		if (shard != null)
+			return shard.nextMID(slot);
+		return (sequence + 1) & 0xFFFF;
+	}
+	
+	private void sendRequest(long time) throws IOException {
+		if (producers != null && !registering) {
+			current = scenario.pick(ThreadLocalRandom.current());
+			producer = producers[current];
+		}
+		if (inflight != null && !registering) {
+			// skip sequence numbers whose slot is still occupied by an unanswered request
+			do {
+				sequence = nextSequence();
+			} while (!inflight.put(sequence, current, time));
+		} else {
+			sequence = nextSequence();
+			expected = prefix << 16 | sequence;
+			timestamp = time;
+			retries = 0;
+			if (isThinking())
+				nextSend = time + IDLE; // scheduled when the request completes
+		}
+		// the MID and the lower half of the token are the sequence number
+		byte[] bytes;
+		if (track != null && !registering) {
+			MessageTemplate template = track.getTemplate();
+			template.setMID(sequence);
+			template.setToken(prefix << 16 | sequence);
+			bytes = template.getBytes();
+		} else if (blockwise != null && !registering) {
+			if (blockNum == 0) {
+				transferStart = time;
+				blockSzx = blockwise.getSzx();
+			}
+			bytes = producer.nextBlock(sequence, prefix << 16 | sequence, blockNum, blockSzx, blockwise.getBody());
+		} else {
+			bytes = producer.next(sequence, prefix << 16 | sequence);
+		}
+		if (channel != null) {
+			channel.send(ByteBuffer.wrap(bytes), destination);
+			return;
+		}
+		if (dtls != null) {
+			dtls.send(bytes, time);
+			return;
+		}
 		pSend.setData(bytes);
 		pSend.setAddress(destAddress);
 		pSend.setPort(destPort);
-		timestamp = System.nanoTime();
 		socket.send(pSend);
 	}
 	
+	/*
+	 * Sends a request again. In pipelined mode, this runs in the receiving
+	 * half and thus uses its own packet.
+	 */
+	private void resend(byte[] bytes) throws IOException {
+		retransmissions++;
+		if (channel != null) {
+			channel.send(ByteBuffer.wrap(bytes), destination);
+			return;
+		}
+		if (dtls != null) {
+			dtls.send(bytes, System.nanoTime());
+			return;
+		}
+		pRetransmit.setData(bytes);
+		pRetransmit.setAddress(destAddress);
+		pRetransmit.setPort(destPort);
+		socket.send(pRetransmit);
+	}
+	
+	/*
+	 * Retransmits the current request of a closed-loop client, which is still
+	 * in the buffer of the producer.
+	 */
+	private void retransmitCurrent() throws IOException {
+		retries++;
+		resend(producer.getTemplate().getBytes());
+	}
+	
+	/*
+	 * Expires or, with retransmissions, retransmits the requests in flight.
+	 */
+	private int expireInFlight(long now) throws IOException {
+		if (retransmission == null)
+			return inflight.expire(now, TIMEOUT * 1000000L, classTimeouts);
+		return inflight.retransmit(now, retransmission, retransmitter, classTimeouts);
+	}
+	
 	public void receiveRegistration() throws IOException, URISyntaxException {
 		try {
-			boolean mid_correct;
-			long latency;
-			//do {
-				socket.receive(pRecv);
-				latency = System.nanoTime() - timestamp;
-				byte[] resp = pRecv.getData();
-				//System.err.println("Response data from Registration is "+resp.toString());
-				//mid_correct = checkMID(resp);
-				checkCode(resp);
-				
-				//Create a new Registration Update and add it into the producer
-				if (scheme!=null){
-					if (!scheme.substring(scheme.length() - 1).equals("/")){
-						scheme +=  '/';
-					}
-					
-					String rd = null;
-					if (pRecv.getLength() > 8){
-						rd = new String( resp, pRecv.getOffset()+8, pRecv.getLength()-8);
-					}
-					
-					scheme = scheme + "rd/" + rd;
-					
-					URI uri = new URI(scheme);
-				    producer.setURI(uri, "POST", null);
-				}
-			//} while (!mid_correct);
-			if (checkLatency){
-				synchronized (lock) {
-					latencies.add((int) (latency / 1000000));
-				}	
-			}	
-			counter++;
+			registering = true;
+			handleResponse(pRecv.getData(), receive());
 		} catch (SocketTimeoutException e) {
 //			System.out.println("Timeout occured");
+			registering = false;
 			lost++;
 		}
 	}
 	
-	public void receiveResponse() throws IOException {
-		try {
-			boolean mid_correct;
-			long latency;
-			do {
-				socket.receive(pRecv);
-				latency = System.nanoTime() - timestamp;
-				byte[] resp = pRecv.getData();
-				mid_correct = checkMID(resp);
-				checkCode(resp);
-			} while (!mid_correct);
-			if (checkLatency){
-				synchronized (lock) {
-					latencies.add((int) (latency / 1000000));
-				}	
+	/*
+	 * Creates a new Registration Update from the location returned by the
+	 * registration response and adds it into the producer.
+	 */
+	private void updateRegistration(byte[] resp, int offset, int length) throws URISyntaxException {
+		if (scheme!=null){
+			if (!scheme.substring(scheme.length() - 1).equals("/")){
+				scheme +=  '/';
 			}
-			counter++;
-		} catch (SocketTimeoutException e) {
-//			System.out.println("Timeout occured");
-			lost++;
+			
+			String rd = null;
+			if (length > 8){
+				rd = new String( resp, offset+8, length-8);
+			}
+			
+			scheme = scheme + "rd/" + rd;
+			
+			URI uri = new URI(scheme);
+		    producer.setURI(uri, "POST", null);
+		}
+	}
+	
+	public void receiveResponse() throws IOException, URISyntaxException {
+		while (true) {
+			try {
+				do {
+					if (retransmission != null) {
+						// wait until the next retransmission or the loss is due
+						long deadline = timestamp + retransmission.getDeadline(sequence, retries + 1);
+						setReceiveTimeout((int) Math.max(1, (deadline - System.nanoTime()) / 1000000L));
+					}
+				} while (!handleResponse(pRecv.getData(), receive()));
+				return;
+			} catch (SocketTimeoutException e) {
+//				System.out.println("Timeout occured");
+				if (retransmission == null || retries == retransmission.getMaxRetransmit()) {
+					timeout();
+					return;
+				}
+				retransmitCurrent();
+			}
+		}
+	}
+	
+	/*
+	 * Receives the next datagram of a threaded client into the receive packet
+	 * and returns its length.
+	 */
+	private int receive() throws IOException {
+		if (dtls != null)
+			return dtls.receive(pRecv.getData(), receiveTimeout);
+		socket.receive(pRecv);
+		return pRecv.getLength();
+	}
+	
+	private void setReceiveTimeout(int timeout) throws IOException {
+		if (dtls != null)
+			receiveTimeout = timeout;
+		else
+			socket.setSoTimeout(timeout);
+	}
+	
+	/**
+	 * Processes a response and records its latency.
+	 * 
+	 * @return true if the response belongs to a request in flight
+	 */
+	private boolean handleResponse(byte[] resp, int length) throws IOException, URISyntaxException {
+		long now = System.nanoTime();
+		bytesReceived += length;
+		if (length < 4)
+			return false;
+		int type = (resp[0] & 0x30) >> 4;
+		if (type == CoAP.Type.ACK.value && resp[1] == 0)
+			return false; // empty ACK, the separate response follows
+		if (type == CoAP.Type.RST.value)
+			return handleReset(getMID(resp));
+		boolean notification = type != CoAP.Type.ACK.value && hasObserve(resp, length);
+		int completed = counter;
+		boolean matched = correlate(resp, length, now, checkToken && !notification);
+		if (matched && dtls != null)
+			countHandshake(now, counter != completed);
+		if (notification && !matched)
+			reply(resp, CoAP.Type.RST); // cancel the observation of a completed request
+		else if (type == CoAP.Type.CON.value)
+			reply(resp, CoAP.Type.ACK);
+		return matched;
+	}
+	
+	/*
+	 * Matches a response with its request by token and records the result.
+	 */
+	private boolean correlate(byte[] resp, int length, long now, boolean warn) throws URISyntaxException {
+		int tokenLength = resp[0] & 0x0F;
+		if (tokenLength != TOKEN_LENGTH || length < 4 + TOKEN_LENGTH) {
+			if (warn)
+				System.err.println("Received message with unknown token length "+tokenLength);
+			return false;
+		}
+		int actual = getToken(resp);
+		long sent;
+		int tag = current;
+		int retransmitted = 0;
+		if (registering) {
+			if (actual != expected)
+				return false;
+			registering = false;
+			if (!checkCode(resp, length, tag))
+				return true;
+			updateRegistration(resp, TOKEN_LENGTH, length - TOKEN_LENGTH);
+			sent = timestamp;
+		} else if (inflight != null) {
+			if (actual >>> 16 != prefix) {
+				if (warn)
+					System.err.println("Received message with unknown token "+actual);
+				return false;
+			}
+			int key = actual & 0xFFFF;
+			if (retransmission != null)
+				retransmitted = inflight.getRetransmissions(key);
+			tag = Math.max(0, inflight.getTag(key));
+			sent = inflight.remove(key);
+			if (sent == InFlightTable.NOT_FOUND) {
+				if (warn)
+					System.err.println("Received message with unknown token "+actual);
+				return false;
+			}
+			if (!checkCode(resp, length, tag))
+				return true;
+		} else if (blockwise != null) {
+			if (!checkToken(actual, warn))
+				return false;
+			if (checkLatency)
+				blockLatencies.record((now - timestamp) / 1000);
+			blocks++;
+			if (!checkCode(resp, length, tag)) {
+				blockNum = 0; // abort the transfer
+				complete(now);
+				return true;
+			}
+			if (nextBlock(resp, length)) {
+				// the transfer continues without think time
+				if (isThinking())
+					nextSend = now;
+				return true;
+			}
+			blockNum = 0;
+			complete(now);
+			sent = transferStart;
+			retransmitted = retries;
+		} else {
+			if (!checkToken(actual, warn))
+				return false;
+			complete(now);
+			if (!checkCode(resp, length, tag))
+				return true;
+			sent = timestamp;
+			retransmitted = retries;
+		}
+		if (checkLatency && (dtls == null || dtls.getHandshake() == DtlsTransport.Handshake.NONE)) {
+			latencies.record((now - sent) / 1000);
+			if (firstTry != null && retransmitted == 0)
+				firstTry.record((now - sent) / 1000);
+			if (classLatencies != null)
+				classLatencies[tag].record((now - sent) / 1000);
+		}
+		if (classCounts != null)
+			classCounts[tag]++;
+		counter++;
+		return true;
+	}
+	
+	/*
+	 * Advances the block-wise transfer after a successful response to a block
+	 * and returns whether there are more blocks. A download continues while
+	 * the Block2 option of the response has the more flag set and follows the
+	 * block size of the server. An upload continues after a 2.31
+	 * Continue until the last block of the body has been sent. The Block2
+	 * option of the final response of an upload is ignored.
+	 */
+	private boolean nextBlock(byte[] resp, int length) {
+		if (blockwise.isUpload()) {
+			if ((resp[1] & 0xFF) != CoAP.ResponseCode.CONTINUE.value || blockNum + 1 >= blockwise.getBlockCount())
+				return false;
+			blockNum++;
+			return true;
+		}
+		int block2 = getUintOption(resp, length, OptionNumberRegistry.BLOCK2);
+		if (block2 < 0 || (block2 & 0x08) == 0)
+			return false;
+		// the number of the response is in the block size of the server
+		blockNum = (block2 >>> 4) + 1;
+		blockSzx = block2 & 0x07;
+		return true;
+	}
+	
+	/*
+	 * Records the latency of the handshake that the response has completed
+	 * or, after the configured number of requests over the session, lets the
+	 * next request resume the session. A handshake is only counted if its
+	 * request has completed, so that the requests over established sessions
+	 * are the completed requests minus the handshakes and resumptions.
+	 */
+	private void countHandshake(long now, boolean completed) {
+		DtlsTransport.Handshake handshake = dtls.getHandshake();
+		if (handshake == DtlsTransport.Handshake.NONE) {
+			if (resumeEvery > 0 && ++sinceHandshake >= resumeEvery) {
+				dtls.resume();
+				sinceHandshake = 0;
+			}
+			return;
+		}
+		long latency = dtls.established(now) / 1000;
+		if (!completed)
+			return;
+		if (handshake == DtlsTransport.Handshake.FULL) {
+			fullHandshakes++;
+			fullLatencies.record(latency);
+		} else {
+			resumptions++;
+			resumeLatencies.record(latency);
+		}
+	}
+	
+	/*
+	 * A reset rejects the request with the same MID. It carries no token, but
+	 * the MID is the sequence number of the request.
+	 */
+	private boolean handleReset(int mid) {
+		int tag = current;
+		if (inflight != null && !registering) {
+			tag = Math.max(0, inflight.getTag(mid));
+			if (inflight.remove(mid) == InFlightTable.NOT_FOUND)
+				return false;
+		} else {
+			if (mid != (expected & 0xFFFF))
+				return false;
+			if (!registering) {
+				blockNum = 0;
+				complete(System.nanoTime());
+			}
+			registering = false;
+		}
+		codes.recordReset();
+		if (classCodes != null)
+			classCodes[tag].recordReset();
+		return true;
+	}
+	
+	/*
+	 * Completes the request of a closed-loop client. With think times, the
+	 * next request is scheduled after the think time of the class.
+	 */
+	private void complete(long now) {
+		if (isThinking())
+			nextSend = now + think[current];
+	}
+	
+	/*
+	 * Counts the request of a closed-loop client as lost.
+	 */
+	private void timeout() {
+		lost++;
+		blockNum = 0; // a lost block aborts the transfer
+		if (classTimeouts != null)
+			classTimeouts[current]++;
+		complete(System.nanoTime());
+	}
+	
+	/*
+	 * Whether a closed-loop client waits for think times. Think times do not
+	 * apply to pipelined and open-loop clients.
+	 */
+	private boolean isThinking() {
+		return think != null && inflight == null && !isOpenLoop();
+	}
+	
+	/**
+	 * Sends requests from a non-blocking client until the window is full or,
+	 * in open-loop mode, until all requests scheduled up to now have been
+	 * sent. While the client registers, only the registration is sent.
+	 */
+	public void fill() throws IOException {
+		if (registering) {
+			if (pending == 0) {
+				sendRequest();
+				pending++;
+			}
+		} else {
+			long now = System.nanoTime();
+			while (runnable && pending < window && (!isScheduled() || nextSend - now <= 0)) {
+				sendScheduled();
+				pending++;
+			}
+		}
+	}
+	
+	/**
+	 * Non-blocking counterpart of {@link #receiveRegistration()} and
+	 * {@link #receiveResponse()}. Processes all datagrams available on the
+	 * channel into the specified buffer, which must come from the pool of this
+	 * client.
+	 */
+	public void receiveAvailable(ByteBuffer buffer) throws IOException, URISyntaxException {
+		while (true) {
+			buffer.clear();
+			if (channel.receive(buffer) == null)
+				return;
+			if (handleResponse(buffer.array(), buffer.position()))
+				pending--;
+		}
+	}
+	
+	/**
+	 * Processes a datagram that the shard of this client has received for it.
+	 */
+	public void receive(byte[] bytes, int length) throws IOException, URISyntaxException {
+		if (handleResponse(bytes, length))
+			pending--;
+	}
+	
+	/**
+	 * Counts the requests of a non-blocking client that have not been answered
+	 * within {@link #TIMEOUT} as lost. With retransmissions, retransmits the
+	 * requests that are due and counts them as lost after the last one.
+	 */
+	public void expire(long now) throws IOException {
+		if (inflight != null && !registering) {
+			int expired = expireInFlight(now);
+			lost += expired;
+			pending -= expired;
+		} else if (pending > 0 && retransmission != null && !registering) {
+			if (now - timestamp > retransmission.getDeadline(sequence, retries + 1)) {
+				if (retries < retransmission.getMaxRetransmit()) {
+					retransmitCurrent();
+				} else {
+					timeout();
+					pending--;
+				}
+			}
+		} else if (pending > 0 && now - timestamp > TIMEOUT * 1000000L) {
+			if (registering)
+				lost++;
+			else
+				timeout();
+			registering = false;
+			pending--;
+		}
+	}
+	
+	/**
+	 * Returns whether a non-blocking client has requests in flight.
+	 */
+	public boolean isPending() {
+		return pending > 0;
+	}
+	
+	/**
+	 * Returns the earliest time at which {@link #expire(long)} may find a
+	 * request of a non-blocking client that is due for a retransmission or
+	 * lost. Pipelined clients check their in-flight table every
+	 * {@link #EXPIRE_INTERVAL}.
+	 */
+	public long getNextExpiry(long now) {
+		if (inflight != null && !registering)
+			return now + EXPIRE_INTERVAL * 1000000L;
+		else if (retransmission != null && !registering)
+			return timestamp + retransmission.getDeadline(sequence, retries + 1) + 1;
+		else
+			return timestamp + TIMEOUT * 1000000L + 1;
+	}
+	
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * Returns the shard whose socket this client shares or null if it has its
+	 * own socket.
+	 */
+	public SocketShard getShard() {
+		return shard;
+	}
+	
+	/**
+	 * Returns the slot of this client in its shard.
+	 */
+	public int getSlot() {
+		return slot;
+	}
+	
+	/**
+	 * Returns the local port of the socket of this client.
+	 */
+	public int getLocalPort() throws IOException {
+		if (dtls != null)
+			return dtls.getLocalPort();
+		if (channel != null)
+			return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		return socket.getLocalPort();
+	}
+	
+	/**
+	 * Sets the number of requests this client keeps in flight. Must not be
+	 * called while the client is running.
+	 */
+	public void setWindow(int window) {
+		if (window < 1 || window >= InFlightTable.MAX_CAPACITY)
+			throw new IllegalArgumentException("Window must be between 1 and "+(InFlightTable.MAX_CAPACITY-1));
+		if (window > 1 && dtls != null)
+			throw new IllegalStateException("DTLS clients require a window of one");
+		this.closedWindow = window;
+		resize();
+	}
+
+	/*
+	 * Sizes the in-flight table. An open-loop client keeps at least as many
+	 * requests in flight as it sends within the lifetime of a request, so
+	 * that it is never held back by its window, and a replaying client as
+	 * many as the track demands.
+	 */
+	private void resize() {
+		int size = closedWindow;
+		if (track != null)
+			size = InFlightTable.MAX_CAPACITY - 1;
+		else if (arrival != null)
+			size = Math.max(size, getOpenLoopWindow(Math.max(1, arrival.getMean())));
+		else if (interval > 0)
+			size = Math.max(size, getOpenLoopWindow(interval));
+		if (size != window || (size > 1) != (inflight != null)) {
+			window = size;
+			inflight = size > 1 ? new InFlightTable(size) : null;
+		}
+	}
+
+	/*
+	 * Returns the number of requests sent with the specified mean interval
+	 * within the lifetime of a request, plus a margin for the fluctuation of
+	 * random arrivals.
+	 */
+	private int getOpenLoopWindow(long interval) {
+		long lifetime = retransmission != null ? retransmission.getMaxLifetime() : TIMEOUT * 1000000L;
+		double expected = (double) lifetime / interval;
+		long size = (long) Math.ceil(expected + 4 * Math.sqrt(expected)) + 1;
+		return (int) Math.min(Math.max(size, 2), InFlightTable.MAX_CAPACITY - 1);
+	}
+	
+	public int getWindow() {
+		return window;
+	}
+	
+	/**
+	 * Lets the receiving half of a pipelined client run on a virtual thread
+	 * like the client itself.
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+	
+	/**
+	 * Sets the rate at which this client sends its requests in open-loop mode.
+	 * A rate of zero switches back to closed-loop mode. Must not be called
+	 * while the client is running.
+	 * 
+	 * @param rate the requests per second
+	 */
+	public void setRate(double rate) {
+		if (rate > 0)
+			interval = Math.max(1, (long) (1000000000d / rate));
+		else interval = 0;
+		resize();
+	}
+	
+	/**
+	 * Sets the distribution of the time between the requests of this client
+	 * in open-loop mode. Null switches back to the rate. Must not be called
+	 * while the client is running.
+	 */
+	@Override
+	public void setInterArrival(InterArrival arrival) {
+		this.arrival = arrival;
+		resize();
+	}
+	
+	public InterArrival getInterArrival() {
+		return arrival;
+	}
+	
+	/**
+	 * Replays the requests of the specified track instead of sending own
+	 * requests. The client keeps as many requests in flight as the track
+	 * demands. Replayed requests are not retransmitted. Must not be called
+	 * while the client is running.
+	 * 
+	 * @param track the track or null to send own requests
+	 * @param speed the factor by which the replay is faster than the trace
+	 */
+	public void setReplay(Trace.Track track, double speed) {
+		if (track != null && retransmission != null)
+			throw new IllegalStateException("Replayed requests cannot be retransmitted");
+		if (speed <= 0)
+			throw new IllegalArgumentException("Speed must be positive");
+		this.track = track;
+		this.speed = speed;
+		if (track != null) {
+			interval = 0;
+			arrival = null;
+		}
+		resize();
+	}
+	
+	/**
+	 * Sets the parameters with which this client retransmits its requests. A
+	 * client without parameters counts a request as lost after
+	 * {@link #TIMEOUT}. Must not be called while the client is running.
+	 */
+	public void setRetransmission(Retransmission retransmission) {
+		this.retransmission = retransmission;
+		if (retransmission != null && checkLatency && firstTry == null)
+			firstTry = new LatencyHistogram(precision);
+		resize();
+	}
+	
+	public Retransmission getRetransmission() {
+		return retransmission;
+	}
+	
+	/**
+	 * Switches this client to block-wise transfers. The client must have a
+	 * window of one and the method of the URI decides between download and
+	 * upload. Must not be called while the client is running.
+	 *
+	 * @param blockwise the parameters or null for single requests
+	 */
+	public void setBlockwise(Blockwise blockwise) {
+		if (blockwise != null && inflight != null)
+			throw new IllegalStateException("Block-wise transfers require a window of one");
+		this.blockwise = blockwise;
+		if (blockwise != null) {
+			producer.setBlockwise(blockwise.getSzx(), blockwise.isUpload() ? blockwise.getBody().length : 0);
+			if (checkLatency && blockLatencies == null)
+				blockLatencies = new LatencyHistogram(precision);
 		}
 	}
 	
+	public Blockwise getBlockwise() {
+		return blockwise;
+	}
+	
+	public DtlsTransport getDtls() {
+		return dtls;
+	}
+	
+	/**
+	 * Lets a DTLS client resume its session after every specified number of
+	 * requests over the session. Zero keeps the session for the whole run.
+	 */
+	public void setResumeEvery(int requests) {
+		this.resumeEvery = requests;
+	}
+	
+	public boolean isOpenLoop() {
+		return interval > 0 || arrival != null;
+	}
+	
+	/**
+	 * Returns whether the requests of this client are scheduled, i.e., whether
+	 * it runs open-loop, replays a trace or waits for think times.
+	 */
+	public boolean isScheduled() {
+		return isOpenLoop() || track != null || isThinking();
+	}
+	
+	/**
+	 * Returns the time at which the next request of a scheduled client is
+	 * due.
+	 */
+	public long getNextSend() {
+		return nextSend;
+	}
+	
 	@Override
 	public boolean isRunning() {
 		return runnable;
@@ -200,8 +1171,59 @@ public class VirtualClient implements Runnable, VirtualDevice {
 	
 	public void reset() {
 		runnable = true;
+		registering = registration;
+		pending = 0;
 		counter = 0;
 		lost = 0;
+		truncated = 0;
+		bytesReceived = 0;
+		payloadBytes = 0;
+		retries = 0;
+		retransmissions = 0;
+		blockNum = 0;
+		blocks = 0;
+		if (dtls != null) {
+			// every run starts with a full handshake
+			dtls.close();
+			sinceHandshake = 0;
+			fullHandshakes = 0;
+			resumptions = 0;
+			fullLatencies.reset();
+			resumeLatencies.reset();
+		}
+		for (int i=0;i<retransmitBuffers.length;i++)
+			retransmitBuffers[i] = null;
+		codes.reset();
+		if (classCounts != null) {
+			for (int i=0;i<classCounts.length;i++) {
+				classCounts[i] = 0;
+				classTimeouts[i] = 0;
+				classCodes[i].reset();
+				if (classLatencies != null)
+					classLatencies[i].reset();
+			}
+		}
+		if (inflight != null)
+			inflight.clear();
+		if (latencies != null)
+			latencies.reset();
+		if (firstTry != null)
+			firstTry.reset();
+		if (blockLatencies != null)
+			blockLatencies.reset();
+		// spread the first requests of all clients over one interval
+		if (arrival != null)
+			nextSend = System.nanoTime() + ThreadLocalRandom.current().nextLong(Math.max(1, arrival.getMean()));
+		else if (interval > 0)
+			nextSend = System.nanoTime() + ThreadLocalRandom.current().nextLong(interval);
+		else if (isThinking())
+			nextSend = System.nanoTime();
+		if (track != null) {
+			track.rewind();
+			replayStart = System.nanoTime();
+			// a client without sources never sends
+			nextSend = replayStart + (track.isEmpty() ? IDLE : (long) (track.getTime() / speed));
+		}
 	}
 	
 	public int getCount() {
@@ -212,33 +1234,297 @@ public class VirtualClient implements Runnable, VirtualDevice {
 		return lost;
 	}
 	
-	public synchronized ArrayList<Integer> getLatencies() {
+	/**
+	 * Returns the number of answered blocks in block-wise mode, including the
+	 * blocks of aborted transfers.
+	 */
+	public int getBlocks() {
+		return blocks;
+	}
+	
+	/**
+	 * Returns the number of responses that were larger than the receive
+	 * buffers and therefore not counted.
+	 */
+	public int getTruncated() {
+		return truncated;
+	}
+	
+	/**
+	 * Returns the bytes of all datagrams received, including the headers.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+	
+	/**
+	 * Returns the payload bytes of the completed requests.
+	 */
+	public long getPayloadBytes() {
+		return payloadBytes;
+	}
+	
+	/**
+	 * Sets the pool of the receive buffers, whose size is the largest
+	 * response that is received completely. Must not be set while the client
+	 * is running.
+	 */
+	@Override
+	public void setReceiveBuffers(ReceiveBufferPool buffers) {
+		this.buffers = buffers;
+	}
+	
+	public ReceiveBufferPool getReceiveBuffers() {
+		return buffers;
+	}
+	
+	public int getRetransmissions() {
+		return retransmissions;
+	}
+	
+	/**
+	 * Returns the counters of the response codes, including errors and resets.
+	 */
+	public ResponseCodes getResponseCodes() {
+		return codes;
+	}
+	
+	/**
+	 * Returns the completed requests per class of the scenario or null if the
+	 * client has no scenario.
+	 */
+	public int[] getClassCounts() {
+		return classCounts;
+	}
+	
+	/**
+	 * Returns the lost requests per class of the scenario or null if the
+	 * client has no scenario.
+	 */
+	public int[] getClassTimeouts() {
+		return classTimeouts;
+	}
+	
+	/**
+	 * Returns the response codes per class of the scenario or null if the
+	 * client has no scenario.
+	 */
+	public ResponseCodes[] getClassResponseCodes() {
+		return classCodes;
+	}
+	
+	/**
+	 * Returns the latencies per class of the scenario or null if the client
+	 * has no scenario or the latency is not measured.
+	 */
+	public LatencyHistogram[] getClassLatencies() {
+		return classLatencies;
+	}
+	
+	/**
+	 * Returns the histogram of the latencies in microseconds or null if the
+	 * latency is not measured.
+	 */
+	public LatencyHistogram getLatencies() {
 		return latencies;
 	}
 	
-	private void saveMID(byte[] bytes) {
-		mid[0] = bytes[2];
-		mid[1] = bytes[3];
+	/**
+	 * Returns the histogram of the latencies of the requests answered without
+	 * retransmission or null if the client does not retransmit or the latency
+	 * is not measured.
+	 */
+	public LatencyHistogram getFirstTryLatencies() {
+		return firstTry;
+	}
+	
+	/**
+	 * Returns the histogram of the latencies of the single blocks in
+	 * microseconds or null if the client does not transfer block-wise or the
+	 * latency is not measured.
+	 */
+	public LatencyHistogram getBlockLatencies() {
+		return blockLatencies;
+	}
+	
+	public int getFullHandshakes() {
+		return fullHandshakes;
+	}
+	
+	public int getResumptions() {
+		return resumptions;
 	}
 	
-	private boolean checkMID(byte[] bytes) {
-		int expected = ( ((mid[0] & 0xFF)<<8) + (mid[1] & 0xFF));
-		int actual = ( ((bytes[2] & 0xFF)<<8) + (bytes[3] & 0xFF));
-		if (checkMID && 
-				(bytes[2] != mid[0] || bytes[3]!=mid[1]) ) {
-			System.err.println("Received message with wrong MID, expected "+expected+ " but received "+actual);
+	/**
+	 * Returns the histogram of the latencies of the full handshakes in
+	 * microseconds or null if the client does not use DTLS.
+	 */
+	public LatencyHistogram getHandshakeLatencies() {
+		return fullLatencies;
+	}
+	
+	/**
+	 * Returns the histogram of the latencies of the abbreviated handshakes in
+	 * microseconds or null if the client does not use DTLS.
+	 */
+	public LatencyHistogram getResumptionLatencies() {
+		return resumeLatencies;
+	}
+	
+	private static int getMID(byte[] bytes) {
+		return ((bytes[2] & 0xFF)<<8) | (bytes[3] & 0xFF);
+	}
+	
+	private static void setToken(byte[] bytes, int token) {
+		bytes[4] = (byte) (token >> 24);
+		bytes[5] = (byte) (token >> 16);
+		bytes[6] = (byte) (token >> 8);
+		bytes[7] = (byte) token;
+	}
+	
+	private static int getToken(byte[] bytes) {
+		return ((bytes[4] & 0xFF)<<24) | ((bytes[5] & 0xFF)<<16) | ((bytes[6] & 0xFF)<<8) | (bytes[7] & 0xFF);
+	}
+	
+	/*
+	 * Returns whether the message has an Observe option, i.e., whether it is
+	 * a notification. Only the options up to Observe are parsed.
+	 */
+	private static boolean hasObserve(byte[] bytes, int length) {
+		int index = 4 + (bytes[0] & 0x0F);
+		int number = 0;
+		while (index < length && bytes[index] != (byte) 0xFF) {
+			int delta = (bytes[index] & 0xF0) >> 4;
+			number += delta;
+			if (delta >= 13 || number >= OptionNumberRegistry.OBSERVE)
+				return number == OptionNumberRegistry.OBSERVE;
+			int optionLength = bytes[index++] & 0x0F;
+			if (optionLength == 13)
+				optionLength = 13 + (bytes[index++] & 0xFF);
+			else if (optionLength > 13)
+				return false; // no option before Observe is that long
+			index += optionLength;
+		}
+		return false;
+	}
+	
+	/*
+	 * Returns the value of the first option with the specified number as
+	 * unsigned integer of up to 3 bytes, or -1 if the message has no such
+	 * option.
+	 */
+	private static int getUintOption(byte[] bytes, int length, int option) {
+		int index = 4 + (bytes[0] & 0x0F);
+		int number = 0;
+		while (index < length) {
+			int header = bytes[index++] & 0xFF;
+			if (header == 0xFF)
+				return -1;
+			int delta = header >> 4;
+			int optionLength = header & 0x0F;
+			if (delta == 13)
+				delta = 13 + (index < length ? bytes[index++] & 0xFF : 0);
+			else if (delta == 14)
+				return -1; // no option of interest is that large
+			if (optionLength == 13)
+				optionLength = 13 + (index < length ? bytes[index++] & 0xFF : 0);
+			else if (optionLength == 14)
+				optionLength = 269 + (index + 1 < length ? ((bytes[index++] & 0xFF) << 8 | (bytes[index++] & 0xFF)) : 0);
+			number += delta;
+			if (number == option) {
+				if (optionLength > 3 || index + optionLength > length)
+					return -1;
+				int value = 0;
+				for (int i=0;i<optionLength;i++)
+					value = value << 8 | (bytes[index + i] & 0xFF);
+				return value;
+			}
+			if (number > option)
+				return -1;
+			index += optionLength;
+		}
+		return -1;
+	}
+	
+	private boolean checkToken(int actual, boolean warn) {
+		if (actual != expected) {
+			if (warn)
+				System.err.println("Received message with wrong token, expected "+expected+ " but received "+actual);
 			return false;
 		}
 		return true;
 	}
 	
-	private void checkCode(byte[] bytes) {
+	/*
+	 * Sends an empty ACK for a confirmable separate response, so that the
+	 * server does not retransmit it, or an empty RST to reject a message.
+	 */
+	private void reply(byte[] resp, CoAP.Type type) throws IOException {
+		byte[] ack = pAck.getData();
+		ack[0] = (byte) (0x40 | type.value << 4); // version 1, no token
+		ack[1] = 0;
+		ack[2] = resp[2];
+		ack[3] = resp[3];
+		if (channel != null) {
+			bAck.clear();
+			if (channel.isConnected())
+				channel.write(bAck);
+			else
+				channel.send(bAck, destination);
+			return;
+		}
+		if (dtls != null) {
+			dtls.send(ack, System.nanoTime());
+			return;
+		}
+		pAck.setAddress(destAddress);
+		pAck.setPort(destPort);
+		socket.send(pAck);
+	}
+	
+	/*
+	 * Counts the response code and returns whether it is a success. An error
+	 * or a truncated response completes the exchange, but is neither counted
+	 * as completed request nor recorded in the latencies.
+	 */
+	private boolean checkCode(byte[] bytes, int length, int tag) {
 		int c = 0xFF & bytes[1];
-		if (checkCode && (c != CoAP.ResponseCode.CONTENT.value) && (c != CoAP.ResponseCode.CREATED.value)&& (c != CoAP.ResponseCode.CHANGED.value)) {
-			System.err.println("Wrong response code: " + CoAP.ResponseCode.valueOf(c));
-			System.exit(-1);
+		codes.record(c);
+		if (classCodes != null)
+			classCodes[tag].record(c);
+		if (buffers.isTruncated(length)) {
+			truncated++;
+			return false;
+		}
+		if (checkCode && !ResponseCodes.isSuccess(c))
+			return false;
+		payloadBytes += getPayloadLength(bytes, length);
+		return true;
+	}
+	
+	/*
+	 * Returns the length of the payload after the options and the payload
+	 * marker.
+	 */
+	private static int getPayloadLength(byte[] bytes, int length) {
+		int index = 4 + (bytes[0] & 0x0F);
+		while (index < length) {
+			int header = bytes[index++] & 0xFF;
+			if (header == 0xFF)
+				return length - index;
+			int delta = header >> 4;
+			int optionLength = header & 0x0F;
+			if (delta == 13)
+				index += 1;
+			else if (delta == 14)
+				index += 2;
+			if (optionLength == 13)
+				optionLength = 13 + (index < length ? bytes[index++] & 0xFF : 0);
+			else if (optionLength == 14)
+				optionLength = 269 + (index + 1 < length ? ((bytes[index++] & 0xFF) << 8 | (bytes[index++] & 0xFF)) : 0);
+			index += optionLength;
 		}
-		
+		return 0;
 	}
 
 	public boolean isCheckLatency() {
@@ -251,9 +1537,50 @@ public class VirtualClient implements Runnable, VirtualDevice {
 	
 	public void setCheckLatency(boolean checkLatency) {
 		this.checkLatency = checkLatency;
+		if (checkLatency && latencies == null)
+			latencies = new LatencyHistogram(precision);
+		if (checkLatency && retransmission != null && firstTry == null)
+			firstTry = new LatencyHistogram(precision);
+		if (checkLatency && blockwise != null && blockLatencies == null)
+			blockLatencies = new LatencyHistogram(precision);
+		if (checkLatency && scenario != null && classLatencies == null) {
+			classLatencies = new LatencyHistogram[scenario.size()];
+			for (int i=0;i<classLatencies.length;i++)
+				classLatencies[i] = new LatencyHistogram(precision);
+		}
+	}
+	
+	public void setPrecision(int precision) {
+		this.precision = precision;
+		if (latencies != null && latencies.getPrecision() != precision)
+			latencies = new LatencyHistogram(precision);
+		if (firstTry != null && firstTry.getPrecision() != precision)
+			firstTry = new LatencyHistogram(precision);
+		if (blockLatencies != null && blockLatencies.getPrecision() != precision)
+			blockLatencies = new LatencyHistogram(precision);
+		if (fullLatencies != null && fullLatencies.getPrecision() != precision) {
+			fullLatencies = new LatencyHistogram(precision);
+			resumeLatencies = new LatencyHistogram(precision);
+		}
+		if (classLatencies != null)
+			for (int i=0;i<classLatencies.length;i++)
+				if (classLatencies[i].getPrecision() != precision)
+					classLatencies[i] = new LatencyHistogram(precision);
 	}
 	
 	public void close() {
-		socket.close();
+		if (shard != null) {
+			shard.detach(slot);
+		} else if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		} else if (dtls != null) {
+			dtls.destroy();
+		} else {
+			socket.close();
+		}
 	}
 }
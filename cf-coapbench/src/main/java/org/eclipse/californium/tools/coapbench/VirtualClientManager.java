@@ -24,10 +24,18 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The VirtualClient manager creates the virtual clients for the benchmarks.
@@ -38,7 +46,28 @@ public class VirtualClientManager {
 
 	public static final String LOG_FILE = "coapbench";
 	
-	private Timer timer;
+	/** The percentiles of the latency columns in the log */
+	public static final double[] PERCENTILES = { 0, 10, 20, 30, 40, 50, 60, 100 * 2d / 3, 70, 75, 80, 90, 95, 98, 99, 100 };
+	
+	/** The interval in which the steady state detection samples the throughput */
+	public static final int STEADY_STATE_INTERVAL = 1000; // [ms]
+	
+	/** The maximum time to wait for steady state after the warm-up */
+	public static final int MAX_STEADY_STATE_WAIT = 60 * 1000; // [ms]
+	
+	/** The interval in which the error rate is checked against the budget */
+	public static final int ERROR_BUDGET_INTERVAL = 1000; // [ms]
+	
+	/** The minimum number of responses before the error budget applies */
+	public static final int ERROR_BUDGET_MIN_RESPONSES = 100;
+
+	/** The time a run may take to stop after its end before run() stops it */
+	public static final int STOP_TIMEOUT = 10 * 1000; // [ms]
+
+	/** The share with which the clients use a pool of one socket per core */
+	public static final int SHARE_PER_CORE = -1;
+	
+	private TimerService timer;
 
 	private URI uri;
 	private String target; 
@@ -56,7 +85,64 @@ public class VirtualClientManager {
 	private LogFile log;
 	
 	private boolean enableLatency = false;
+	private int precision = LatencyHistogram.DEFAULT_PRECISION;
+	private LatencyUnit unit = LatencyUnit.MILLISECONDS;
 	private boolean verbose;
+	
+	private boolean nio = false;
+	private NioClientEngine engine;
+	private boolean virtualThreads = false;
+	private int window = 1;
+	private int share = 0;
+	private ReceiveBufferPool buffers = ReceiveBufferPool.getDefault();
+	private boolean reusePort = false;
+	private List<SocketShard> shards = new ArrayList<SocketShard>();
+	private SocketShard shard;
+	private Set<Integer> ports;
+	private KernelDrops drops;
+	private Retransmission retransmission;
+	private Scenario scenario;
+	private Trace trace;
+	private double speed = 1;
+	private Blockwise blockwise;
+	private DtlsIdentity dtls;
+	private int resume = 0;
+	private double errorBudget = 0;
+	private TimerService.Task stopTask;
+	private TimerService.Task budgetTask;
+	private boolean aborted;
+	private double rate = 0; // [1/s]
+	private InterArrival arrival;
+	private int interval = 0; // [ms]
+	private IntervalReporter reporter;
+	private int warmup = 0; // [ms]
+	private double steadyState = 0;
+	private int[] warmupCounts;
+	private int[] warmupTimeouts;
+	private long warmupRetransmissions;
+	private long warmupTruncated;
+	private long warmupBytes;
+	private long warmupPayloadBytes;
+	private LatencyHistogram warmupFirstTry;
+	private long warmupBlocks;
+	private LatencyHistogram warmupBlockLatencies;
+	private long warmupHandshakes;
+	private long warmupDtlsDropped;
+	private long warmupResumptions;
+	private LatencyHistogram warmupHandshakeLatencies;
+	private LatencyHistogram warmupResumptionLatencies;
+	private ResponseCodes warmupCodes;
+	private long[] warmupClassCounts;
+	private long[] warmupClassTimeouts;
+	private ResponseCodes[] warmupClassCodes;
+	private LatencyHistogram[] warmupClassLatencies;
+	private LatencyHistogram warmupLatencies;
+	private CountDownLatch finished;
+	private volatile Throwable failure;
+	private BenchmarkResult result;
+	private Set<ResultExporter.Format> formats = EnumSet.noneOf(ResultExporter.Format.class);
+	private ResultExporter exporter;
+	private String logName = LOG_FILE;
 
 
 	/**
@@ -101,7 +187,7 @@ public class VirtualClientManager {
 		this.method = method;
 		this.payload = payload;
 		this.clients = new ArrayList<VirtualClient>();
-		this.timer = new Timer();
+		this.timer = new TimerService(getClass().getSimpleName());
 		this.multipleAddr = multipleAddr;
 		this.multipleAddr = multipleAddr;
 	}
@@ -109,14 +195,49 @@ public class VirtualClientManager {
 	public void runConcurrencySeries(int[] cs, int time) throws Exception {
 		int n = cs.length;
 		log("Run series: "+Arrays.toString(cs).replace("[","").replace("]", ""));
+		if (rate > 0)
+			log(String.format("Open-loop rate: %.1f requests/s", rate));
+		if (arrival != null)
+			log("Inter-arrival time per client: "+arrival);
+		if (scenario != null)
+			log("Scenario: "+scenario);
+		if (trace != null)
+			log("Replay: "+trace+" at speed "+speed);
+		if (virtualThreads && !nio) {
+			int max = 0;
+			for (int c:cs) max = Math.max(max, c);
+			log(VirtualThreads.compare(max));
+		}
 		
 		for (int i=0;i<n;i++) {
-			start(cs[i], time);
+			if (run(cs[i], time).isAborted()) {
+				log("Series aborted after "+cs[i]+" clients");
+				break;
+			}
 			
 			if (i < n-1) // sleep between two runs
-				Thread.sleep(time + 5*1000);
-			else Thread.sleep(time + 1000);
+				Thread.sleep(5*1000);
+			else Thread.sleep(1000);
+		}
+	}
+	
+	/**
+	 * Runs the specified number of clients and waits until the run, including
+	 * the warm-up, is finished.
+	 * 
+	 * @return the result of the run
+	 */
+	public BenchmarkResult run(int count, int time) throws Exception {
+		start(count, time);
+		// the timer stops the run, unless one of its tasks has failed
+		long limit = warmup + (steadyState > 0 ? MAX_STEADY_STATE_WAIT : 0) + time + STOP_TIMEOUT;
+		if (!finished.await(limit, TimeUnit.MILLISECONDS)) {
+			System.err.println("Run has not stopped in time, stop it now");
+			stop();
 		}
+		if (failure != null)
+			throw new IllegalStateException("Cannot stop the run", failure);
+		return result;
 	}
 	
 	public void log(String entry) throws Exception {
@@ -125,23 +246,40 @@ public class VirtualClientManager {
 	}
 	
 	public void lognew(String name) throws Exception {
+		if (log != null)
+			log.close();
 		this.log = new LogFile(LOG_FILE + "_" + name);
 		this.log.setVerbose(verbose);
+		this.logName = LOG_FILE + "_" + name;
+		if (exporter != null) {
+			exporter.close();
+			exporter = null;
+		}
 	}
 	
 	private void ensurelog() throws Exception {
 		if (log==null) {
-			log = new LogFile(LOG_FILE);
-			log.format("Timeouts, Concurrency, Time, Completed, Throughput | 0%%, 10%%, 20%%, 30%%, 40%%, 50%%, 60%%, 65%%, 70%%, 75%%, 80%%, 90%%, 95%%, 98%%, 99%%, 100%%, stdev(ms)\n");
+			log = new LogFile(logName);
+			log.format("Timeouts, Concurrency, Time, Completed, Throughput | 0%%, 10%%, 20%%, 30%%, 40%%, 50%%, 60%%, 65%%, 70%%, 75%%, 80%%, 90%%, 95%%, 98%%, 99%%, 100%%, stdev(%s)\n", unit.getSymbol());
 		}
 	}
 	
+	private void ensureexporter() throws Exception {
+		if (exporter==null && !formats.isEmpty())
+			exporter = new ResultExporter(logName, formats, unit, PERCENTILES);
+	}
+	
 	public void setClientCount(int c) throws Exception {
 		
 		if (c < clients.size()) {
 			for (int i=clients.size()-1; i>=c; i--)
 				clients.remove(i).close(); // close and remove
+			for (Iterator<SocketShard> i=shards.iterator(); i.hasNext();)
+				if (i.next().isClosed())
+					i.remove();
 		} else {
+			int perSocket = getClientsPerSocket(c);
+			int sockets = getSocketsPerShard(c - clients.size(), perSocket);
 		
 			/*System.out.println(new String(bindAddr.getAddress().getAddress())); // 
 			System.out.println(new String(rawIP.toByteArray())); //
@@ -157,12 +295,18 @@ public class VirtualClientManager {
 					/*if (bindAddr!=null){
 					   System.out.println(Arrays.toString(bindAddr.getAddress().getAddress()));
 					} */  
-					VirtualClient vc = new VirtualClient(uri, bindAddr, method, payload);
+					VirtualClient vc = createClient(uri, sockets, perSocket, i);
+					vc.setPrecision(precision);
 					vc.setCheckLatency(enableLatency);
+					vc.setIndex(i);
+					vc.setRetransmission(retransmission);
+					vc.setWindow(window);
+					vc.setReceiveBuffers(buffers);
+					vc.setInterArrival(arrival);
+					vc.setScenario(scenario);
+					vc.setBlockwise(blockwise);
+					vc.setResumeEvery(resume);
 					clients.add(vc);
-					if (multipleAddr){
-						bindAddr = new InetSocketAddress(increment(bindAddr.getAddress()), 0);
-					}
 				}
 			} else {
 				for (int i=clients.size(); i<c; i++) {
@@ -172,43 +316,335 @@ public class VirtualClientManager {
 					/*if (bindAddr!=null){
 					   System.out.println(Arrays.toString(bindAddr.getAddress().getAddress()));
 					}*/
-					VirtualClient vc = new VirtualClient(uri, bindAddr, method, payload);
+					VirtualClient vc = createClient(uri, sockets, perSocket, i);
 					vc.setRegistration(true);
 					vc.setScheme(scheme);
+					vc.setPrecision(precision);
 					vc.setCheckLatency(enableLatency);
+					vc.setIndex(i);
+					vc.setRetransmission(retransmission);
+					vc.setWindow(window);
+					vc.setReceiveBuffers(buffers);
+					vc.setInterArrival(arrival);
+					vc.setResumeEvery(resume);
 					clients.add(vc);
-					if (multipleAddr){
-						bindAddr = new InetSocketAddress(increment(bindAddr.getAddress()), 0);
-					}
 				}
 			}
 		}
 		this.count = c;
 	}
 	
+	/*
+	 * Creates a client with its own socket or in a shard. With -d, each
+	 * socket is bound to the next address. DTLS clients get the identity of
+	 * their index.
+	 */
+	private VirtualClient createClient(URI uri, int sockets, int perSocket, int index) throws Exception {
+		if (dtls != null) {
+			if (nio || share != 0)
+				throw new IllegalStateException("DTLS clients require their own thread and socket");
+			VirtualClient vc = new VirtualClient(uri, bindAddr, method, payload, dtls, index);
+			if (multipleAddr)
+				bindAddr = new InetSocketAddress(increment(bindAddr.getAddress()), 0);
+			return vc;
+		}
+		if (share == 0) {
+			VirtualClient vc = new VirtualClient(uri, bindAddr, method, payload, nio);
+			if (multipleAddr)
+				bindAddr = new InetSocketAddress(increment(bindAddr.getAddress()), 0);
+			return vc;
+		}
+		if (!nio)
+			throw new IllegalStateException("Shared sockets require the NIO engine");
+		if (shard == null || shard.isFull() || shard.isClosed()) {
+			shard = new SocketShard(bindAddr, sockets, Math.min(SocketShard.MAX_CLIENTS, perSocket * sockets));
+			shards.add(shard);
+			if (multipleAddr)
+				bindAddr = new InetSocketAddress(increment(bindAddr.getAddress()), 0);
+		}
+		return new VirtualClient(uri, shard, method, payload);
+	}
+	
+	/**
+	 * Checks that the clients of a shard neither have more requests in flight
+	 * than MIDs nor send faster than {@link SocketShard#MAX_MID_RATE}, above
+	 * which they reuse a MID while the server still remembers it. The rate of
+	 * closed-loop clients is unknown in advance, so their shards only log the
+	 * reused MIDs after the run.
+	 *
+	 * @param count the number of clients
+	 * @throws IllegalArgumentException if the shards would reuse MIDs
+	 */
+	public void checkShare(int count) {
+		if (share == 0)
+			return;
+		int perSocket = getClientsPerSocket(count);
+		int size = Math.min(count, perSocket * getSocketsPerShard(count, perSocket));
+		if ((long) size * window > SocketShard.MAX_CLIENTS)
+			throw new IllegalArgumentException("A shard of "+size+" clients with a window of "+window
+					+" has more requests in flight than MIDs, reduce -share or -window");
+		double perClient = 0;
+		if (rate > 0)
+			perClient = rate / count;
+		else if (arrival != null)
+			perClient = 1e9 / Math.max(1, arrival.getMean());
+		if (size * perClient > SocketShard.MAX_MID_RATE)
+			throw new IllegalArgumentException(String.format("A shard of %d clients sends %.0f requests/s and reuses MIDs"
+					+" within the exchange lifetime, reduce -share to at most %d clients per socket",
+					size, size * perClient, Math.max(1, (int) (SocketShard.MAX_MID_RATE / perClient))));
+	}
+
+	/*
+	 * With SHARE_PER_CORE, the clients are spread over one socket per core.
+	 */
+	private int getClientsPerSocket(int count) {
+		if (share != SHARE_PER_CORE)
+			return share;
+		int cores = Runtime.getRuntime().availableProcessors();
+		return Math.max(1, Math.min((count + cores - 1) / cores, SocketShard.MAX_CLIENTS));
+	}
+
+	/*
+	 * Without SO_REUSEPORT, each shard has one socket. With it, the sockets
+	 * for the new clients are spread over one shard per core, each with its
+	 * own port.
+	 */
+	private int getSocketsPerShard(int newClients, int perSocket) {
+		if (share == 0 || !reusePort)
+			return 1;
+		int sockets = (newClients + perSocket - 1) / perSocket;
+		int shardCount = Math.max(1, Math.min(sockets, Runtime.getRuntime().availableProcessors()));
+		return Math.max(1, Math.min((sockets + shardCount - 1) / shardCount, SocketShard.MAX_CLIENTS / perSocket));
+	}
+	
+	/*
+	 * The local ports of the sockets of the running clients.
+	 */
+	private Set<Integer> getLocalPorts() throws IOException {
+		Set<Integer> ports = new HashSet<Integer>();
+		for (int i=0;i<count;i++)
+			ports.add(clients.get(i).getLocalPort());
+		return ports;
+	}
+	
 	public void setURI(URI uri) throws UnknownHostException {
 		this.uri = uri;
 		for (VirtualClient vc:clients)
 			vc.setURI(uri, method, payload);
 	}
 	
-	public void start(int count, int time) throws Exception {
+	public void start(int count, final int time) throws Exception {
+		checkShare(count);
 		ensurelog();
+		ensureexporter();
 		setClientCount(count);
-		Thread[] threads = new Thread[count];
-		for (int i=0;i<count;i++) {
-			VirtualClient c = clients.get(i);
-			c.reset();
-			threads[i] = new Thread(c);
+		finished = new CountDownLatch(1);
+		failure = null;
+		Trace.Track[] tracks = trace != null ? trace.split(count) : null;
+		if (nio) {
+			for (int i=0;i<count;i++) {
+				VirtualClient c = clients.get(i);
+				c.setRate(rate / count);
+				if (tracks != null)
+					c.setReplay(tracks[i], speed);
+				c.reset();
+			}
+			engine = new NioClientEngine(Runtime.getRuntime().availableProcessors(), buffers);
+			System.err.println("\nStart "+count+" virtual clients on "+engine.getThreadCount()+" selector threads for "+time+" ms");
+			engine.start(clients.subList(0, count));
+		} else {
+			Thread[] threads = new Thread[count];
+			for (int i=0;i<count;i++) {
+				VirtualClient c = clients.get(i);
+				c.setRate(rate / count);
+				if (tracks != null)
+					c.setReplay(tracks[i], speed);
+				c.reset();
+				c.setVirtualThreads(virtualThreads);
+				threads[i] = VirtualThreads.newThread(c, virtualThreads);
+			}
+			System.err.println("\nStart "+count+" virtual clients "+(virtualThreads ? "on virtual threads " : "")+"for "+time+" ms");
+			for (int i=0;i<count;i++)
+				threads[i].start();
+		}
+		if (interval > 0) {
+			reporter = new IntervalReporter(clients, log, exporter, unit, precision);
+			timer.scheduleAtFixedRate(reporter, interval, interval);
+		}
+		if (steadyState > 0) {
+			final SteadyStateDetector detector = new SteadyStateDetector(steadyState);
+			final long deadline = System.nanoTime() + (warmup + MAX_STEADY_STATE_WAIT) * 1000000L;
+			timer.schedule(new TimerService.Task() {
+				public void run() {
+					long now = System.nanoTime();
+					long sum = 0;
+					for (VirtualClient vc:clients)
+						sum += vc.getCount();
+					boolean steady = detector.sample(sum, now);
+					if (steady || now - deadline > 0) {
+						cancel();
+						log.println(String.format("Warm-up: %s after %.3f s, throughput variation %.3f",
+								steady ? "steady state" : "no steady state", (now - timestamp) / 1000000000f, detector.getVariation()));
+						measure(time);
+					}
+				} }, warmup, STEADY_STATE_INTERVAL);
+			timestamp = System.nanoTime();
+		} else if (warmup > 0) {
+			timer.schedule(new TimerService.Task() {
+				public void run() {
+					measure(time);
+				} }, warmup);
+			timestamp = System.nanoTime();
+		} else {
+			measure(time);
+		}
+	}
+	
+	/**
+	 * Starts the measured window of a run. The counters and latencies of the
+	 * clients so far belong to the warm-up. They are saved and subtracted from
+	 * the results, so that the clients keep running without interruption.
+	 */
+	private synchronized void measure(int time) {
+		warmupCounts = new int[clients.size()];
+		warmupTimeouts = new int[clients.size()];
+		warmupLatencies = new LatencyHistogram(precision);
+		warmupRetransmissions = 0;
+		warmupTruncated = 0;
+		warmupBytes = 0;
+		warmupPayloadBytes = 0;
+		warmupFirstTry = new LatencyHistogram(precision);
+		warmupBlocks = 0;
+		warmupBlockLatencies = new LatencyHistogram(precision);
+		warmupHandshakes = 0;
+		warmupDtlsDropped = 0;
+		warmupResumptions = 0;
+		warmupHandshakeLatencies = new LatencyHistogram(precision);
+		warmupResumptionLatencies = new LatencyHistogram(precision);
+		warmupCodes = new ResponseCodes();
+		for (int i=0;i<clients.size();i++) {
+			VirtualClient client = clients.get(i);
+			warmupCounts[i] = client.getCount();
+			warmupTimeouts[i] = client.getTimeouts();
+			warmupRetransmissions += client.getRetransmissions();
+			warmupTruncated += client.getTruncated();
+			warmupBytes += client.getBytesReceived();
+			warmupPayloadBytes += client.getPayloadBytes();
+			if (client.getFirstTryLatencies() != null)
+				warmupFirstTry.add(client.getFirstTryLatencies());
+			warmupBlocks += client.getBlocks();
+			if (client.getBlockLatencies() != null)
+				warmupBlockLatencies.add(client.getBlockLatencies());
+			if (client.getDtls() != null) {
+				warmupHandshakes += client.getFullHandshakes();
+				warmupDtlsDropped += client.getDtls().getDropped();
+				warmupResumptions += client.getResumptions();
+				warmupHandshakeLatencies.add(client.getHandshakeLatencies());
+				warmupResumptionLatencies.add(client.getResumptionLatencies());
+			}
+			warmupCodes.add(client.getResponseCodes());
+			if (client.isCheckLatency())
+				warmupLatencies.add(client.getLatencies());
+		}
+		if (scenario != null) {
+			int n = scenario.size();
+			warmupClassCounts = new long[n];
+			warmupClassTimeouts = new long[n];
+			warmupClassCodes = new ResponseCodes[n];
+			warmupClassLatencies = new LatencyHistogram[n];
+			collectClasses(warmupClassCounts, warmupClassTimeouts, warmupClassCodes, warmupClassLatencies);
+		}
+		if (KernelDrops.isSupported()) {
+			try {
+				ports = getLocalPorts();
+				drops = KernelDrops.snapshot(ports);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
-		System.err.println("\nStart "+count+" virtual clients for "+time+" ms");
-		for (int i=0;i<count;i++)
-			threads[i].start();
 		timestamp = System.nanoTime();
-		timer.schedule(new TimerTask() {
+		aborted = false;
+		stopTask = new TimerService.Task() {
 			public void run() {
 				stop();
-			} }, time);
+			} };
+		timer.schedule(stopTask, time);
+		if (errorBudget > 0) {
+			budgetTask = new TimerService.Task() {
+				public void run() {
+					checkErrorBudget();
+				} };
+			timer.schedule(budgetTask, ERROR_BUDGET_INTERVAL, ERROR_BUDGET_INTERVAL);
+		}
+	}
+	
+	/*
+	 * Sums up the results of all clients per class of the scenario.
+	 */
+	private void collectClasses(long[] counts, long[] timeouts, ResponseCodes[] codes, LatencyHistogram[] latencies) {
+		for (int c=0;c<counts.length;c++) {
+			codes[c] = new ResponseCodes();
+			latencies[c] = new LatencyHistogram(precision);
+		}
+		for (VirtualClient client:clients) {
+			if (client.getScenario() != scenario)
+				continue;
+			for (int c=0;c<counts.length;c++) {
+				counts[c] += client.getClassCounts()[c];
+				timeouts[c] += client.getClassTimeouts()[c];
+				codes[c].add(client.getClassResponseCodes()[c]);
+				if (client.getClassLatencies() != null)
+					latencies[c].add(client.getClassLatencies()[c]);
+			}
+		}
+	}
+	
+	/*
+	 * Logs the results per class of the scenario and adds them to the result.
+	 */
+	private void logClasses(float dt) {
+		int n = scenario.size();
+		long[] counts = new long[n];
+		long[] timeouts = new long[n];
+		ResponseCodes[] codes = new ResponseCodes[n];
+		LatencyHistogram[] latencies = new LatencyHistogram[n];
+		collectClasses(counts, timeouts, codes, latencies);
+		Map<String, BenchmarkResult> classes = new LinkedHashMap<String, BenchmarkResult>();
+		for (int c=0;c<n;c++) {
+			codes[c].subtract(warmupClassCodes[c]);
+			latencies[c].subtract(warmupClassLatencies[c]);
+			BenchmarkResult r = new BenchmarkResult(scenario.get(c).getURI().toString(), count, dt,
+					counts[c] - warmupClassCounts[c], timeouts[c] - warmupClassTimeouts[c], latencies[c]);
+			r.setResponseCodes(codes[c], aborted);
+			classes.put(scenario.getName(c), r);
+			if (r.hasLatencies())
+				log.format("Class %s: %d completed, throughput %.2f, %d timeouts, %d errors | p50 %s, p99 %s (%s)\n",
+						scenario.getName(c), r.getCompleted(), r.getThroughput(), r.getTimeouts(), r.getErrors(),
+						unit.format(latencies[c].getValueAtPercentile(50)), unit.format(latencies[c].getValueAtPercentile(99)), unit.getSymbol());
+			else
+				log.format("Class %s: %d completed, throughput %.2f, %d timeouts, %d errors\n",
+						scenario.getName(c), r.getCompleted(), r.getThroughput(), r.getTimeouts(), r.getErrors());
+		}
+		result.setClasses(classes);
+	}
+	
+	/*
+	 * Aborts the run if more than the error budget of the responses since the
+	 * warm-up have been errors.
+	 */
+	private synchronized void checkErrorBudget() {
+		ResponseCodes codes = new ResponseCodes();
+		for (VirtualClient client:clients)
+			codes.add(client.getResponseCodes());
+		codes.subtract(warmupCodes);
+		long total = codes.getTotal();
+		long errors = codes.getErrors();
+		if (total >= ERROR_BUDGET_MIN_RESPONSES && errors > errorBudget * total) {
+			log.format("Error budget exceeded: %d errors in %d responses (%.2f%% > %.2f%%), abort run\n",
+					errors, total, 100d * errors / total, 100 * errorBudget);
+			aborted = true;
+			stop();
+		}
 	}
 	
 	public static void write (String filename, int[]x) throws IOException{
@@ -225,68 +661,189 @@ public class VirtualClientManager {
 		  outputWriter.close();  
 		}
 	
-	public synchronized void stop() {
-		float dt = (System.nanoTime() - timestamp) / 1000000f;
-		if (verbose)
-			System.out.println("Stop virtual clients and collect results");
-		for (VirtualClient vc:clients)
-			vc.stop();
-		int sum = 0;
-		int sumTimeout = 0;
-		IntArray latencies = new IntArray();
-		for (int i=0;i<clients.size();i++) {
-			VirtualClient client = clients.get(i);
-			int count = client.getCount();
-			int lost = client.getTimeouts();
-			for (int lat : client.getLatencies()) {
-				latencies.add(lat);
-			}
-			sum += count;
-			sumTimeout += lost;
+	/**
+	 * Stops the virtual clients, logs and exports the results of the run.
+	 * 
+	 * @return the result of the run
+	 */
+	public synchronized BenchmarkResult stop() {
+		if (finished.getCount() == 0)
+			return result; // already stopped by the error budget
+		try {
+			float dt = (System.nanoTime() - timestamp) / 1000000f;
 			if (verbose)
-				System.out.format("Virtual client %2d received %7d, timeout %3d, throughput %d /s\n"
-					, i, count, lost, (int) (count * 1000L / dt));
-		}
-		float throughput = (sum * 1000L) / dt;
+				System.out.println("Stop virtual clients and collect results");
+			if (reporter != null) {
+				reporter.cancel();
+				reporter = null;
+			}
+			if (stopTask != null) {
+				stopTask.cancel();
+				stopTask = null;
+			}
+			if (budgetTask != null) {
+				budgetTask.cancel();
+				budgetTask = null;
+			}
+			for (VirtualClient vc:clients)
+				vc.stop();
+			int failed = 0;
+			if (engine != null) {
+				engine.stop();
+				failed = engine.getFailedClients();
+				engine = null;
+			}
+			int sum = 0;
+			int sumTimeout = 0;
+			long retransmissions = -warmupRetransmissions;
+			long truncated = -warmupTruncated;
+			long bytes = -warmupBytes;
+			long payloadBytes = -warmupPayloadBytes;
+			LatencyHistogram latencies = new LatencyHistogram(precision);
+			LatencyHistogram firstTry = new LatencyHistogram(precision);
+			long blocks = -warmupBlocks;
+			LatencyHistogram blockLatencies = new LatencyHistogram(precision);
+			long handshakes = -warmupHandshakes;
+			long resumptions = -warmupResumptions;
+			long dtlsDropped = -warmupDtlsDropped;
+			LatencyHistogram handshakeLatencies = new LatencyHistogram(precision);
+			LatencyHistogram resumptionLatencies = new LatencyHistogram(precision);
+			ResponseCodes codes = new ResponseCodes();
+			for (int i=0;i<clients.size();i++) {
+				VirtualClient client = clients.get(i);
+				int count = client.getCount() - warmupCounts[i];
+				int lost = client.getTimeouts() - warmupTimeouts[i];
+				if (client.isCheckLatency())
+					latencies.add(client.getLatencies());
+				sum += count;
+				sumTimeout += lost;
+				retransmissions += client.getRetransmissions();
+				truncated += client.getTruncated();
+				bytes += client.getBytesReceived();
+				payloadBytes += client.getPayloadBytes();
+				if (client.getFirstTryLatencies() != null)
+					firstTry.add(client.getFirstTryLatencies());
+				blocks += client.getBlocks();
+				if (client.getBlockLatencies() != null)
+					blockLatencies.add(client.getBlockLatencies());
+				if (client.getDtls() != null) {
+					handshakes += client.getFullHandshakes();
+					resumptions += client.getResumptions();
+					dtlsDropped += client.getDtls().getDropped();
+					handshakeLatencies.add(client.getHandshakeLatencies());
+					resumptionLatencies.add(client.getResumptionLatencies());
+				}
+				codes.add(client.getResponseCodes());
+				if (verbose)
+					System.out.format("Virtual client %2d received %7d, timeout %3d, throughput %d /s\n"
+						, i, count, lost, (int) (count * 1000L / dt));
+			}
+			latencies.subtract(warmupLatencies);
+			firstTry.subtract(warmupFirstTry);
+			blockLatencies.subtract(warmupBlockLatencies);
+			handshakeLatencies.subtract(warmupHandshakeLatencies);
+			resumptionLatencies.subtract(warmupResumptionLatencies);
+			codes.subtract(warmupCodes);
+			float throughput = (sum * 1000L) / dt;
 		
-		int[] lats = latencies.getArray();
-		long latsum = 0;
-		for (int l:lats) latsum += l;
-		double mean = (double) latsum / lats.length;
-		double temp = 0;
-        for(int l :lats) temp += (mean-l)*(mean-l);
-        double var = Math.sqrt(temp / lats.length);
-           
-        if (lats.length > 0) {
-        	Arrays.sort(lats); // bad if length==0
-        	//write("log_array", lats);
-        	int q00 = lats[(int) (lats.length * 0L/100)];
-        	int q10 = lats[(int) (lats.length * 10L/100)];
-        	int q20 = lats[(int) (lats.length * 20L/100)];
-        	int q30 = lats[(int) (lats.length * 30L/100)];
-        	int q40 = lats[(int) (lats.length * 40L/100)];
-			int q50 = lats[(int) (lats.length/2)];
-			int q60 = lats[(int) (lats.length * 60L/100)];
-			int q66 = lats[(int) (lats.length * 2L/3)];
-			int q70 = lats[(int) (lats.length * 70L/100)];
-			int q75 = lats[(int) (lats.length * 3L/4)];
-			int q80 = lats[(int) (lats.length * 4L/5)];
-			int q90 = lats[(int) (lats.length * 9L/10)];
-			int q95 = lats[(int) (lats.length * 19L/20)];
-			int q98 = lats[(int) (lats.length * 98L/100)];
-			int q99 = lats[(int) (lats.length * 99L/100)];
-			int q100 = lats[lats.length - 1];
-			
-			/*log.format("%d, %d, %.3f, %d, %.2f | %d, %d, %d, %d, %d, %d, %d, %d, %d, %.1f\n",
-					sumTimeout, count, dt/1000f, sum, throughput,
-					q50, q66, q75, q80, q90, q95, q98, q99, q100, var);*/
-			log.format("%d, %d, %.3f, %d, %.2f | %d, %d, %d, %d, %d, %d, %d, %d, %d, %d, %d, %d, %d, %d, %d, %d, %.1f\n",
-					sumTimeout, count, dt/1000f, sum, throughput,
-					q00, q10, q20, q30, q40, q50, q60, q66, q70, q75, q80, q90, q95, q98, q99, q100, var);
-        } else {
-        	// no latency
-        	log.format("c=%d, t=%.3f, received=%d, timeouts=%d, throughput=%.2f, uri=%s\n", count, dt/1000f, sum, sumTimeout, throughput, uri.toString());
-        }
+	        if (!latencies.isEmpty()) {
+	        	StringBuilder quantiles = new StringBuilder();
+	        	for (double percentile:PERCENTILES)
+	        		quantiles.append(unit.format(latencies.getValueAtPercentile(percentile))).append(", ");
+				log.format("%d, %d, %.3f, %d, %.2f | %s%s\n",
+						sumTimeout, count, dt/1000f, sum, throughput,
+						quantiles, unit.format(latencies.getStdDeviation()));
+	        } else {
+	        	// no latency
+	        	log.format("c=%d, t=%.3f, received=%d, timeouts=%d, throughput=%.2f, uri=%s\n", count, dt/1000f, sum, sumTimeout, throughput, uri.toString());
+	        }
+			result = new BenchmarkResult(uri.toString(), count, dt, sum, sumTimeout, latencies);
+			result.setResponseCodes(codes, aborted);
+			if (failed > 0) {
+				result.setFailedClients(failed);
+				log.format("Failed clients: %d of %d stopped by an error, see the console\n", failed, count);
+			}
+			if (codes.getErrors() > 0)
+				log.format("Errors: %d (%.2f%% of responses) | %s\n",
+						codes.getErrors(), 100d * codes.getErrors() / codes.getTotal(), codes);
+			result.setBytes(bytes, payloadBytes, truncated);
+			log.format("Goodput: %.1f payload bytes/s | %d bytes received, %d payload bytes, %d truncated responses (buffer %d bytes)\n",
+					result.getGoodput(), bytes, payloadBytes, truncated, buffers.getSize());
+			if (scenario != null)
+				logClasses(dt);
+			if (retransmission != null) {
+				result.setRetransmissions(retransmissions, firstTry);
+				if (!firstTry.isEmpty()) {
+					log.format("Retransmission: %d retransmissions, %d answered on first try | p50 %s, p99 %s on first try | p50 %s, p99 %s with retries (%s)\n",
+							retransmissions, firstTry.getTotalCount(),
+							unit.format(firstTry.getValueAtPercentile(50)), unit.format(firstTry.getValueAtPercentile(99)),
+							unit.format(latencies.getValueAtPercentile(50)), unit.format(latencies.getValueAtPercentile(99)), unit.getSymbol());
+				} else {
+					log.format("Retransmission: %d retransmissions\n", retransmissions);
+				}
+			}
+			if (blockwise != null) {
+				result.setBlocks(blocks, blockLatencies);
+				if (!blockLatencies.isEmpty()) {
+					log.format("Blocks: %d blocks, %.1f per transfer | p50 %s, p99 %s per block | p50 %s, p99 %s per transfer (%s)\n",
+							blocks, result.getBlocksPerTransfer(),
+							unit.format(blockLatencies.getValueAtPercentile(50)), unit.format(blockLatencies.getValueAtPercentile(99)),
+							unit.format(latencies.getValueAtPercentile(50)), unit.format(latencies.getValueAtPercentile(99)), unit.getSymbol());
+				} else {
+					log.format("Blocks: %d blocks, %.1f per transfer\n", blocks, result.getBlocksPerTransfer());
+				}
+			}
+			if (dtls != null) {
+				result.setHandshakes(handshakes, handshakeLatencies, resumptions, resumptionLatencies);
+				log.format("DTLS: %d full handshakes (%.1f/s) | p50 %s, p99 %s (%s)\n",
+						handshakes, result.getHandshakeRate(),
+						unit.format(handshakeLatencies.getValueAtPercentile(50)), unit.format(handshakeLatencies.getValueAtPercentile(99)), unit.getSymbol());
+				log.format("DTLS: %d resumptions (%.1f/s) | p50 %s, p99 %s (%s)\n",
+						resumptions, result.getResumptionRate(),
+						unit.format(resumptionLatencies.getValueAtPercentile(50)), unit.format(resumptionLatencies.getValueAtPercentile(99)), unit.getSymbol());
+				log.format("DTLS: %d requests over established sessions (%.1f/s), %d responses dropped by the clients\n",
+						result.getRecords(), result.getRecordThroughput(), dtlsDropped);
+			}
+			if (drops != null)
+				logKernelDrops();
+			if (exporter != null)
+				exporter.summary(result);
+			return result;
+		} catch (RuntimeException | Error e) {
+			failure = e;
+			throw e;
+		} finally {
+			// run() must never wait forever, even if stopping failed
+			finished.countDown();
+		}
+	}
+
+	/*
+	 * Logs the datagrams that the kernel dropped during the run and, with
+	 * shards, the datagrams that belonged to no client.
+	 */
+	private void logKernelDrops() {
+		KernelDrops delta = KernelDrops.snapshot(ports).since(drops);
+		drops = null;
+		result.setKernelDrops(delta.getSocketDrops());
+		if (share != 0 || delta.getSocketDrops() > 0 || delta.getReceiveBufferErrors() > 0 || delta.getSendBufferErrors() > 0)
+			log.format("Kernel drops: %d on the client sockets | %d receive and %d send buffer errors of all UDP sockets\n",
+					delta.getSocketDrops(), delta.getReceiveBufferErrors(), delta.getSendBufferErrors());
+		if (share != 0) {
+			int sockets = 0;
+			long unknown = 0;
+			long reused = 0;
+			for (SocketShard s:shards) {
+				sockets += s.getChannels().length;
+				unknown += s.getUnknown();
+				reused += s.getReusedMIDs();
+			}
+			log.format("Shards: %d clients on %d sockets in %d shards, %d datagrams for no client\n",
+					count, sockets, shards.size(), unknown);
+			if (reused > 0)
+				log.format("Warning: the shards reused %d MIDs within the exchange lifetime, a deduplicating server"
+						+" may have answered requests with the responses of other clients; reduce -share\n", reused);
+		}
 	}
 
 	public boolean isEnableLatency() {
@@ -298,6 +855,32 @@ public class VirtualClientManager {
 		this.enableLatency = enableLatency;
 	}
 
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Sets the number of significant decimal digits of the latency
+	 * histograms. Must be set before the clients are created.
+	 */
+	public void setPrecision(int precision) {
+		System.err.println("Latency precision: "+precision+" significant digits");
+		this.precision = precision;
+	}
+
+	public LatencyUnit getUnit() {
+		return unit;
+	}
+
+	/**
+	 * Sets the unit of the latencies in the log. Must be set before the log
+	 * is created.
+	 */
+	public void setUnit(LatencyUnit unit) {
+		System.err.println("Latency unit: "+unit.getSymbol());
+		this.unit = unit;
+	}
+
 	public void setRegistration(boolean registration) {
 		this.register = registration;
 	}
@@ -306,6 +889,310 @@ public class VirtualClientManager {
 		this.scheme = scheme;
 	}
 	
+	public boolean isNio() {
+		return nio;
+	}
+
+	/**
+	 * Selects the {@link NioClientEngine} instead of one thread per virtual
+	 * client. Must be set before the clients are created.
+	 */
+	public void setNio(boolean nio) {
+		System.err.println("Use NIO client engine: "+nio);
+		this.nio = nio;
+	}
+	
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Runs the virtual clients on virtual threads instead of platform threads
+	 * if the JDK supports them.
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads && !VirtualThreads.isSupported())
+			System.err.println("Virtual threads are not supported by this JDK; using platform threads");
+		else System.err.println("Use virtual threads: "+virtualThreads);
+		this.virtualThreads = virtualThreads;
+	}
+	
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Sets the number of outstanding requests per virtual client. Must be set
+	 * before the clients are created.
+	 */
+	public void setWindow(int window) {
+		System.err.println("Requests in flight per client: "+window);
+		this.window = window;
+	}
+	
+	public double getErrorBudget() {
+		return errorBudget;
+	}
+
+	/**
+	 * Sets the maximum ratio of errors, i.e., responses other than 2.xx and
+	 * resets, to all responses. A run that exceeds the budget is aborted. A
+	 * budget of zero never aborts, but the errors are still counted.
+	 * 
+	 * @param errorBudget the ratio, e.g., 0.01 for 1%
+	 */
+	public void setErrorBudget(double errorBudget) {
+		System.err.println("Error budget: "+(errorBudget > 0 ? 100 * errorBudget+"%" : "off"));
+		this.errorBudget = errorBudget;
+	}
+	
+	public Retransmission getRetransmission() {
+		return retransmission;
+	}
+
+	/**
+	 * Sets the parameters with which the virtual clients retransmit their
+	 * requests. Without parameters, a request is lost after
+	 * {@link VirtualClient#TIMEOUT}. Must be set before the clients are
+	 * created.
+	 */
+	public void setRetransmission(Retransmission retransmission) {
+		System.err.println("Retransmission: "+(retransmission != null ? retransmission : "off"));
+		this.retransmission = retransmission;
+	}
+	
+	public Scenario getScenario() {
+		return scenario;
+	}
+
+	/**
+	 * Sets the scenario whose mix of requests the virtual clients send
+	 * instead of the requests to the target. The target must have the host
+	 * and port of the scenario. Must be set before the clients are created.
+	 */
+	public void setScenario(Scenario scenario) {
+		System.err.println("Scenario: "+(scenario != null ? scenario.size()+" request classes" : "off"));
+		this.scenario = scenario;
+	}
+	
+	public Trace getReplay() {
+		return trace;
+	}
+
+	/**
+	 * Replays the requests of the specified trace instead of sending own
+	 * requests. The sources of the trace are distributed over the clients of
+	 * each run. Must not be combined with retransmissions.
+	 * 
+	 * @param trace the trace or null to send own requests
+	 * @param speed the factor by which the replay is faster than the trace
+	 */
+	public void setReplay(Trace trace, double speed) {
+		System.err.println("Replay: "+(trace != null ? trace.size()+" requests at speed "+speed : "off"));
+		this.trace = trace;
+		this.speed = speed;
+	}
+	
+	public DtlsIdentity getDtls() {
+		return dtls;
+	}
+
+	/**
+	 * Lets the virtual clients send their requests over DTLS with the
+	 * specified identities. Each client performs a full handshake at the
+	 * start of every run. Requires threaded clients with their own sockets.
+	 * Must be set before the clients are created.
+	 *
+	 * @param dtls the identities or null for plain UDP
+	 */
+	public void setDtls(DtlsIdentity dtls) {
+		System.err.println("DTLS: "+(dtls != null ? dtls : "off"));
+		this.dtls = dtls;
+	}
+
+	public int getResume() {
+		return resume;
+	}
+
+	/**
+	 * Lets each DTLS client resume its session with an abbreviated handshake
+	 * after every specified number of requests. Zero keeps the sessions for
+	 * the whole run. Must be set before the clients are created.
+	 */
+	public void setResume(int resume) {
+		System.err.println("Resume DTLS sessions: "+(resume > 0 ? "every "+resume+" requests" : "off"));
+		this.resume = resume;
+	}
+
+	public Blockwise getBlockwise() {
+		return blockwise;
+	}
+
+	/**
+	 * Lets the virtual clients perform block-wise transfers with the
+	 * specified block size exponent: a PUT or POST uploads the payload with
+	 * Block1, the other methods download the target with Block2. Requires a window of
+	 * one. Must be set after the method and payload and before the clients
+	 * are created.
+	 *
+	 * @param szx the block size exponent or -1 for single requests
+	 */
+	public void setBlockwise(int szx) {
+		if (szx < 0) {
+			System.err.println("Block-wise transfers: off");
+			this.blockwise = null;
+			return;
+		}
+		byte[] body = null;
+		if ("PUT".equalsIgnoreCase(method) || "POST".equalsIgnoreCase(method)) {
+			if (payload == null || payload.isEmpty())
+				throw new IllegalArgumentException("Block-wise uploads require a payload");
+			body = payload.getBytes(StandardCharsets.UTF_8);
+		}
+		this.blockwise = new Blockwise(szx, body);
+		System.err.println("Block-wise transfers: "+blockwise);
+	}
+	
+	public int getReceiveSize() {
+		return buffers.getSize();
+	}
+
+	/**
+	 * Sets the size of the receive buffers. Larger responses are counted as
+	 * truncated instead of completed. Must be set before the clients are
+	 * created.
+	 */
+	public void setReceiveSize(int size) {
+		System.err.println("Receive buffer size: "+size+" bytes");
+		this.buffers = new ReceiveBufferPool(size);
+	}
+
+	public int getShare() {
+		return share;
+	}
+
+	/**
+	 * Sets the number of non-blocking clients that share a socket. Zero gives
+	 * each client its own socket, {@link #SHARE_PER_CORE} spreads the clients
+	 * of each run over a pool of one socket per core. Must be set before the
+	 * clients are created.
+	 */
+	public void setShare(int share) {
+		if (share != SHARE_PER_CORE && (share < 0 || share > SocketShard.MAX_CLIENTS))
+			throw new IllegalArgumentException("Clients per socket must be between 0 and "+SocketShard.MAX_CLIENTS);
+		System.err.println("Clients per socket: "+(share == SHARE_PER_CORE ? "one socket per core" : share > 0 ? share : 1));
+		this.share = share;
+	}
+
+	public boolean isReusePort() {
+		return reusePort;
+	}
+
+	/**
+	 * Binds several shared sockets to the same port with SO_REUSEPORT. Must
+	 * be set before the clients are created.
+	 */
+	public void setReusePort(boolean reusePort) {
+		if (reusePort && !SocketShard.isReusePortSupported())
+			throw new UnsupportedOperationException("SO_REUSEPORT is not supported by this JDK or system");
+		System.err.println("Share ports with SO_REUSEPORT: "+reusePort);
+		this.reusePort = reusePort;
+	}
+	
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Sets the total rate at which all virtual clients together send their
+	 * requests. With a rate, the clients run open-loop and measure the latency
+	 * from the scheduled send time. A rate of zero runs closed-loop.
+	 * 
+	 * @param rate the requests per second
+	 */
+	public void setRate(double rate) {
+		System.err.println("Open-loop rate: "+(rate > 0 ? rate+" requests/s" : "off"));
+		this.rate = rate;
+	}
+	
+	public InterArrival getInterArrival() {
+		return arrival;
+	}
+
+	/**
+	 * Sets the distribution of the time between the requests of each virtual
+	 * client. With a distribution, the clients run open-loop independent of
+	 * each other, e.g., like a fleet of sensors. Must be set before the
+	 * clients are created.
+	 */
+	public void setInterArrival(InterArrival arrival) {
+		System.err.println("Inter-arrival time: "+(arrival != null ? arrival : "off"));
+		this.arrival = arrival;
+	}
+	
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Sets the interval in which an {@link IntervalReporter} logs the
+	 * throughput and latencies while the clients are running. An interval of
+	 * zero only logs the results at the end of each run.
+	 * 
+	 * @param interval the interval in milliseconds
+	 */
+	public void setInterval(int interval) {
+		System.err.println("Report interval: "+(interval > 0 ? interval+" ms" : "off"));
+		this.interval = interval;
+	}
+	
+	public Set<ResultExporter.Format> getExportFormats() {
+		return formats;
+	}
+
+	/**
+	 * Sets the formats in which the results are exported next to the log.
+	 * Must be set before the log is created.
+	 */
+	public void setExportFormats(Set<ResultExporter.Format> formats) {
+		System.err.println("Export results as: "+(formats.isEmpty() ? "off" : formats.toString()));
+		this.formats = formats;
+	}
+
+	public int getWarmup() {
+		return warmup;
+	}
+
+	/**
+	 * Sets the warm-up time of each run. The clients already send requests
+	 * during the warm-up, but the results of the warm-up are discarded. With
+	 * steady state detection, this is the minimum warm-up time.
+	 * 
+	 * @param warmup the warm-up time in milliseconds
+	 */
+	public void setWarmup(int warmup) {
+		System.err.println("Warm-up: "+(warmup > 0 ? warmup+" ms" : "off"));
+		this.warmup = warmup;
+	}
+
+	public double getSteadyState() {
+		return steadyState;
+	}
+
+	/**
+	 * Extends the warm-up until the throughput is in steady state, i.e., until
+	 * the coefficient of variation of the throughput of the last
+	 * {@link SteadyStateDetector#WINDOW} seconds is below the threshold, but
+	 * at most {@link #MAX_STEADY_STATE_WAIT} ms.
+	 * 
+	 * @param threshold the coefficient of variation, e.g., 0.05, or 0 to
+	 *            disable steady state detection
+	 */
+	public void setSteadyState(double threshold) {
+		System.err.println("Steady state detection: "+(threshold > 0 ? "variation below "+threshold : "off"));
+		this.steadyState = threshold;
+	}
+
 	public boolean isVerbose() {
 		return verbose;
 	}
@@ -20,7 +20,6 @@ package org.eclipse.californium.tools.coapbench;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
 
 public interface VirtualDevice {
 
@@ -29,10 +28,13 @@ public interface VirtualDevice {
 	
 	public boolean isCheckLatency();
 	public void setCheckLatency(boolean checkLatency);
+	public void setPrecision(int precision);
+	public void setInterArrival(InterArrival arrival);
+	public void setReceiveBuffers(ReceiveBufferPool buffers);
 	
 	public int getCount();
 	public int getTimeouts();
-	public ArrayList<Integer> getLatencies();
+	public LatencyHistogram getLatencies();
 	
 	public boolean isRunning();
 	
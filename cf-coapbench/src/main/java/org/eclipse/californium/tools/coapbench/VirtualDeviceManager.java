@@ -18,12 +18,12 @@ package org.eclipse.californium.tools.coapbench;
 
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 
@@ -39,7 +39,16 @@ public class VirtualDeviceManager {
 
 	public static final String LOG_FILE = "coapbench";
 	
-	private Timer timer;
+	/** The time to wait for the delivery report of the observer */
+	public static final long REPORT_TIMEOUT = 10 * 1000; // [ms]
+	
+	/** The time the devices and the observer get to finish the last notifications */
+	public static final long REPORT_GRACE = 1500; // [ms]
+	
+	/** The percentiles of the latency columns in the log */
+	public static final double[] PERCENTILES = { 50, 100 * 2d / 3, 75, 80, 90, 95, 98, 99, 100 };
+	
+	private TimerService timer;
 
 	private URI uri;
 	private InetSocketAddress bindAddr;
@@ -47,6 +56,8 @@ public class VirtualDeviceManager {
 	private String payload;
 
 	private long timestamp;
+	private long run;
+	private boolean observing;
 	private int testlength;
 	private int count;
 	private boolean confirmable = true;
@@ -58,7 +69,19 @@ public class VirtualDeviceManager {
 	private LogFile log;
 	
 	private boolean enableLatency = false;
+	private int precision = LatencyHistogram.DEFAULT_PRECISION;
+	private LatencyUnit unit = LatencyUnit.MILLISECONDS;
 	private boolean verbose;
+	private boolean virtualThreads = false;
+	private InterArrival arrival;
+	private int engineThreads = 0;
+	private int relationsPerSocket = 1;
+	private ObserveEngine engine;
+	private int interval = 0; // [ms]
+	private IntervalReporter reporter;
+	private Set<ResultExporter.Format> formats = EnumSet.noneOf(ResultExporter.Format.class);
+	private ResultExporter exporter;
+	private String logName = LOG_FILE;
 
 	public VirtualDeviceManager() throws Exception {
 		this(null);
@@ -74,7 +97,7 @@ public class VirtualDeviceManager {
 		this.method = method;
 		this.payload = payload;
 		this.devices = new ArrayList<VirtualDevice>();
-		this.timer = new Timer();
+		this.timer = new TimerService(getClass().getSimpleName());
 		this.timestamp = 0L;
 		this.ensurelog();
 	}
@@ -98,16 +121,28 @@ public class VirtualDeviceManager {
 	}
 	
 	public void lognew(String name) throws Exception {
+		if (log != null)
+			log.close();
 		this.log = new LogFile(LOG_FILE + "_" + name);
 		this.log.setVerbose(verbose);
+		this.logName = LOG_FILE + "_" + name;
+		if (exporter != null) {
+			exporter.close();
+			exporter = null;
+		}
 	}
 	
 	private void ensurelog() throws Exception {
 		if (log==null) {
-			log = new LogFile(LOG_FILE);
+			log = new LogFile(logName);
 		}
 	}
 	
+	private void ensureexporter() throws Exception {
+		if (exporter==null && !formats.isEmpty())
+			exporter = new ResultExporter(logName, formats, unit, PERCENTILES);
+	}
+	
 	/* VirtualClients are created here. */
 	public void setDeviceCount(int d, boolean clients) throws Exception {
 		VirtualDevice vd;
@@ -125,7 +160,9 @@ public class VirtualDeviceManager {
 				vd = new VirtualClient(uri, bindAddr, method, payload);
 			else
 				vd = new VirtualServer(uri, bindAddr, true, confirmable, barrier);
+			vd.setPrecision(precision);
 			vd.setCheckLatency(enableLatency);
+			vd.setInterArrival(arrival);
 			devices.add(vd);
 		}
 
@@ -136,6 +173,8 @@ public class VirtualDeviceManager {
 	}
 	
 	public int getDeviceCount() {
+		if (engine != null)
+			return engine.getRelationCount();
 		return devices.size();
 	}
 	
@@ -152,17 +191,29 @@ public class VirtualDeviceManager {
 	
 	public void start(int count, int time, boolean clients) throws Exception {
 		ensurelog();
+		ensureexporter();
+		if (virtualThreads)
+			log.println(VirtualThreads.compare(count));
 		timestamp = 0;
+		run = DeliveryStamp.newRun();
+		observing = !clients;
+		if (!clients && engineThreads > 0) {
+			startEngine(count, time);
+			return;
+		}
+		engine = null;
 		barrier = new CyclicBarrier(count + 1);
 		setDeviceCount(count, clients);
 		Thread[] threads = new Thread[count];
 		for (int i=0;i<count;i++) {
 			VirtualDevice d = devices.get(i);
 			d.reset();
+			if (!clients)
+				((VirtualServer) d).setStamp(run, i);
 			if (clients)
-				threads[i] = new Thread((VirtualClient)d);
+				threads[i] = VirtualThreads.newThread((VirtualClient)d, virtualThreads);
 			else {
-				threads[i] = new Thread((VirtualServer)d);
+				threads[i] = VirtualThreads.newThread((VirtualServer)d, virtualThreads);
 			}
 		}
 		System.err.println("\nSetup "+count+" virtual " + (clients ? "client" + (count == 1 ? "" : "s") : "server" + (count == 1 ? "" : "s")) + " for "+time+" ms");
@@ -173,25 +224,63 @@ public class VirtualDeviceManager {
 		/* If we're executing a client benchmark, then we have to setup the test timer here */
 		if (clients) {  
 			timestamp = System.nanoTime();
-			timer.schedule(new TimerTask() {
+			if (interval > 0) {
+				reporter = new IntervalReporter(devices.subList(0, count), log, exporter, unit, precision);
+				timer.scheduleAtFixedRate(reporter, interval, interval);
+			}
+			timer.schedule(new TimerService.Task() {
 				public void run() {
 					stop();
 				} }, time);
 		}
 	}
 	
-	public void stop() {
+	/*
+	 * Replaces the virtual servers with the observe relations of an observe
+	 * engine, which register with the observer right away.
+	 */
+	private void startEngine(int count, int time) throws Exception {
+		setDeviceCount(0, false);
+		if (engine != null)
+			engine.stop();
+		engine = new ObserveEngine(uri, bindAddr, confirmable);
+		engine.setThreadCount(engineThreads);
+		engine.setRelationsPerSocket(relationsPerSocket);
+		engine.setInterArrival(arrival);
+		engine.setPrecision(precision);
+		engine.setCheckLatency(enableLatency);
+		engine.setRun(run);
+		System.err.println("\nSetup "+count+" observe relation" + (count == 1 ? "" : "s") + " on "+engine.getThreadCount()+" thread" + (engineThreads == 1 ? "" : "s") + " for "+time+" ms");
+		engine.start(count);
+		this.count = count;
+		testlength = time;
+	}
+
+	/**
+	 * Stops the virtual devices, logs and exports the results of the run.
+	 * 
+	 * @return the result of the run or null if no run is active
+	 */
+	public BenchmarkResult stop() {
 		float dt = (System.nanoTime() - timestamp) / 1000000f;
-		if (timestamp == 0)
-			return;
+		if (timestamp == 0) {
+			if (engine != null)
+				engine.stop();
+			return null;
+		}
 		timestamp = 0;
+		if (reporter != null) {
+			reporter.cancel();
+			reporter = null;
+		}
 		
+		if (engine != null)
+			return stopEngine(dt);
+
 		for (VirtualDevice vd:devices)
 			vd.stop();
 		
 		barrier.reset();
-		CoapClient client;
-		CoapResponse response = null;
 		if (verbose) {
 			System.out.println("Stopping virtual devices and collecting results.");
 			try {
@@ -202,19 +291,20 @@ public class VirtualDeviceManager {
 		}
 		
 		try {
-			Thread.sleep(1500);
+			Thread.sleep(REPORT_GRACE);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
 		}
 		
-		if (!confirmable) {
-			client = new CoapClient(uri);
-			response = client.get();
-		}
+		// the delivery of confirmable notifications is known from their ACKs
+		DeliveryReport delivery = observing && !confirmable ? collectDelivery() : null;
 		
-		int sum = 0;
-		int sumTimeout = 0;
-		ArrayList<Integer> latencies = new ArrayList<Integer>();
+		long sum = 0;
+		long sumTimeout = 0;
+		long sent = 0;
+		int notifying = 0;
+		long truncated = 0;
+		LatencyHistogram latencies = new LatencyHistogram(precision);
 		
 		if (verbose)
 			System.out.println();
@@ -225,66 +315,167 @@ public class VirtualDeviceManager {
 		for (int i=0;i<devices.size();i++) {
 			VirtualDevice device = devices.get(i);
 			int lost = device.getTimeouts();
-			latencies.addAll(device.getLatencies());
+			if (device.isCheckLatency())
+				latencies.add(device.getLatencies());
 			int count = device.getCount();
 			sum += count;
-			
-			if (!confirmable) {
-				count = Integer.parseInt(response.getResponseText());
-			}
-			
 			sumTimeout += lost;
+			// a confirmable notification is either acknowledged or lost
+			sent += confirmable ? count + lost : count;
+			if (count > 0)
+				notifying++;
+			if (device instanceof VirtualServer)
+				truncated += ((VirtualServer) device).getTruncated();
 			
 			if (verbose)
-				System.out.format("Virtual client %2d received %7d, timeouts: %3d, throughput: %d /s\n"
-					, i, count, lost, (int) (count * 1000L / dt));
+				System.out.format("Virtual server %2d %s %7d, timeouts: %3d, throughput: %d /s\n"
+					, i, confirmable ? "acknowledged" : "sent", count, lost, (int) (count * 1000L / dt));
 		}
 		
-		if (!confirmable) {
-			sum = count;
+		if (!confirmable && delivery != null) {
+			// only the observer knows how many notifications arrived
+			sum = delivery.getReceived();
+			sumTimeout = Math.max(0, sent - sum);
 		}
 		
 		float throughput = (sum * 1000L) / dt;
 		
-		long latsum = 0;
-		for (int l:latencies) latsum += l;
-		double mean = (double) latsum / latencies.size();
-		double temp = 0;
-        for(int l : latencies) temp += (mean-l)*(mean-l);
-        double var = Math.sqrt(temp / latencies.size());
-           
-        if (latencies.size() > 0) {
-        	Collections.sort(latencies); // bad if length==0
-			int q50 = latencies.get((int) (latencies.size()/2));
-			int q66 = latencies.get((int) (latencies.size() * 2L/3));
-			int q75 = latencies.get((int) (latencies.size() * 3L/4));
-			int q80 = latencies.get((int) (latencies.size() * 4L/5));
-			int q90 = latencies.get((int) (latencies.size() * 9L/10));
-			int q95 = latencies.get((int) (latencies.size() * 19L/20));
-			int q98 = latencies.get((int) (latencies.size() * 98L/100));
-			int q99 = latencies.get((int) (latencies.size() * 99L/100));
-			int q100 = latencies.get(latencies.size() - 1);
+        if (!latencies.isEmpty()) {
+			StringBuilder quantiles = new StringBuilder();
+			for (double percentile:PERCENTILES)
+				quantiles.append(unit.format(latencies.getValueAtPercentile(percentile))).append(", ");
 			
-			log.format("Timeouts, Concurrency, Time, Completed, Throughput | 50%%, 66%%, 75%%, 80%%, 90%%, 95%%, 98%%, 99%%, 100%%, stdev(ms)\n");
-			log.format("%d, %d, %.3f, %d, %.2f | %d, %d, %d, %d, %d, %d, %d, %d, %d, %.1f\n",
+			log.format("Timeouts, Concurrency, Time, Completed, Throughput | 50%%, 66%%, 75%%, 80%%, 90%%, 95%%, 98%%, 99%%, 100%%, stdev(%s)\n", unit.getSymbol());
+			log.format("%d, %d, %.3f, %d, %.2f | %s%s\n",
 					sumTimeout, count, dt/1000f, sum, throughput,
-					q50, q66, q75, q80, q90, q95, q98, q99, q100, var);
+					quantiles, unit.format(latencies.getStdDeviation()));
         
         } else {
         	// no latency
         	log.format("d=%d, t=%.3f, received=%d, timeouts=%d, throughput=%.2f, uri=%s\n", count, dt/1000f, sum, sumTimeout, throughput, uri.toString());
         }
+		if (truncated > 0)
+			log.format("Truncated: %d requests larger than the receive buffer ignored\n", truncated);
+		BenchmarkResult result = new BenchmarkResult(uri.toString(), count, dt, sum, sumTimeout, latencies);
+		logDelivery(result, sent, notifying, delivery);
+		if (exporter != null)
+			exporter.summary(result);
+		return result;
 	}
 	
+	/*
+	 * Stops the observe engine and logs the registrations and the
+	 * notifications separately.
+	 */
+	private BenchmarkResult stopEngine(float dt) {
+		engine.stop();
+		try {
+			Thread.sleep(REPORT_GRACE); // let the observer process the last notifications
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		DeliveryReport delivery = confirmable ? null : collectDelivery();
+		long notifications = engine.getNotifications();
+		long completed = confirmable ? engine.getAcknowledged() : notifications;
+		long lost = engine.getLost();
+		if (!confirmable && delivery != null) {
+			completed = delivery.getReceived();
+			lost = Math.max(0, notifications - completed);
+		}
+		LatencyHistogram latencies = engine.getAckLatencies();
+		if (latencies == null)
+			latencies = new LatencyHistogram(precision);
+		LatencyHistogram registrations = engine.getRegistrationLatencies();
+		float throughput = (completed * 1000L) / dt;
+
+		log.format("Registration: %d of %d relations, %d failed, %.3f s, %.1f/s | p50 %s, p99 %s, max %s (%s)\n",
+				engine.getRegistered(), count, engine.getFailed(), engine.getRegistrationTime()/1000f, engine.getRegistrationRate(),
+				unit.format(registrations.getValueAtPercentile(50)), unit.format(registrations.getValueAtPercentile(99)),
+				unit.format(registrations.getValueAtPercentile(100)), unit.getSymbol());
+		if (!latencies.isEmpty()) {
+			StringBuilder quantiles = new StringBuilder();
+			for (double percentile:PERCENTILES)
+				quantiles.append(unit.format(latencies.getValueAtPercentile(percentile))).append(", ");
+			log.format("Timeouts, Concurrency, Time, Completed, Throughput | 50%%, 66%%, 75%%, 80%%, 90%%, 95%%, 98%%, 99%%, 100%%, stdev(%s)\n", unit.getSymbol());
+			log.format("%d, %d, %.3f, %d, %.2f | %s%s\n",
+					lost, count, dt/1000f, completed, throughput,
+					quantiles, unit.format(latencies.getStdDeviation()));
+		}
+		log.format("Notifications: %d %s, %d sent, %d lost, %d relations cancelled, %d aborted, t=%.3f, throughput=%.2f/s\n",
+				completed, confirmable ? "acknowledged" : delivery != null ? "received" : "sent", notifications, lost, engine.getCancelled(), engine.getAborted(), dt/1000f, throughput);
+
+		BenchmarkResult result = new BenchmarkResult(uri.toString(), count, dt, completed, lost, latencies);
+		result.setRegistrations(engine.getRegistered(), engine.getFailed(), engine.getRegistrationTime(), registrations);
+		logDelivery(result, notifications, engine.getNotifyingRelations(), delivery);
+		if (exporter != null)
+			exporter.summary(result);
+		return result;
+	}
+
+	/*
+	 * Asks the observer for the report of the delivery of the notifications
+	 * of this run, see DeliveryTracker. Returns null if the observer does not
+	 * account for the delivery.
+	 */
+	private DeliveryReport collectDelivery() {
+		try {
+			URI report = new URI(uri.getScheme(), null, uri.getHost(), uri.getPort(), uri.getPath(), DeliveryReport.QUERY + "=" + run, null);
+			CoapResponse response = new CoapClient(report).setTimeout(REPORT_TIMEOUT).get();
+			if (response == null) {
+				System.err.println("Observer did not respond with a delivery report");
+				return null;
+			}
+			DeliveryReport delivery = DeliveryReport.parse(response.getResponseText());
+			if (delivery.getRun() != run)
+				throw new IllegalArgumentException("Report of run "+delivery.getRun()+" instead of "+run);
+			return delivery;
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			System.err.println("Observer did not respond with a valid delivery report: "+e.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * Adds the delivery report of the observer to the result and logs it.
+	 * The observer only knows what it has received, so the notifications and
+	 * relations it misses are those sent minus those in the report.
+	 */
+	private void logDelivery(BenchmarkResult result, long sent, int notifying, DeliveryReport delivery) {
+		if (delivery == null) {
+			if (observing && !confirmable)
+				log.format("Delivery: no report from the observer, %d notifications sent\n", sent);
+			return;
+		}
+		LatencyHistogram oneWay = delivery.getLatencies();
+		result.setDelivery(sent, delivery.getReceived(), delivery.getReordered(), delivery.getDuplicates(), oneWay);
+		result.setDeliveryRelations(notifying, delivery.getRelations());
+		log.format("Delivery: %d of %d notifications received by %d of %d relations, %d lost, %d reordered, %d duplicates | one-way p50 %s, p99 %s, max %s (%s)\n",
+				delivery.getReceived(), sent, delivery.getRelations(), notifying, result.getUndelivered(), delivery.getReordered(), delivery.getDuplicates(),
+				unit.format(oneWay.getValueAtPercentile(50)), unit.format(oneWay.getValueAtPercentile(99)),
+				unit.format(oneWay.getMax()), unit.getSymbol());
+		for (DeliveryReport.Relation relation:delivery.getWorstRelations())
+			log.format("Delivery: relation %d received %d, %d lost before the last received, %d reordered, %d duplicates | one-way mean %s, max %s (%s)\n",
+					relation.getIndex(), relation.getReceived(), relation.getLost(), relation.getReordered(), relation.getDuplicates(),
+					unit.format(relation.getMeanLatency()), unit.format(relation.getMaxLatency()), unit.getSymbol());
+	}
+
 	public boolean isRunning() {
 		return timestamp != 0;
 	}
 	
 	public void joinBarrier() {
-		if (barrier != null)
+		if (engine != null) {
+			timer.schedule(new TimerService.Task() {
+				public void run() {
+					stop();
+				} }, testlength);
+			timestamp = System.nanoTime();
+			engine.startNotifications();
+			System.err.println("\nObserve relations registered; starting notification process.");
+		} else if (barrier != null)
 			try {
 				System.err.print("\nVDM: Barrier not null. Currently waiting are " + barrier.getNumberWaiting() + " threads; joining.");
-				timer.schedule(new TimerTask() {
+				timer.schedule(new TimerService.Task() {
 					public void run() {
 						stop();
 					} }, testlength);
@@ -297,8 +488,18 @@ public class VirtualDeviceManager {
 	}
 	
 	public int getNumberOfDevicesAtBarrier() {
+		if (engine != null)
+			return engine.getRegistered();
 		return barrier.getNumberWaiting();
 	}
+
+	/**
+	 * Returns the number of observe relations of the observe engine that have
+	 * given up their registration, or zero for threaded virtual servers.
+	 */
+	public int getNumberOfFailedDevices() {
+		return engine != null ? engine.getFailed() : 0;
+	}
 	
 	public InetSocketAddress getBindAddress() {
 		return this.bindAddr;
@@ -317,6 +518,114 @@ public class VirtualDeviceManager {
 		this.enableLatency = enableLatency;
 	}
 
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Sets the number of significant decimal digits of the latency
+	 * histograms. Must be set before the devices are created.
+	 */
+	public void setPrecision(int precision) {
+		System.err.println("Latency precision: "+precision+" significant digits");
+		this.precision = precision;
+	}
+
+	public LatencyUnit getUnit() {
+		return unit;
+	}
+
+	public void setUnit(LatencyUnit unit) {
+		System.err.println("Latency unit: "+unit.getSymbol());
+		this.unit = unit;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Runs the virtual devices on virtual threads instead of platform threads
+	 * if the JDK supports them.
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads && !VirtualThreads.isSupported())
+			System.err.println("Virtual threads are not supported by this JDK; using platform threads");
+		else System.err.println("Use virtual threads: "+virtualThreads);
+		this.virtualThreads = virtualThreads;
+	}
+
+	public InterArrival getInterArrival() {
+		return arrival;
+	}
+
+	/**
+	 * Sets the distribution of the time between two notifications of each
+	 * virtual server or observe relation, or null to notify as fast as
+	 * possible. Must be set before the devices are created.
+	 */
+	public void setInterArrival(InterArrival arrival) {
+		System.err.println("Notification inter-arrival: "+(arrival != null ? arrival : "unlimited"));
+		this.arrival = arrival;
+	}
+
+	public int getEngineThreads() {
+		return engineThreads;
+	}
+
+	/**
+	 * Simulates the observable devices of an observe benchmark with an
+	 * {@link ObserveEngine} on the specified number of threads instead of a
+	 * thread per {@link VirtualServer}.
+	 *
+	 * @param engineThreads the number of threads, zero for threaded devices
+	 */
+	public void setEngineThreads(int engineThreads) {
+		System.err.println("Observe engine: "+(engineThreads > 0 ? engineThreads+" threads" : "off"));
+		this.engineThreads = engineThreads;
+	}
+
+	public int getRelationsPerSocket() {
+		return relationsPerSocket;
+	}
+
+	/**
+	 * Sets the number of observe relations of the observe engine that share a
+	 * socket.
+	 */
+	public void setRelationsPerSocket(int relationsPerSocket) {
+		System.err.println("Observe relations per socket: "+relationsPerSocket);
+		this.relationsPerSocket = relationsPerSocket;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Sets the interval in which an {@link IntervalReporter} logs the
+	 * throughput and latencies during a client benchmark.
+	 * 
+	 * @param interval the interval in milliseconds, zero to disable
+	 */
+	public void setInterval(int interval) {
+		System.err.println("Report interval: "+(interval > 0 ? interval+" ms" : "off"));
+		this.interval = interval;
+	}
+
+	public Set<ResultExporter.Format> getExportFormats() {
+		return formats;
+	}
+
+	/**
+	 * Sets the formats in which the results are exported next to the log.
+	 * Must be set before the log is created.
+	 */
+	public void setExportFormats(Set<ResultExporter.Format> formats) {
+		System.err.println("Export results as: "+(formats.isEmpty() ? "off" : formats.toString()));
+		this.formats = formats;
+	}
+
 	public boolean isVerbose() {
 		return verbose;
 	}
@@ -27,10 +27,11 @@ import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
 
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.Type;
@@ -51,6 +52,8 @@ public class VirtualServer implements Runnable, VirtualDevice {
 	private DatagramSocket socket;
 	private DatagramPacket pSend;
 	private DatagramPacket pRecv;
+	private ReceiveBufferPool buffers = ReceiveBufferPool.getDefault();
+	private ByteBuffer buffer;
 	
 	private InetSocketAddress bindAddress;
 	private InetAddress destAddress;
@@ -62,15 +65,22 @@ public class VirtualServer implements Runnable, VirtualDevice {
 	private boolean registered = false;
 	
 	private boolean checkLatency = false;
-	private ArrayList<Integer> latencies;
+	private LatencyHistogram latencies;
+	private int precision = LatencyHistogram.DEFAULT_PRECISION;
 	
 	private int counter;
 	private int lost;
+	private int truncated;
 	private long timestamp;
 	
+	private InterArrival arrival;
+	private long nextNotify;
+	
 	private CyclicBarrier barrier;
 	
 	private VeryEcoNotificationProducer producer;
+	private long run;
+	private int relation;
 	
 	public VirtualServer(URI uri) throws Exception {
 		this(uri, null, false, false);
@@ -82,12 +92,11 @@ public class VirtualServer implements Runnable, VirtualDevice {
 	
 	public VirtualServer(URI uri, InetSocketAddress addr, boolean observable, boolean confirmable) throws Exception {
 		this.pSend = new DatagramPacket(new byte[0], 0);
-		this.pRecv = new DatagramPacket(new byte[100], 100);
+		this.pRecv = new DatagramPacket(new byte[0], 0);
 		this.runnable = true;
 		this.bindAddress = addr;
 		this.postURI = uri;
 		this.confirmable = confirmable;
-		this.latencies = new ArrayList<Integer>();
 
 		bind(addr);
 	}
@@ -108,6 +117,8 @@ public class VirtualServer implements Runnable, VirtualDevice {
 	
 	@Override
 	public void run() {
+		buffer = buffers.acquire();
+		pRecv.setData(buffer.array());
 		try {
 			bind(bindAddress);
 			
@@ -125,7 +136,17 @@ public class VirtualServer implements Runnable, VirtualDevice {
 			pSend.setPort(destPort);
 
 			// the if is moved outside of the test loop to reduce the logic processing overhead
-			if (confirmable) {
+			if (arrival != null) {
+				nextNotify = System.nanoTime() + ThreadLocalRandom.current().nextLong(Math.max(1, arrival.getMean()));
+				while (runnable) {
+					pause();
+					if (!runnable)
+						break;
+					notifyObserver();
+					if (confirmable)
+						awaitAck();
+				}
+			} else if (confirmable) {
 				while (runnable) {
 					notifyObserver();
 					awaitAck();
@@ -183,6 +204,9 @@ public class VirtualServer implements Runnable, VirtualDevice {
 		} finally {
 			stop();
 			close();
+			pRecv.setData(new byte[0]);
+			buffers.release(buffer);
+			buffer = null;
 		}
 	}
 	
@@ -234,6 +258,10 @@ public class VirtualServer implements Runnable, VirtualDevice {
 				socket.setSoTimeout(5000);
 				socket.receive(pRecv);
 				byte[] req = pRecv.getData();
+				if (buffers.isTruncated(pRecv.getLength())) {
+					truncated++;
+					continue;
+				}
 			
 				if ((req[0] & 0xC0) == 0x40 && req[1] == 0x01 && req[8] == 0x60) {
 					ByteArrayWrapper token = new ByteArrayWrapper(Arrays.copyOfRange(req, 4, 4 + new Integer(req[0] & 0x0F)));
@@ -242,6 +270,7 @@ public class VirtualServer implements Runnable, VirtualDevice {
 					destPort = pRecv.getPort();
 					
 					producer = new VeryEcoNotificationProducer(token.getData(), (getIntFromWord(ByteBuffer.wrap(Arrays.copyOfRange(req, 2, 4)).array()) + 1) % 65536, confirmable);
+					producer.setStamp(run, relation);
 					registered = true;
 				} 
 				
@@ -282,6 +311,16 @@ public class VirtualServer implements Runnable, VirtualDevice {
 		}
 	}
 	
+	/* Waits until the next notification is due and draws the time of the one
+	 * after it from the inter-arrival distribution.
+	 */
+	private void pause() {
+		long delay;
+		while (runnable && (delay = nextNotify - System.nanoTime()) > 0)
+			LockSupport.parkNanos(delay);
+		nextNotify += arrival.next(ThreadLocalRandom.current());
+	}
+	
 	/* Should the server be configured to send confirmable notifications, it will have to wait
 	 * for the acknowledgements from the clients. It also counts the number of acknowledgements
 	 * for statistics.
@@ -290,7 +329,7 @@ public class VirtualServer implements Runnable, VirtualDevice {
 		try {
 			while (true) {
 				socket.receive(pRecv);
-				if (checkLatency) latencies.add((int)(System.nanoTime() - timestamp));
+				if (checkLatency) latencies.record((System.nanoTime() - timestamp) / 1000);
 				++counter;
 				return;
 			}
@@ -318,6 +357,14 @@ public class VirtualServer implements Runnable, VirtualDevice {
 	public int getTimeouts() {
 		return lost;
 	}
+
+	/**
+	 * Returns the number of requests that were larger than the receive
+	 * buffers and therefore ignored.
+	 */
+	public int getTruncated() {
+		return truncated;
+	}
 	
 	@Override
 	public boolean isCheckLatency() {
@@ -327,10 +374,38 @@ public class VirtualServer implements Runnable, VirtualDevice {
 	@Override
 	public void setCheckLatency(boolean checkLatency) { 
 		this.checkLatency = checkLatency;
+		if (checkLatency && latencies == null)
+			latencies = new LatencyHistogram(precision);
+	}
+	
+	@Override
+	public void setPrecision(int precision) {
+		this.precision = precision;
+		if (latencies != null && latencies.getPrecision() != precision)
+			latencies = new LatencyHistogram(precision);
 	}
 
+	/**
+	 * Sets the distribution of the time between two notifications. Without a
+	 * distribution, the server notifies as fast as it can.
+	 */
+	@Override
+	public void setInterArrival(InterArrival arrival) {
+		this.arrival = arrival;
+	}
+
+	/**
+	 * Sets the pool of the receive buffers, whose size is the largest request
+	 * that is received completely. Must not be called while the server is
+	 * running.
+	 */
 	@Override
-	public ArrayList<Integer> getLatencies() {
+	public void setReceiveBuffers(ReceiveBufferPool buffers) {
+		this.buffers = buffers;
+	}
+	
+	@Override
+	public LatencyHistogram getLatencies() {
 		return latencies;
 	}
 	
@@ -343,10 +418,22 @@ public class VirtualServer implements Runnable, VirtualDevice {
 	public void reset() { 
 		lost = 0; 
 		counter = 0; 
+		truncated = 0;
+		if (latencies != null)
+			latencies.reset();
 		runnable = true;
 		registered = false;
 	}
 	
+	/**
+	 * Sets the run and the index of this server for the delivery stamps of
+	 * its notifications.
+	 */
+	public void setStamp(long run, int relation) {
+		this.run = run;
+		this.relation = relation;
+	}
+
 	public void setBarrier(CyclicBarrier barrier) {
 		this.barrier = barrier;
 	}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Creates the threads for virtual devices. On a JDK with virtual threads
+ * (Java 21 or newer), the devices can run on virtual threads instead of
+ * platform threads. The virtual threads are created by reflection so that
+ * CoAPBench still runs on older JDKs, where it falls back to platform threads.
+ */
+public class VirtualThreads {
+
+	/** The maximum number of threads used to compare the startup overhead */
+	public static final int MAX_COMPARISON_THREADS = 10000;
+
+	private static final Method OF_VIRTUAL;
+	private static final Method UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+			// fails if virtual threads are only a preview feature
+			unstarted.invoke(ofVirtual.invoke(null), new Runnable() { public void run() { } });
+		} catch (Exception e) {
+			ofVirtual = null;
+			unstarted = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		UNSTARTED = unstarted;
+	}
+
+	private VirtualThreads() { }
+
+	/**
+	 * Returns true if the JDK supports virtual threads.
+	 */
+	public static boolean isSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Creates a new unstarted thread for the specified device.
+	 *
+	 * @param runnable the device
+	 * @param virtual whether to create a virtual thread
+	 * @return a virtual thread if requested and supported, a platform thread
+	 *         otherwise
+	 */
+	public static Thread newThread(Runnable runnable, boolean virtual) {
+		if (virtual && OF_VIRTUAL != null) {
+			try {
+				return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), runnable);
+			} catch (Exception e) {
+				throw new IllegalStateException("Cannot create virtual thread", e);
+			}
+		}
+		return new Thread(runnable);
+	}
+
+	/**
+	 * Measures the time it takes to create, start and finish the specified
+	 * number of threads. Each thread waits until all threads have been started
+	 * so that the scheduler has to handle all of them at once.
+	 *
+	 * @param count the number of threads
+	 * @param virtual whether to use virtual threads
+	 * @return the elapsed time in nanoseconds
+	 */
+	public static long measureStartup(int count, boolean virtual) throws InterruptedException {
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(count);
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					go.await();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				done.countDown();
+			}
+		};
+		long t0 = System.nanoTime();
+		for (int i=0;i<count;i++)
+			newThread(task, virtual).start();
+		go.countDown();
+		done.await();
+		return System.nanoTime() - t0;
+	}
+
+	/**
+	 * Compares the startup overhead of platform and virtual threads for the
+	 * specified concurrency and returns a line for the benchmark log.
+	 */
+	public static String compare(int count) throws InterruptedException {
+		int n = Math.min(count, MAX_COMPARISON_THREADS);
+		if (!isSupported())
+			return "Virtual threads are not supported by this JDK; using platform threads";
+		measureStartup(n, true); // warm up
+		long platform = measureStartup(n, false);
+		long virtual = measureStartup(n, true);
+		return String.format("Thread scheduling overhead for %d threads: platform %.3f ms, virtual %.3f ms",
+				n, platform / 1000000f, virtual / 1000000f);
+	}
+}
@@ -0,0 +1,388 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench.producer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
+
+/**
+ * A message template is a CoAP message that is serialized only once. All
+ * values that change from message to message are slots of fixed width that are
+ * written directly into the reusable buffer, so that producing a message does
+ * not allocate anything. The slots are
+ * <ul>
+ * <li>the MID (bytes 2 and 3),</li>
+ * <li>the token, with the length of the token of the compiled message,</li>
+ * <li>the Observe option, always encoded with 3 bytes if present,</li>
+ * <li>the Block1 or Block2 option, also always encoded with 3 bytes if
+ * present,</li>
+ * <li>the {@value #PLACEHOLDER} in one Uri-Path segment, e.g.,
+ * <code>node{}</code>, encoded as decimal number with a fixed number of
+ * digits,</li>
+ * <li>each {@value #PLACEHOLDER} in the payload, encoded the same way.</li>
+ * </ul>
+ * Integer options are usually encoded with as few bytes as possible, but a
+ * receiver must accept leading zeros. Decimal slots are padded with leading
+ * zeros. A value with more digits than the slots is rejected, since keeping
+ * only its lowest digits would let different values collide.
+ * <p>
+ * The payload of a template can also be overwritten as a whole, e.g., with the
+ * next block of a block-wise upload.
+ * <p>
+ * A template can also be created from a serialized message, e.g., a captured
+ * request, with {@link #fromBytes(byte[], int)}. Such a template only has the
+ * MID and token slots.
+ * <p>
+ * A template must only be used by a single thread.
+ */
+public class MessageTemplate {
+
+	/** The placeholder for a decimal slot in a Uri-Path segment or payload */
+	public static final String PLACEHOLDER = "{}";
+
+	/** The default number of digits of a decimal slot */
+	public static final int DEFAULT_DIGITS = 5;
+
+	private static final int OBSERVE_LENGTH = 3;
+	private static final int BLOCK_LENGTH = 3;
+	private static final int MAX_BLOCK_NUM = (1 << 20) - 1;
+	private static final int NONE = -1;
+
+	private final byte[] buffer;
+	private final int tokenLength;
+	private final int digits;
+	private int observeOffset = NONE;
+	private int blockOffset = NONE;
+	private int pathOffset = NONE;
+	private int payloadOffset;
+	private final int[] payloadOffsets;
+
+	/**
+	 * Compiles a template with the default number of digits.
+	 *
+	 * @see #MessageTemplate(Message, int)
+	 */
+	public MessageTemplate(Message message) {
+		this(message, DEFAULT_DIGITS);
+	}
+
+	/**
+	 * Compiles a template from a request or response. The placeholders of the
+	 * Uri-Path and payload of the message are replaced and its Observe and
+	 * Block options are widened.
+	 *
+	 * @param message the message with the placeholders
+	 * @param digits the number of digits of the decimal slots
+	 */
+	public MessageTemplate(Message message, int digits) {
+		if (digits < 1 || digits > 18)
+			throw new IllegalArgumentException("Digits must be between 1 and 18");
+		this.digits = digits;
+		this.tokenLength = message.getToken() != null ? message.getToken().length : 0;
+		String zeros = zeros(digits);
+
+		// replace the placeholder of the Uri-Path and remember its segment
+		int pathSegment = NONE;
+		int pathPosition = 0;
+		List<String> segments = message.getOptions().getUriPath();
+		StringBuilder path = new StringBuilder();
+		for (int i=0;i<segments.size();i++) {
+			String segment = segments.get(i);
+			int position = segment.indexOf(PLACEHOLDER);
+			if (position >= 0 && pathSegment == NONE) {
+				pathSegment = i;
+				pathPosition = segment.substring(0, position).getBytes(StandardCharsets.UTF_8).length;
+				segment = segment.substring(0, position) + zeros + segment.substring(position + PLACEHOLDER.length());
+			}
+			if (i > 0)
+				path.append('/');
+			path.append(segment);
+		}
+		if (pathSegment != NONE)
+			message.getOptions().setUriPath(path.toString());
+
+		// replace the placeholders of the payload and remember their offsets
+		byte[] payload = message.getPayload();
+		int[] fields = new int[0];
+		if (payload != null && payload.length > 0) {
+			String[] parts = message.getPayloadString().split("\\{\\}", -1);
+			fields = new int[parts.length - 1];
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (int i=0;i<parts.length;i++) {
+				byte[] part = parts[i].getBytes(StandardCharsets.UTF_8);
+				out.write(part, 0, part.length);
+				if (i < fields.length) {
+					fields[i] = out.size();
+					out.write(zeros.getBytes(StandardCharsets.UTF_8), 0, digits);
+				}
+			}
+			payload = out.toByteArray();
+			message.setPayload(payload);
+		}
+
+		if (message.getOptions().hasObserve())
+			message.getOptions().setObserve((1 << 8 * OBSERVE_LENGTH) - 1);
+		if (message.getOptions().hasBlock1())
+			message.getOptions().setBlock1(message.getOptions().getBlock1().getSzx(), message.getOptions().getBlock1().isM(), MAX_BLOCK_NUM);
+		if (message.getOptions().hasBlock2())
+			message.getOptions().setBlock2(message.getOptions().getBlock2().getSzx(), message.getOptions().getBlock2().isM(), MAX_BLOCK_NUM);
+
+		UdpDataSerializer serializer = new UdpDataSerializer();
+		if (message instanceof Request)
+			buffer = serializer.serializeRequest((Request) message).getBytes();
+		else
+			buffer = serializer.serializeResponse((Response) message).getBytes();
+
+		// the payload is at the end of the message
+		payloadOffsets = fields;
+		for (int i=0;i<fields.length;i++)
+			payloadOffsets[i] += buffer.length - payload.length;
+		findOptions(pathSegment, pathPosition, true);
+	}
+
+	private MessageTemplate(byte[] buffer, int tokenLength) {
+		this.buffer = buffer;
+		this.tokenLength = tokenLength;
+		this.digits = DEFAULT_DIGITS;
+		this.payloadOffsets = new int[0];
+		findOptions(NONE, 0, false);
+	}
+
+	/**
+	 * Creates a template from a serialized message. The token of the message
+	 * is replaced by a token of the specified length, so that the slot of the
+	 * token has the same length for all templates. An Observe option is only
+	 * or Block option is only a slot if it has 3 bytes.
+	 *
+	 * @param message the serialized message
+	 * @param tokenLength the length of the token of the template
+	 * @throws IllegalArgumentException if the message is not a CoAP message
+	 */
+	public static MessageTemplate fromBytes(byte[] message, int tokenLength) {
+		if (message.length < 4 || (message[0] & 0xC0) != 0x40)
+			throw new IllegalArgumentException("Not a CoAP message");
+		int length = message[0] & 0x0F;
+		if (length > 8 || message.length < 4 + length)
+			throw new IllegalArgumentException("Invalid token length "+length);
+		byte[] buffer = new byte[message.length - length + tokenLength];
+		buffer[0] = (byte) ((message[0] & 0xF0) | tokenLength);
+		System.arraycopy(message, 1, buffer, 1, 3);
+		System.arraycopy(message, 4 + length, buffer, 4 + tokenLength, message.length - 4 - length);
+		try {
+			return new MessageTemplate(buffer, tokenLength);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Malformed options");
+		}
+	}
+
+	/*
+	 * Walks the options of the serialized message to find the value of the
+	 * Observe and Block options, of the Uri-Path segment with the placeholder
+	 * and of the payload.
+	 */
+	private void findOptions(int pathSegment, int pathPosition, boolean widened) {
+		int index = 4 + tokenLength;
+		int number = 0;
+		int segment = 0;
+		while (index < buffer.length && buffer[index] != (byte) 0xFF) {
+			int delta = (buffer[index] & 0xF0) >> 4;
+			int length = buffer[index] & 0x0F;
+			index++;
+			if (delta == 13) {
+				delta = 13 + (buffer[index++] & 0xFF);
+			} else if (delta == 14) {
+				delta = 269 + ((buffer[index] & 0xFF) << 8 | (buffer[index+1] & 0xFF));
+				index += 2;
+			}
+			if (length == 13) {
+				length = 13 + (buffer[index++] & 0xFF);
+			} else if (length == 14) {
+				length = 269 + ((buffer[index] & 0xFF) << 8 | (buffer[index+1] & 0xFF));
+				index += 2;
+			}
+			number += delta;
+			if (number == OptionNumberRegistry.OBSERVE) {
+				if (length == OBSERVE_LENGTH)
+					observeOffset = index;
+				else if (widened)
+					throw new IllegalStateException("Observe option has "+length+" instead of "+OBSERVE_LENGTH+" bytes");
+			} else if (number == OptionNumberRegistry.BLOCK1 || number == OptionNumberRegistry.BLOCK2) {
+				if (length == BLOCK_LENGTH)
+					blockOffset = index;
+				else if (widened)
+					throw new IllegalStateException("Block option has "+length+" instead of "+BLOCK_LENGTH+" bytes");
+			} else if (number == OptionNumberRegistry.URI_PATH) {
+				if (segment++ == pathSegment)
+					pathOffset = index + pathPosition;
+			}
+			index += length;
+		}
+		payloadOffset = index < buffer.length ? index + 1 : index;
+	}
+
+	private static String zeros(int digits) {
+		StringBuilder zeros = new StringBuilder(digits);
+		for (int i=0;i<digits;i++)
+			zeros.append('0');
+		return zeros.toString();
+	}
+
+	/**
+	 * Returns the reusable buffer with the message. The buffer changes with
+	 * every slot that is set.
+	 */
+	public byte[] getBytes() {
+		return buffer;
+	}
+
+	public int getMID() {
+		return ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+	}
+
+	public void setMID(int mid) {
+		buffer[2] = (byte) (mid >> 8);
+		buffer[3] = (byte) mid;
+	}
+
+	/**
+	 * Increments the MID, wrapping around at 65535.
+	 */
+	public void nextMID() {
+		if (++buffer[3] == 0)
+			++buffer[2];
+	}
+
+	public int getTokenLength() {
+		return tokenLength;
+	}
+
+	/**
+	 * Writes the lowest bytes of the specified value into the token, in
+	 * network byte order.
+	 */
+	public void setToken(long token) {
+		for (int i=3+tokenLength;i>3;i--) {
+			buffer[i] = (byte) token;
+			token >>>= 8;
+		}
+	}
+
+	public boolean hasObserve() {
+		return observeOffset != NONE;
+	}
+
+	/**
+	 * Writes the sequence number into the Observe option. Only the lowest 24
+	 * bits are used.
+	 */
+	public void setObserve(int observe) {
+		if (observeOffset == NONE)
+			throw new IllegalStateException("Template has no Observe option");
+		buffer[observeOffset] = (byte) (observe >> 16);
+		buffer[observeOffset + 1] = (byte) (observe >> 8);
+		buffer[observeOffset + 2] = (byte) observe;
+	}
+
+	public boolean hasBlock() {
+		return blockOffset != NONE;
+	}
+
+	/**
+	 * Writes the block number, the more flag and the size exponent into the
+	 * Block1 or Block2 option. Only the lowest 20 bits of the number are used.
+	 */
+	public void setBlock(int num, boolean more, int szx) {
+		if (blockOffset == NONE)
+			throw new IllegalStateException("Template has no Block option");
+		int value = (num & MAX_BLOCK_NUM) << 4 | (more ? 0x08 : 0) | (szx & 0x07);
+		buffer[blockOffset] = (byte) (value >> 16);
+		buffer[blockOffset + 1] = (byte) (value >> 8);
+		buffer[blockOffset + 2] = (byte) value;
+	}
+
+	public boolean hasPathSlot() {
+		return pathOffset != NONE;
+	}
+
+	/**
+	 * Writes the non-negative value into the placeholder of the Uri-Path,
+	 * e.g., the index of an endpoint.
+	 */
+	public void setPath(long value) {
+		if (pathOffset == NONE)
+			throw new IllegalStateException("Template has no placeholder in the Uri-Path");
+		writeDecimal(pathOffset, value);
+	}
+
+	public int getDigits() {
+		return digits;
+	}
+
+	/**
+	 * Returns the number of decimal digits of the non-negative value.
+	 */
+	public static int getDigits(long value) {
+		int digits = 1;
+		while (value >= 10) {
+			value /= 10;
+			digits++;
+		}
+		return digits;
+	}
+
+	public int getPayloadLength() {
+		return buffer.length - payloadOffset;
+	}
+
+	/**
+	 * Overwrites the whole payload with the bytes of the source array starting
+	 * at the specified offset.
+	 */
+	public void setPayload(byte[] source, int offset) {
+		System.arraycopy(source, offset, buffer, payloadOffset, buffer.length - payloadOffset);
+	}
+
+	public int getPayloadFieldCount() {
+		return payloadOffsets.length;
+	}
+
+	/**
+	 * Writes the non-negative value into the specified placeholder of the
+	 * payload.
+	 */
+	public void setPayloadField(int field, long value) {
+		writeDecimal(payloadOffsets[field], value);
+	}
+
+	private void writeDecimal(int offset, long value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Value must not be negative: "+value);
+		if (getDigits(value) > digits)
+			throw new IllegalArgumentException("Value "+value+" does not fit into "+digits+" digits");
+		for (int i=offset+digits-1;i>=offset;i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+}
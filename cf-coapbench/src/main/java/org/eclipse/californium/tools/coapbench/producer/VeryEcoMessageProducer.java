@@ -23,7 +23,6 @@ import java.util.Iterator;
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.Request;
-import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
 import org.eclipse.californium.elements.RawData;
 
 /**
@@ -32,11 +31,36 @@ import org.eclipse.californium.elements.RawData;
  * (bytes 2 and 3). This producer must only be used in strict single-threaded
  * environment (because there is actually only one single request that is reused
  * infinitely often).
+ * <p>
+ * The request is a {@link MessageTemplate}. If the URI path or the payload
+ * contain a {@value MessageTemplate#PLACEHOLDER}, it is replaced with the
+ * index of the producer, so that every virtual device sends distinct requests
+ * without allocating anything.
+ * <p>
+ * The method OBSERVE is a GET that registers an observation.
+ * <p>
+ * In block-wise mode, a request has a Block2 option to download the resource
+ * block by block or, with a body, a Block1 option and a payload of one block
+ * to upload the body block by block. The body of an upload is shared
+ * and copied into the payload of the template for every block, so that it has
+ * no placeholders. If the last block of the body is shorter, it has its own
+ * template.
  */
 public class VeryEcoMessageProducer implements Iterator<byte[]> {
 
-	private final UdpDataSerializer serializer = new UdpDataSerializer();
-	private byte[] prototype;
+	private static final int NONE = -1;
+
+	private MessageTemplate template;
+	private MessageTemplate lastTemplate;
+	private MessageTemplate current;
+	private long index;
+	private int digits = MessageTemplate.DEFAULT_DIGITS;
+	private int tokenLength;
+	private URI uri;
+	private String method;
+	private String payload;
+	private int blockSzx = NONE;
+	private int bodyLength;
 
 	public VeryEcoMessageProducer(URI uri) {
 		setURI(uri, null, null);
@@ -45,7 +69,41 @@ public class VeryEcoMessageProducer implements Iterator<byte[]> {
 	public VeryEcoMessageProducer() { }
 	
 	public void setURI(URI uri, String method, String payload) {
+		this.uri = uri;
+		this.method = method;
+		this.payload = payload;
+		
+		Request request = createRequest();
+		if (blockSzx != NONE) {
+			int size = 1 << (blockSzx + 4);
+			if (bodyLength == 0) {
+				request.getOptions().setBlock2(blockSzx, false, 0);
+			} else {
+				request.getOptions().setBlock1(blockSzx, true, 0);
+				request.setPayload(new byte[Math.min(size, bodyLength)]);
+			}
+		} else if (payload != null) {
+			request.setPayload(payload);
+		}
+		template = new MessageTemplate(request, digits);
+		if (template.hasObserve())
+			template.setObserve(0); // register
+		current = template;
 		
+		lastTemplate = null;
+		if (blockSzx != NONE && bodyLength > 0) {
+			int size = 1 << (blockSzx + 4);
+			if (bodyLength > size && bodyLength % size != 0) {
+				Request last = createRequest();
+				last.getOptions().setBlock1(blockSzx, false, 0);
+				last.setPayload(new byte[bodyLength % size]);
+				lastTemplate = new MessageTemplate(last, digits);
+			}
+		}
+		setIndex(index);
+	}
+	
+	private Request createRequest() {
 		Request request;
 		switch (method){
 			case("PUT"):
@@ -60,18 +118,79 @@ public class VeryEcoMessageProducer implements Iterator<byte[]> {
 			case("delete"):
 				request = new Request(Code.DELETE);
 				break;
+			case("OBSERVE"):
+			case("observe"):
+				request = new Request(Code.GET);
+				request.setObserve();
+				break;
 			default:
 				request = new Request(Code.GET);
 				break;
 		}
 		
 		request.setType(Type.CON);
-		request.setToken(new byte[0]);
+		request.setToken(new byte[tokenLength]);
 		request.setMID(0);
 		request.setURI(uri);
-		if (payload != null)
-			request.setPayload(payload);
-		prototype = serializer.serializeRequest(request).getBytes();
+		return request;
+	}
+	
+	/**
+	 * Switches to block-wise mode with the specified block size exponent and
+	 * recompiles the request. Must be set after the URI.
+	 *
+	 * @param szx the block size exponent, the size is 2^(szx+4) bytes
+	 * @param bodyLength the length of the body of an upload, 0 for a download
+	 */
+	public void setBlockwise(int szx, int bodyLength) {
+		if (szx < 0 || szx > 6)
+			throw new IllegalArgumentException("SZX must be between 0 and 6");
+		this.blockSzx = szx;
+		this.bodyLength = bodyLength;
+		setURI(uri, method, payload);
+	}
+	
+	/**
+	 * Writes the index, e.g., of the virtual device, into the placeholders of
+	 * the URI path and payload. An index with more digits than the slots
+	 * recompiles the templates with wider slots.
+	 */
+	public void setIndex(long index) {
+		this.index = index;
+		if (MessageTemplate.getDigits(index) > digits && (template.hasPathSlot() || template.getPayloadFieldCount() > 0)) {
+			digits = MessageTemplate.getDigits(index);
+			setURI(uri, method, payload);
+			return;
+		}
+		if (template.hasPathSlot())
+			template.setPath(index);
+		for (int i=0;i<template.getPayloadFieldCount();i++)
+			template.setPayloadField(i, index);
+		if (lastTemplate != null && lastTemplate.hasPathSlot())
+			lastTemplate.setPath(index);
+	}
+	
+	/**
+	 * Sets the length of the token of the requests. Must be set before the
+	 * URI.
+	 */
+	public void setTokenLength(int tokenLength) {
+		this.tokenLength = tokenLength;
+	}
+	
+	/**
+	 * Writes the token into the current request.
+	 */
+	public void setToken(long token) {
+		template.setToken(token);
+	}
+	
+	/**
+	 * Returns the template of the current request, which is the template of
+	 * the last block after it has been produced.
+	 */
+	public MessageTemplate getTemplate() {
+		return current;
 	}
 
 	@Override
@@ -82,9 +201,46 @@ public class VeryEcoMessageProducer implements Iterator<byte[]> {
 	@Override
 	public byte[] next() {
 		// increase MID at location [2,3]
-		if (++prototype[3] == 0)
-			++prototype[2];
-		return prototype;
+		template.nextMID();
+		return template.getBytes();
+	}
+	
+	/**
+	 * Returns the current request with the specified MID and token.
+	 */
+	public byte[] next(int mid, long token) {
+		template.setMID(mid);
+		template.setToken(token);
+		current = template;
+		return template.getBytes();
+	}
+	
+	/**
+	 * Returns the request for the specified block with the specified MID and
+	 * token. An upload copies the block from the body, which must have the
+	 * length set with {@link #setBlockwise(int, int)}.
+	 *
+	 * @param num the block number
+	 * @param szx the block size exponent, which a download may lower
+	 * @param body the body of an upload or null for a download
+	 */
+	public byte[] nextBlock(int mid, long token, int num, int szx, byte[] body) {
+		MessageTemplate block = template;
+		boolean more = false;
+		if (body != null) {
+			int size = 1 << (blockSzx + 4);
+			int offset = num * size;
+			more = offset + size < body.length;
+			if (!more && lastTemplate != null)
+				block = lastTemplate;
+			block.setPayload(body, offset);
+			szx = blockSzx;
+		}
+		block.setMID(mid);
+		block.setToken(token);
+		block.setBlock(num, more, szx);
+		current = block;
+		return block.getBytes();
 	}
 	
 	@Override
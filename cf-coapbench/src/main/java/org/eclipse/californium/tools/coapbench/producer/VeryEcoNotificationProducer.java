@@ -17,28 +17,29 @@
  ******************************************************************************/
 package org.eclipse.californium.tools.coapbench.producer;
 
-import java.util.Arrays;
 import java.util.Iterator;
 
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.Response;
-import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
-import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.tools.coapbench.DeliveryStamp;
 
 /**
  * This producer is as economic with memory as possible. It only uses a single
- * {@link RawData} instance. To produce a new request, it only changes the MID
- * (bytes 2 and 3). This producer must only be used in strict single-threaded
- * environment (because there is actually only one single request that is reused
- * infinitely often).
+ * {@link MessageTemplate} for all notifications. To produce a new
+ * notification, it only changes the MID, the Observe sequence number and the
+ * {@link DeliveryStamp} in the payload. This producer must only be used in
+ * strict single-threaded environment (because there is actually only one
+ * single notification that is reused infinitely often).
  */
 public class VeryEcoNotificationProducer implements Iterator<byte[]> {
 
-	private final UdpDataSerializer serializer = new UdpDataSerializer();
-	private byte[] prototype;
+	private MessageTemplate template;
 	private byte[] token;
 	private boolean useCONs = false;
+	private int sequence;
+	private long run;
+	private long relation;
 
 	public VeryEcoNotificationProducer(byte[] token, int MID, boolean useCONs) {
 		this.useCONs = useCONs;
@@ -57,8 +58,18 @@ public class VeryEcoNotificationProducer implements Iterator<byte[]> {
 		response.setToken(token);
 		response.setMID(MID);
 		response.setOptions(response.getOptions().setObserve(1));
+		response.setPayload(DeliveryStamp.PAYLOAD);
 		
-		prototype = serializer.serializeResponse(response).getBytes();
+		template = new MessageTemplate(response, DeliveryStamp.DIGITS);
+		sequence = 0;
+	}
+
+	/**
+	 * Sets the run and the relation of the delivery stamps.
+	 */
+	public void setStamp(long run, long relation) {
+		this.run = run;
+		this.relation = relation;
 	}
 
 	public byte[] getToken() {
@@ -72,31 +83,10 @@ public class VeryEcoNotificationProducer implements Iterator<byte[]> {
 
 	@Override
 	public byte[] next() {
-		int optionIndex = 4 + (prototype[0] & 0x0F);
-		int optionLength = prototype[optionIndex] & 0x0F;
-		// increase MID at location [2,3]
-		if (++prototype[3] == 0)
-			++prototype[2];
-		// increase the Observe sequence number
-		if (++prototype[optionIndex + optionLength] == 0) {
-			if ((optionLength) == 1) {
-				++prototype[optionIndex];
-				prototype = Arrays.copyOfRange(prototype, 0, optionIndex + 3);
-			}
-			++prototype[optionIndex + prototype[optionIndex] & 0x0F - 1];
-		}
-		if ((optionLength & 0x0F) >= 2 && prototype[optionIndex + 1] == 0 && prototype[optionIndex + 2] == 0) {
-			if (optionLength == 2) {
-				++prototype[optionIndex];
-				prototype = Arrays.copyOfRange(prototype, 0, optionIndex + 4);
-			}
-			++prototype[optionIndex + prototype[optionIndex] & 0x0F - 2];
-		}
-		if (optionLength == 3 && prototype[optionIndex + 1] == 0 && prototype[optionIndex + 2] == 0 && prototype[optionIndex + 3] == 0) {
-			prototype[optionIndex] = new Integer((prototype[optionIndex] & 0xF0) + 1).byteValue();
-			prototype = Arrays.copyOfRange(prototype, 0, optionIndex + 2);
-		}
-		return prototype;
+		template.nextMID();
+		template.setObserve(++sequence);
+		DeliveryStamp.stamp(template, run, relation, sequence);
+		return template.getBytes();
 	}
 	
 	final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();